@@ -0,0 +1,93 @@
+package pt.inescn.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.inescn.scratchpad.BatchQR;
+import pt.inescn.scratchpad.LinearCombos;
+import pt.inescn.scratchpad.MatrixGenerator;
+import pt.inescn.scratchpad.QRMatrixToolkit;
+
+/**
+ * JMH benchmarks of the linear combinations of many small matrices (for
+ * example one per window): `QRMatrixToolkit.collinear` called for each
+ * matrix versus a single `BatchQR` call.
+ *
+ *      sbt "bench/jmh:run -prof gc .*BatchQRBenchmark.*"
+ *
+ * @see QRBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchQRBenchmark {
+
+  /**
+   * Number of matrices
+   */
+  @Param({ "1000", "10000" })
+  public int count;
+
+  /**
+   * Rows of each matrix (there are 10 columns)
+   */
+  @Param({ "20", "100" })
+  public int rows;
+
+  public static final int COLUMNS = 10;
+
+  private List<DenseMatrix> matrices;
+  private double[] data;
+  private BatchQR batch;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    matrices = new ArrayList<>(count);
+    data = new double[count * rows * COLUMNS];
+    for (int i = 0; i < count; i++) {
+      DenseMatrix A = new MatrixGenerator(rows, COLUMNS, QRBenchmark.SEED + i)
+          .dependent(i % 3, 3).parallel(false).generate().toDenseMatrix();
+      matrices.add(A);
+      System.arraycopy(A.getData(), 0, data, i * rows * COLUMNS,
+          rows * COLUMNS);
+    }
+    batch = new BatchQR(rows, COLUMNS);
+  }
+
+  @Benchmark
+  public Object collinearEach() {
+    List<Object> r = new ArrayList<>(count);
+    for (DenseMatrix A : matrices)
+      r.add(QRMatrixToolkit.collinear(A, QRBenchmark.DROP_THRESHOLD, false));
+    return r;
+  }
+
+  @Benchmark
+  public LinearCombos[] batch() {
+    return batch.linearCombos(data, count);
+  }
+
+  @Benchmark
+  public int[] batchRanks() {
+    return batch.ranks(data, count);
+  }
+}
@@ -0,0 +1,88 @@
+package pt.inescn.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.inescn.scratchpad.QREngine;
+import pt.inescn.scratchpad.QRMatrixToolkit;
+
+/**
+ * JMH benchmarks of `QRMatrixToolkit.collinear` and
+ * `QRMatrixToolkit.findLinearCombos` with and without checking the results.
+ * The matrices are the same as those of `QRBenchmark`. With `checkResults`
+ * the dependent columns are rebuilt with a single product of the coefficients
+ * and the independent columns, and each residual, relative to the largest
+ * absolute value of its dependent column, is compared with its tolerance (see
+ * `QRMatrixToolkit.linearCombos`). This check does not depend on `-ea`:
+ * `checkResults=true` throws an `IllegalStateException` (and the benchmark
+ * fails) if a combination is not within its tolerance.
+ *
+ *      sbt "bench/jmh:run -prof gc .*CollinearBenchmark.*"
+ *
+ * @see QRBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CollinearBenchmark {
+
+  @Param({ "square", "tall", "wide" })
+  public String shape;
+
+  @Param({ "0.0", "0.1", "0.5" })
+  public double deficiency;
+
+  @Param({ "1.0", "0.1" })
+  public double density;
+
+  @Param({ "false", "true" })
+  public boolean checkResults;
+
+  private DenseMatrix A;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    A = QRBenchmark.generate(shape, deficiency, density);
+  }
+
+  @Benchmark
+  public Object collinear() {
+    return QRMatrixToolkit.collinear(A, QRBenchmark.DROP_THRESHOLD,
+        checkResults);
+  }
+
+  @Benchmark
+  public Object collinear_TSQR() {
+    return QRMatrixToolkit.collinear(A, QRBenchmark.DROP_THRESHOLD,
+        checkResults, QREngine.TSQR);
+  }
+
+  @Benchmark
+  public Object collinear_RANDOMIZED() {
+    return QRMatrixToolkit.collinear(A, QRBenchmark.DROP_THRESHOLD,
+        checkResults, QREngine.RANDOMIZED);
+  }
+
+  @Benchmark
+  public Object findLinearCombos() {
+    return QRMatrixToolkit.findLinearCombos(A, QRBenchmark.DROP_THRESHOLD,
+        checkResults);
+  }
+}
@@ -0,0 +1,176 @@
+package pt.inescn.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.QRP;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.QRDecomposition;
+import org.apache.commons.math3.linear.RRQRDecomposition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import pt.inescn.scratchpad.QREngine;
+import pt.inescn.scratchpad.QRIssue;
+import pt.inescn.scratchpad.MatrixGenerator;
+import pt.inescn.scratchpad.QRMatrixToolkit;
+import pt.inescn.scratchpad.RankEstimator;
+
+/**
+ * JMH benchmarks of the QR and rank code paths. Each benchmark
+ * is run for all combinations of the matrix shape, the fraction of dependent
+ * (collinear) columns and the density of the independent columns. The
+ * matrices are generated from a fixed seed so all runs use the same data.
+ *
+ * The collinearity benchmarks are in `CollinearBenchmark`.
+ *
+ * `rrqr` and `rrqrRank` correspond to the commons-math path used by
+ * `TableSawExpV2.exp1` (which is local to its `main` and cannot be called
+ * directly). Note that MTJ's `QRP` also forms the full m x m Q, so the tall
+ * shape is kept small enough for the default heap.
+ *
+ * Run all benchmarks with the allocation rate (gc profiler):
+ *
+ *      sbt "bench/jmh:run -prof gc .*QRBenchmark.*"
+ *
+ * Run a subset (see `-h` for all the JMH options):
+ *
+ *      sbt "bench/jmh:run -prof gc -p shape=tall -p density=1.0 .*QRBenchmark.qrp.*"
+ *
+ * @see http://openjdk.java.net/projects/code-tools/jmh/
+ * @see https://github.com/ktoso/sbt-jmh
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QRBenchmark {
+
+  /**
+   * square = 300 x 300, tall = 2000 x 100, wide = 200 x 400
+   */
+  @Param({ "square", "tall", "wide" })
+  public String shape;
+
+  /**
+   * Fraction of the columns that are linear combinations of other columns.
+   */
+  @Param({ "0.0", "0.1", "0.5" })
+  public double deficiency;
+
+  /**
+   * Fraction of non-zero elements in the independent columns.
+   */
+  @Param({ "1.0", "0.1" })
+  public double density;
+
+  public static final long SEED = 1234L;
+  public static final double DROP_THRESHOLD = 1e-6;
+
+  private DenseMatrix A;
+  private Array2DRowRealMatrix RA;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    A = generate(shape, deficiency, density);
+    int m = A.numRows();
+    int n = A.numColumns();
+    RA = new Array2DRowRealMatrix(m, n);
+    for (int i = 0; i < m; i++)
+      for (int j = 0; j < n; j++)
+        RA.setEntry(i, j, A.get(i, j));
+  }
+
+  /**
+   * Generates the matrix for the `shape` parameter.
+   *
+   * @see #generate(int, int, double, double, long)
+   */
+  static DenseMatrix generate(String shape, double deficiency, double density) {
+    switch (shape) {
+    case "tall":
+      return generate(2000, 100, deficiency, density, SEED);
+    case "wide":
+      return generate(200, 400, deficiency, density, SEED);
+    default:
+      return generate(300, 300, deficiency, density, SEED);
+    }
+  }
+
+  /**
+   * Generates an `m x n` matrix (see `MatrixGenerator`). `deficiency * n`
+   * randomly selected columns are each a linear combination of 3 distinct
+   * independent columns with random coefficients. Each independent column has
+   * `density * m` non-zeros on average. Note that the rank of wide matrices
+   * is also limited by the number of rows.
+   */
+  static DenseMatrix generate(int m, int n, double deficiency,
+      double density, long seed) {
+    int nd = (int) Math.round(deficiency * n);
+    return new MatrixGenerator(m, n, seed).density(density)
+        .dependent(nd, 3).generate().toDenseMatrix();
+  }
+
+  /*
+   * The factorizations and rank
+   */
+
+  @Benchmark
+  public QRP qrp() {
+    return QRP.factorize(A);
+  }
+
+  @Benchmark
+  public RRQRDecomposition rrqr() {
+    return new RRQRDecomposition(RA);
+  }
+
+  @Benchmark
+  public int qrpRank() {
+    return QRP.factorize(A).getRank();
+  }
+
+  @Benchmark
+  public int rrqrRank() {
+    return QRMatrixToolkit.getRankN(new RRQRDecomposition(RA));
+  }
+
+  @Benchmark
+  public int qrIssueRank() {
+    return QRIssue.getRank(new QRDecomposition(RA), DROP_THRESHOLD);
+  }
+
+  /**
+   * All three rank criteria on the same R (the trailing norms are only
+   * calculated once).
+   */
+  @Benchmark
+  public int estimatorRanks() {
+    RankEstimator e = new RankEstimator(new QRDecomposition(RA).getR());
+    return e.normDropRank(DROP_THRESHOLD) + e.diagonalRank(1e-12)
+        + e.ulpRank();
+  }
+
+  @Benchmark
+  public int engineRank_TSQR() {
+    return QRMatrixToolkit.getRankN(A, QREngine.TSQR);
+  }
+
+  @Benchmark
+  public int engineRank_RANDOMIZED() {
+    return QRMatrixToolkit.getRankN(A, QREngine.RANDOMIZED);
+  }
+}
@@ -1,7 +1,5 @@
 package org.dl4j.examples;
 
-import org.apache.commons.lang3.tuple.ImmutableTriple;
-import org.apache.commons.lang3.tuple.Triple;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.deeplearning4j.datasets.iterator.impl.MnistDataSetIterator;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
@@ -94,46 +92,29 @@ public class MNISTAnomalyExample {
         }
 
         //Evaluate the model on test data
-        //Score each digit/example in test set separately
-        //Then add triple (score, digit, and INDArray data) to lists and sort by score
-        //This allows us to get best N and worst N digits for each type
-        Map<Integer,List<Triple<Double,Integer,INDArray>>> listsByDigit = new HashMap<>();
-        for( int i=0; i<10; i++ ) listsByDigit.put(i,new ArrayList<Triple<Double,Integer,INDArray>>());
+        //Score each digit/example in test set separately (one forward pass per minibatch)
+        //Then keep the index of the 5 best and 5 worst scores for each digit type
+        //Only these 100 examples are fetched again for visualization
+        BestWorst selector = new BestWorst(10, 5);
 
         int count = 0;
         for( int i=0; i<featuresTest.size(); i++ ){
             INDArray testData = featuresTest.get(i);
             INDArray labels = labelsTest.get(i);
+            INDArray scores = reconstructionErrors(net, testData);
             int nRows = testData.rows();
             for( int j=0; j<nRows; j++){
-                INDArray example = testData.getRow(j);
                 int label = (int)labels.getDouble(j);
-                double score = net.score(new DataSet(example,example));
-                listsByDigit.get(label).add(new ImmutableTriple<>(score, count++, example));
+                selector.add(label, scores.getDouble(j), count++);
             }
         }
 
-        //Sort data by score, separately for each digit
-        Comparator<Triple<Double, Integer, INDArray>> c = new Comparator<Triple<Double, Integer, INDArray>>() {
-            @Override
-            public int compare(Triple<Double, Integer, INDArray> o1, Triple<Double, Integer, INDArray> o2) {
-                return Double.compare(o1.getLeft(),o2.getLeft());
-            }
-        };
-
-        for(List<Triple<Double, Integer, INDArray>> list : listsByDigit.values()){
-            Collections.sort(list, c);
-        }
-
         //Select the 5 best and 5 worst numbers (by reconstruction error) for each digit
         List<INDArray> best = new ArrayList<>(50);
         List<INDArray> worst = new ArrayList<>(50);
         for( int i=0; i<10; i++ ){
-            List<Triple<Double,Integer,INDArray>> list = listsByDigit.get(i);
-            for( int j=0; j<5; j++ ){
-                best.add(list.get(j).getRight());
-                worst.add(list.get(list.size()-j-1).getRight());
-            }
+            for( int index : selector.best(i) ) best.add(getExample(featuresTest, index));
+            for( int index : selector.worst(i) ) worst.add(getExample(featuresTest, index));
         }
 
         //Visualize the best and worst digits
@@ -144,6 +125,120 @@ public class MNISTAnomalyExample {
         worstVisualizer.visualize();
     }
 
+    /**Reconstruction error of each example (row) of a minibatch, with a single forward pass:
+     * the mean squared difference between the output of the autoencoder and its input.
+     * This is the MSE loss of net.score(DataSet) without the regularization term, which is
+     * the same for all examples and so does not change their ranking.
+     *
+     * @param net autoencoder (as many outputs as inputs)
+     * @param features examples, one per row
+     * @return column vector with one reconstruction error per example
+     */
+    public static INDArray reconstructionErrors(MultiLayerNetwork net, INDArray features){
+        INDArray diff = net.output(features, false).sub(features);
+        return diff.muli(diff).mean(1);
+    }
+
+    /**@return example number `index` of the minibatches (counting the rows of all of them in order)
+     */
+    private static INDArray getExample(List<INDArray> batches, int index){
+        for(INDArray batch : batches){
+            if(index < batch.rows()) return batch.getRow(index);
+            index -= batch.rows();
+        }
+        throw new IndexOutOfBoundsException("No example " + index);
+    }
+
+    /**Keeps, for each label, the indexes of the K examples with the lowest scores and of the
+     * K examples with the highest scores seen so far. Each list is a bounded heap of primitive
+     * (score, index) pairs, so memory is O(labels * K) and adding an example is O(log K).
+     */
+    private static class BestWorst {
+        private Heap[] lowest;
+        private Heap[] highest;     //Holds the negated scores
+
+        private BestWorst(int nLabels, int k){
+            lowest = new Heap[nLabels];
+            highest = new Heap[nLabels];
+            for( int i=0; i<nLabels; i++ ){
+                lowest[i] = new Heap(k);
+                highest[i] = new Heap(k);
+            }
+        }
+
+        public void add(int label, double score, int index){
+            lowest[label].offer(score, index);
+            highest[label].offer(-score, index);
+        }
+
+        /**@return indexes of the examples of `label` with the lowest scores, lowest first */
+        public int[] best(int label){
+            return lowest[label].sorted();
+        }
+
+        /**@return indexes of the examples of `label` with the highest scores, highest first */
+        public int[] worst(int label){
+            return highest[label].sorted();
+        }
+    }
+
+    /**The (at most) K smallest keys offered, with their indexes, in a binary max-heap stored
+     * in parallel arrays: the root is the largest key kept, which is the one to replace.
+     */
+    private static class Heap {
+        private double[] keys;
+        private int[] indexes;
+        private int size;
+
+        private Heap(int k){
+            keys = new double[k];
+            indexes = new int[k];
+        }
+
+        public void offer(double key, int index){
+            if(size < keys.length){
+                //Sift up from the new leaf
+                int i = size++;
+                while(i > 0 && keys[(i - 1) / 2] < key){
+                    int parent = (i - 1) / 2;
+                    keys[i] = keys[parent];
+                    indexes[i] = indexes[parent];
+                    i = parent;
+                }
+                keys[i] = key;
+                indexes[i] = index;
+            } else if(size > 0 && key < keys[0]){
+                siftDown(key, index, size);
+            }
+        }
+
+        //Places (key, index) at the root, of a heap with n entries, and restores the heap order
+        private void siftDown(double key, int index, int n){
+            int i = 0;
+            int child;
+            while((child = 2 * i + 1) < n){
+                if(child + 1 < n && keys[child + 1] > keys[child]) child++;
+                if(keys[child] <= key) break;
+                keys[i] = keys[child];
+                indexes[i] = indexes[child];
+                i = child;
+            }
+            keys[i] = key;
+            indexes[i] = index;
+        }
+
+        /**@return the indexes by increasing key (empties the heap) */
+        public int[] sorted(){
+            int[] result = new int[size];
+            while(size > 0){
+                //The root is the largest remaining key
+                result[--size] = indexes[0];
+                siftDown(keys[size], indexes[size], size);
+            }
+            return result;
+        }
+    }
+
     private static class MNISTVisualizer {
         private double imageScale;
         private List<INDArray> digits;  //Digits (as row vectors), one per INDArray
@@ -0,0 +1,134 @@
+package pt.inescn.scratchpad;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Samples the labels 0 to k-1 of a discrete distribution with arbitrary
+ * (non-negative, real) weights in O(1) per sample, using Walker's alias
+ * method. The table is built in O(k) time and memory with Vose's algorithm:
+ * each of the k slots holds the probability of keeping its own label and the
+ * label (alias) that is taken otherwise.
+ *
+ * A sample only needs one uniform value u: slot `(int) (u k)` is selected and
+ * the fractional part of `u k` decides between the label and its alias.
+ *
+ * This replaces expanding the weights into an array with one label per unit
+ * of weight (see `StreamBuilders.toDiscreteDist`), which needs rational
+ * weights and O(sum of weights) memory.
+ *
+ * @see https://en.wikipedia.org/wiki/Alias_method
+ * @see http://www.keithschwarz.com/darts-dice-coins/
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public class AliasSampler implements Variates.IntSampler {
+
+  private final double[] probability; // normalized weights
+  private final double[] keep; // probability of keeping the slot's label
+  private final int[] alias;
+
+  /**
+   * @param weights
+   *          - non-negative weights (need not sum to 1), at least one of
+   *          them positive
+   */
+  public AliasSampler(double[] weights) {
+    int k = weights.length;
+    if (k == 0)
+      throw new IllegalArgumentException("Expected at least one weight");
+    double total = 0.0;
+    for (double w : weights) {
+      if (!(w >= 0.0) || Double.isInfinite(w))
+        throw new IllegalArgumentException("Invalid weight " + w);
+      total += w;
+    }
+    if (!(total > 0.0))
+      throw new IllegalArgumentException("All weights are zero");
+
+    probability = new double[k];
+    keep = new double[k];
+    alias = new int[k];
+    // Scaled so that the mean is 1: slots below 1 (small) are topped up by
+    // slots above 1 (large)
+    double[] p = new double[k];
+    int[] small = new int[k];
+    int[] large = new int[k];
+    int ns = 0;
+    int nl = 0;
+    for (int i = 0; i < k; i++) {
+      probability[i] = weights[i] / total;
+      p[i] = probability[i] * k;
+      if (p[i] < 1.0)
+        small[ns++] = i;
+      else
+        large[nl++] = i;
+    }
+    while (ns > 0 && nl > 0) {
+      int s = small[--ns];
+      int l = large[--nl];
+      keep[s] = p[s];
+      alias[s] = l;
+      p[l] = (p[l] + p[s]) - 1.0;
+      if (p[l] < 1.0)
+        small[ns++] = l;
+      else
+        large[nl++] = l;
+    }
+    // What is left is 1 up to rounding errors
+    while (nl > 0) {
+      int l = large[--nl];
+      keep[l] = 1.0;
+      alias[l] = l;
+    }
+    while (ns > 0) {
+      int s = small[--ns];
+      keep[s] = 1.0;
+      alias[s] = s;
+    }
+  }
+
+  /**
+   * @return the number of labels (k)
+   */
+  public int size() {
+    return keep.length;
+  }
+
+  /**
+   * @return the probability of label `i` (its normalized weight)
+   */
+  public double probability(int i) {
+    return probability[i];
+  }
+
+  /**
+   * @param u
+   *          - uniform value in [0, 1)
+   * @return a label between 0 and k-1
+   */
+  public int sample(double u) {
+    double x = u * keep.length;
+    int i = Math.min((int) x, keep.length - 1);
+    return x - i < keep[i] ? i : alias[i];
+  }
+
+  @Override
+  public int sample(SplittableRandom r) {
+    return sample(r.nextDouble());
+  }
+
+  /**
+   * @return an unbounded stream of labels (see {@link Variates#ints})
+   */
+  public IntStream ints(long seed) {
+    return Variates.ints(seed, Long.MAX_VALUE, this);
+  }
+
+  /**
+   * Fills `a` with the first `a.length` labels of `ints(seed)`, in parallel.
+   */
+  public void fill(long seed, int[] a) {
+    Variates.fill(seed, a, this);
+  }
+}
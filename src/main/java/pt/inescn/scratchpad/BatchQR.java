@@ -0,0 +1,246 @@
+package pt.inescn.scratchpad;
+
+import java.util.List;
+import java.util.stream.IntStream;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * Rank and linear combinations of many small matrices of the same shape (for
+ * example the feature matrix of each window or group). Calling
+ * `QRMatrixToolkit.collinear` for each of them allocates a new factorization,
+ * R, pivot vector and coefficient matrix per call. Here each thread gets its
+ * own workspace, sized once for the `m x n` shape, so factoring a matrix
+ * allocates nothing. Only the results (the ranks and the `LinearCombos`) are
+ * allocated. The matrices are spread across the cores with a parallel
+ * stream.
+ *
+ * The factorization is the pivoted Householder QR (LAPACK's `dgeqp3`, as
+ * MTJ's `QRP`) and the rank uses the tolerance of `UpdatableQR.fromPivoted`.
+ * The coefficients are calculated and zapped as in
+ * `QRMatrixToolkit.linearCombos`.
+ *
+ * The matrices are given either as a list of `DenseMatrix` or as a single
+ * array that holds `count` column major matrices one after the other (matrix
+ * i starts at `i * m * n`).
+ *
+ * @see QRMatrixToolkit#linearCombos
+ * @see Householder
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class BatchQR {
+
+  /**
+   * Per thread work arrays for one `m x n` matrix.
+   */
+  private static final class Workspace {
+    final double[] a;
+    final double[] tau;
+    final int[] p;
+    final double[] vn1;
+    final double[] vn2;
+    final double[] b;
+
+    Workspace(int m, int n) {
+      a = new double[m * n];
+      tau = new double[Math.min(m, n)];
+      p = new int[n];
+      vn1 = new double[n];
+      vn2 = new double[n];
+      b = new double[(n / 2) * (n - n / 2)]; // max of rank * (n - rank)
+    }
+  }
+
+  private final int m;
+  private final int n;
+  private final ThreadLocal<Workspace> workspaces;
+
+  /**
+   * @param m
+   *          - number of rows of each matrix
+   * @param n
+   *          - number of columns of each matrix
+   */
+  public BatchQR(int m, int n) {
+    if (m < 0 || n < 0)
+      throw new IllegalArgumentException("Invalid dimensions " + m + " x " + n);
+    this.m = m;
+    this.n = n;
+    workspaces = ThreadLocal.withInitial(() -> new Workspace(m, n));
+  }
+
+  /**
+   * @return the number of rows of each matrix
+   */
+  public int numRows() {
+    return m;
+  }
+
+  /**
+   * @return the number of columns of each matrix
+   */
+  public int numColumns() {
+    return n;
+  }
+
+  /**
+   * Factors the matrix that starts at `data[off]` into the workspace of the
+   * calling thread.
+   *
+   * @return the rank
+   */
+  private int factor(Workspace w, double[] data, int off) {
+    System.arraycopy(data, off, w.a, 0, m * n);
+    Householder.factorPivoted(w.a, 0, m, n, m, w.tau, 0, w.p, w.vn1, w.vn2);
+    return UpdatableQR.pivotedRank(m, w.a, 0, m, n, m);
+  }
+
+  /**
+   * @param data
+   *          - column major matrices
+   * @param off
+   *          - start of the matrix in `data`
+   * @return the rank of the matrix
+   */
+  public int rankAt(double[] data, int off) {
+    checkRange(data, off, 1);
+    return factor(workspaces.get(), data, off);
+  }
+
+  /**
+   * @param data
+   *          - `count` column major matrices one after the other
+   * @param count
+   * @return the rank of each matrix
+   */
+  public int[] ranks(double[] data, int count) {
+    checkRange(data, 0, count);
+    int[] ranks = new int[count];
+    int size = m * n;
+    IntStream.range(0, count).parallel()
+        .forEach(i -> ranks[i] = factor(workspaces.get(), data, i * size));
+    return ranks;
+  }
+
+  /**
+   * @param matrices
+   *          - `m x n` matrices
+   * @return the rank of each matrix
+   */
+  public int[] ranks(List<DenseMatrix> matrices) {
+    matrices.forEach(this::checkShape);
+    int[] ranks = new int[matrices.size()];
+    IntStream.range(0, ranks.length).parallel().forEach(
+        i -> ranks[i] = factor(workspaces.get(), matrices.get(i).getData(),
+            0));
+    return ranks;
+  }
+
+  /**
+   * The same as `QRMatrixToolkit.linearCombos` for the matrix that starts at
+   * `data[off]` (without checking the results).
+   *
+   * @param data
+   *          - column major matrices
+   * @param off
+   *          - start of the matrix in `data`
+   * @return the linear combinations of the dependent columns
+   */
+  public LinearCombos linearCombosAt(double[] data, int off) {
+    checkRange(data, off, 1);
+    return combos(workspaces.get(), data, off);
+  }
+
+  /**
+   * @param data
+   *          - `count` column major matrices one after the other
+   * @param count
+   * @return the linear combinations of the dependent columns of each matrix
+   */
+  public LinearCombos[] linearCombos(double[] data, int count) {
+    checkRange(data, 0, count);
+    LinearCombos[] combos = new LinearCombos[count];
+    int size = m * n;
+    IntStream.range(0, count).parallel()
+        .forEach(i -> combos[i] = combos(workspaces.get(), data, i * size));
+    return combos;
+  }
+
+  /**
+   * @param matrices
+   *          - `m x n` matrices
+   * @return the linear combinations of the dependent columns of each matrix
+   */
+  public LinearCombos[] linearCombos(List<DenseMatrix> matrices) {
+    matrices.forEach(this::checkShape);
+    LinearCombos[] combos = new LinearCombos[matrices.size()];
+    IntStream.range(0, combos.length).parallel().forEach(
+        i -> combos[i] = combos(workspaces.get(), matrices.get(i).getData(),
+            0));
+    return combos;
+  }
+
+  /**
+   * Solves R11 b = R12 in the workspace (see
+   * `UpdatableQR.dependentCoefficients`), zaps the coefficients below 1e-6
+   * and keeps the non-zero ones (see `QRMatrixToolkit.linearCombos`).
+   */
+  private LinearCombos combos(Workspace w, double[] data, int off) {
+    int rank = factor(w, data, off);
+    int nd = n - rank;
+    if (n == 0 || nd == 0)
+      return LinearCombos.EMPTY;
+    double[] a = w.a;
+    double[] b = w.b;
+    for (int k = 0; k < nd; k++)
+      System.arraycopy(a, (rank + k) * m, b, k * rank, rank);
+    int nnz = 0;
+    for (int k = 0; k < nd; k++) {
+      int bo = k * rank;
+      for (int i = rank - 1; i >= 0; i--) {
+        double s = b[bo + i] / a[i * m + i];
+        b[bo + i] = s;
+        int ci = i * m;
+        for (int l = 0; l < i; l++)
+          b[bo + l] -= s * a[ci + l];
+      }
+      for (int i = 0; i < rank; i++)
+        if (Math.abs(b[bo + i]) < 1e-6)
+          b[bo + i] = 0.0;
+        else
+          nnz++;
+    }
+    int[] dependents = new int[nd];
+    int[] offsets = new int[nd + 1];
+    int[] indices = new int[nnz];
+    double[] coefficients = new double[nnz];
+    int pos = 0;
+    for (int k = 0; k < nd; k++) {
+      dependents[k] = w.p[rank + k];
+      offsets[k] = pos;
+      for (int e = 0; e < rank; e++) {
+        double v = b[k * rank + e];
+        if (v != 0.0) {
+          indices[pos] = w.p[e];
+          coefficients[pos++] = v;
+        }
+      }
+    }
+    offsets[nd] = pos;
+    return new LinearCombos(dependents, offsets, indices, coefficients);
+  }
+
+  private void checkShape(DenseMatrix A) {
+    if (A.numRows() != m || A.numColumns() != n)
+      throw new IllegalArgumentException("Expected a " + m + " x " + n
+          + " matrix but got " + A.numRows() + " x " + A.numColumns());
+  }
+
+  private void checkRange(double[] data, int off, int count) {
+    if (off < 0 || count < 0 || off + (long) count * m * n > data.length)
+      throw new IndexOutOfBoundsException(count + " matrices of " + m + " x "
+          + n + " from " + off + " do not fit in " + data.length
+          + " elements");
+  }
+}
@@ -0,0 +1,160 @@
+package pt.inescn.scratchpad;
+
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Multi-column (multivariate) synthetic data generated in chunks of rows.
+ * Each column is a primitive source that can fill any range of row indices
+ * on its own, so the chunks can be generated in any order and in parallel.
+ * A chunk holds one `double[]` per column and nothing refers back to the
+ * preceding chunks, so long runs can be consumed without keeping their
+ * history (as the memoized Scala `Stream`s of `StreamBuilder.combine` do).
+ *
+ * This is the splittable version of `StreamBuilders.zip` and
+ * `StreamBuilder.combine`: the chunk stream is built on a `LongStream` range
+ * and is therefore ordered, sized and splittable. The random columns give the
+ * same values for the same seed regardless of the chunk size and the number
+ * of threads (see {@link Variates}). Chunk sizes that are multiples of
+ * `Variates.BLOCK` do not generate any sample twice.
+ *
+ * @see Variates
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public class Columns {
+
+  /**
+   * A column of synthetic data.
+   */
+  @FunctionalInterface
+  public interface Column {
+    /**
+     * Writes rows `from` to `from + len - 1` into `out[off]` to `out[off +
+     * len - 1]`. Must not depend on the rows that were filled before.
+     */
+    void fill(long from, double[] out, int off, int len);
+  }
+
+  /**
+   * Rows `start` to `start + length - 1` of all the columns.
+   */
+  public static final class Chunk {
+
+    private final long start;
+    private final double[][] columns;
+
+    Chunk(long start, double[][] columns) {
+      this.start = start;
+      this.columns = columns;
+    }
+
+    /**
+     * @return index of the first row
+     */
+    public long start() {
+      return start;
+    }
+
+    /**
+     * @return number of rows
+     */
+    public int length() {
+      return columns.length == 0 ? 0 : columns[0].length;
+    }
+
+    /**
+     * @return the values of column `j` (not copied)
+     */
+    public double[] column(int j) {
+      return columns[j];
+    }
+
+    /**
+     * @return value of row `i` (relative to the start of the chunk) of column
+     *         `j`
+     */
+    public double get(int i, int j) {
+      return columns[j][i];
+    }
+
+    /**
+     * @return row `i` (relative to the start of the chunk) as a new array
+     */
+    public double[] row(int i) {
+      double[] r = new double[columns.length];
+      for (int j = 0; j < columns.length; j++)
+        r[j] = columns[j][i];
+      return r;
+    }
+  }
+
+  /**
+   * @return random samples (see {@link Variates#fill(long, long, double[],
+   *         int, int, Variates.Sampler)})
+   */
+  public static Column sampled(long seed, Variates.Sampler sampler) {
+    return (from, out, off, len) -> Variates.fill(seed, from, out, off, len,
+        sampler);
+  }
+
+  /**
+   * @return random labels (0 to k-1) as doubles
+   */
+  public static Column discrete(long seed, AliasSampler labels) {
+    return sampled(seed, r -> labels.sample(r));
+  }
+
+  /**
+   * @return `a + i * increment` for row i (as `StreamBuilder.linspace`)
+   */
+  public static Column linspace(double a, double increment) {
+    return (from, out, off, len) -> {
+      for (int i = 0; i < len; i++)
+        out[off + i] = a + (from + i) * increment;
+    };
+  }
+
+  private final Column[] columns;
+
+  public Columns(Column... columns) {
+    this.columns = columns.clone();
+  }
+
+  /**
+   * @return the number of columns
+   */
+  public int numColumns() {
+    return columns.length;
+  }
+
+  /**
+   * @return rows `start` to `start + length - 1` of all columns
+   */
+  public Chunk chunk(long start, int length) {
+    double[][] data = new double[columns.length][];
+    for (int j = 0; j < columns.length; j++) {
+      data[j] = new double[length];
+      columns[j].fill(start, data[j], 0, length);
+    }
+    return new Chunk(start, data);
+  }
+
+  /**
+   * @param size
+   *          - number of rows
+   * @param chunkSize
+   *          - rows per chunk (the last one may be shorter)
+   * @return the chunks in order (use `parallel` to generate them in parallel)
+   */
+  public Stream<Chunk> chunks(long size, int chunkSize) {
+    if (size < 0 || chunkSize <= 0)
+      throw new IllegalArgumentException("Invalid size " + size
+          + " or chunk size " + chunkSize);
+    long n = (size + chunkSize - 1) / chunkSize;
+    return LongStream.range(0, n).mapToObj(c -> {
+      long start = c * chunkSize;
+      return chunk(start, (int) Math.min(chunkSize, size - start));
+    });
+  }
+}
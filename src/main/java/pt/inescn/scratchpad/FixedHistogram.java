@@ -0,0 +1,181 @@
+package pt.inescn.scratchpad;
+
+import java.util.stream.DoubleStream;
+
+/**
+ * Histogram with a fixed number of equal width bins in [lower, upper], filled
+ * one value at a time. Values below or above the range are only counted (as
+ * underflow and overflow). The moments of all values are also kept (see
+ * {@link Moments}). Histograms with the same bins can be merged, so the
+ * histogram of a (parallel) stream is
+ *
+ * <pre>
+ * FixedHistogram.of(stream, lower, upper, bins)
+ * </pre>
+ *
+ * and the values are never stored. The bin centers and counts can be plotted
+ * directly (for example with xchart's `CategoryChart.addSeries`). Use a
+ * {@link TDigest} when the range is not known in advance.
+ *
+ * @see TDigest#counts(double, double, int)
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public class FixedHistogram extends Moments {
+
+  private final double lower;
+  private final double upper;
+  private final double scale; // bins per unit
+  private final long[] counts;
+  private long underflow;
+  private long overflow;
+
+  /**
+   * @param lower
+   *          - start of the first bin
+   * @param upper
+   *          - end of the last bin (included in the last bin)
+   * @param bins
+   *          - number of bins
+   */
+  public FixedHistogram(double lower, double upper, int bins) {
+    if (!(lower < upper) || Double.isInfinite(upper - lower) || bins < 1)
+      throw new IllegalArgumentException("Invalid range [" + lower + ", "
+          + upper + "] or number of bins " + bins);
+    this.lower = lower;
+    this.upper = upper;
+    this.scale = bins / (upper - lower);
+    this.counts = new long[bins];
+  }
+
+  /**
+   * @return the histogram of all the values of `s`
+   */
+  public static FixedHistogram of(DoubleStream s, double lower, double upper,
+      int bins) {
+    return s.collect(() -> new FixedHistogram(lower, upper, bins),
+        FixedHistogram::accept, FixedHistogram::combine);
+  }
+
+  @Override
+  public void accept(double x) {
+    if (x != x)
+      return;
+    super.accept(x);
+    if (x < lower)
+      underflow++;
+    else if (x > upper)
+      overflow++;
+    else
+      counts[Math.min((int) ((x - lower) * scale), counts.length - 1)]++;
+  }
+
+  /**
+   * Adds the counts of `other`, which must be a `FixedHistogram` with the
+   * same bins. A plain `Moments` cannot be added because it has no counts.
+   *
+   * @throws IllegalArgumentException
+   *           if `other` is not a `FixedHistogram` with the same bins
+   */
+  @Override
+  public void combine(Moments other) {
+    if (!(other instanceof FixedHistogram))
+      throw new IllegalArgumentException(
+          "Cannot combine a FixedHistogram with a "
+              + other.getClass().getSimpleName());
+    FixedHistogram h = (FixedHistogram) other;
+    if (h.lower != lower || h.upper != upper
+        || h.counts.length != counts.length)
+      throw new IllegalArgumentException("Histograms have different bins");
+    super.combine(h);
+    for (int i = 0; i < counts.length; i++)
+      counts[i] += h.counts[i];
+    underflow += h.underflow;
+    overflow += h.overflow;
+  }
+
+  public int getBins() {
+    return counts.length;
+  }
+
+  public double getLower() {
+    return lower;
+  }
+
+  public double getUpper() {
+    return upper;
+  }
+
+  public long getUnderflow() {
+    return underflow;
+  }
+
+  public long getOverflow() {
+    return overflow;
+  }
+
+  /**
+   * @return the count of bin `i`
+   */
+  public long getCount(int i) {
+    return counts[i];
+  }
+
+  /**
+   * @return the counts of all bins (for plotting)
+   */
+  public double[] counts() {
+    double[] c = new double[counts.length];
+    for (int i = 0; i < c.length; i++)
+      c[i] = counts[i];
+    return c;
+  }
+
+  /**
+   * @return the centers of all bins (for plotting)
+   */
+  public double[] centers() {
+    return centers(lower, upper, counts.length);
+  }
+
+  /**
+   * @return the centers of `bins` equal width bins in [lower, upper]
+   */
+  public static double[] centers(double lower, double upper, int bins) {
+    double w = (upper - lower) / bins;
+    double[] c = new double[bins];
+    for (int i = 0; i < bins; i++)
+      c[i] = lower + (i + 0.5) * w;
+    return c;
+  }
+
+  /**
+   * Estimates a quantile by linear interpolation within its bin. Quantiles in
+   * the underflow or overflow are interpolated between the minimum or maximum
+   * and the range.
+   *
+   * @param q
+   *          - between 0 and 1
+   * @return the estimated quantile (NaN if there are no values)
+   */
+  public double quantile(double q) {
+    long n = getCount();
+    if (n == 0)
+      return Double.NaN;
+    if (q <= 0)
+      return getMin();
+    if (q >= 1)
+      return getMax();
+    double target = q * n;
+    if (target < underflow)
+      return getMin() + (lower - getMin()) * target / underflow;
+    double seen = underflow;
+    double w = 1.0 / scale;
+    for (int i = 0; i < counts.length; i++) {
+      if (target < seen + counts[i])
+        return lower + (i + (target - seen) / counts[i]) * w;
+      seen += counts[i];
+    }
+    return upper + (getMax() - upper) * (target - seen) / overflow;
+  }
+}
@@ -0,0 +1,215 @@
+package pt.inescn.scratchpad;
+
+/**
+ * Householder QR kernels that work in place on column major `double[]`
+ * arrays. These are straightforward Java versions of LAPACK's `dgeqr2` (no
+ * pivoting) and `dgeqp3`/`dlaqp2` (column pivoting with norm downdating). They
+ * are used on blocks of rows and on small R factors, so no blocking is done.
+ *
+ * After a factorization the upper triangle of the array holds R and the
+ * elements below the diagonal hold the Householder vectors (the first
+ * element of each vector is an implicit 1). Reflector k is H(k) = I - tau[k]
+ * v vᵀ, so that Q = H(0) H(1) ... H(k-1).
+ *
+ * @see http://www.netlib.org/lapack/
+ * @see http://www.netlib.org/lapack/lawnspdf/lawn176.pdf
+ * @see Golub and Van Loan, Matrix Computations, "Householder QR"
+ */
+final class Householder {
+
+  private static final double TOL3Z = Math.sqrt(Math.ulp(1.0));
+
+  private Householder() {
+  }
+
+  /**
+   * Euclidean norm of `len` consecutive elements of `a` starting at `off`.
+   * Scaled to avoid overflow (as LAPACK's `dnrm2`).
+   */
+  static double norm(double[] a, int off, int len) {
+    double scale = 0.0;
+    double ssq = 1.0;
+    for (int i = off; i < off + len; i++) {
+      if (a[i] != 0.0) {
+        double abs = Math.abs(a[i]);
+        if (scale < abs) {
+          ssq = 1.0 + ssq * (scale / abs) * (scale / abs);
+          scale = abs;
+        } else
+          ssq += (abs / scale) * (abs / scale);
+      }
+    }
+    return scale * Math.sqrt(ssq);
+  }
+
+  /**
+   * Generates the reflector that annihilates the `len - 1` elements that
+   * follow `a[off]` (LAPACK's `dlarfg`). On return `a[off]` holds beta and
+   * the following elements hold the vector v (without the leading 1).
+   *
+   * @return tau
+   */
+  static double reflector(double[] a, int off, int len) {
+    if (len <= 1)
+      return 0.0;
+    double xnorm = norm(a, off + 1, len - 1);
+    if (xnorm == 0.0)
+      return 0.0;
+    double alpha = a[off];
+    double beta = -Math.copySign(Math.hypot(alpha, xnorm), alpha);
+    double tau = (beta - alpha) / beta;
+    double s = 1.0 / (alpha - beta);
+    for (int i = off + 1; i < off + len; i++)
+      a[i] *= s;
+    a[off] = beta;
+    return tau;
+  }
+
+  /**
+   * Applies H = I - tau v vᵀ to `len` elements of the column of `c` that
+   * starts at `coff`. The reflector is stored at `v[voff]` (implicit 1) to
+   * `v[voff + len - 1]`.
+   */
+  static void apply(double[] v, int voff, double tau, double[] c, int coff,
+      int len) {
+    if (tau == 0.0)
+      return;
+    double w = c[coff];
+    for (int l = 1; l < len; l++)
+      w += v[voff + l] * c[coff + l];
+    w *= tau;
+    c[coff] -= w;
+    for (int l = 1; l < len; l++)
+      c[coff + l] -= w * v[voff + l];
+  }
+
+  /**
+   * Unpivoted Householder QR of the `m x n` matrix stored in `a` with leading
+   * dimension `lda`.
+   *
+   * @param a
+   *          - column major matrix, overwritten with R and the reflectors
+   * @param m
+   * @param n
+   * @param lda
+   * @param tau
+   *          - at least min(m,n) elements, receives the reflector scalars
+   */
+  static void factor(double[] a, int m, int n, int lda, double[] tau) {
+    int k = Math.min(m, n);
+    for (int i = 0; i < k; i++) {
+      int d = i * lda + i;
+      tau[i] = reflector(a, d, m - i);
+      for (int j = i + 1; j < n; j++)
+        apply(a, d, tau[i], a, j * lda + i, m - i);
+    }
+  }
+
+  /**
+   * Householder QR with column pivoting of the `m x n` matrix stored in `a`
+   * with leading dimension `lda`. At each step the remaining column with the
+   * largest norm is selected. The column norms are downdated and recomputed
+   * when cancellation is detected (as in LAPACK's `dlaqp2`).
+   *
+   * @param a
+   *          - column major matrix, overwritten with R and the reflectors
+   * @param m
+   * @param n
+   * @param lda
+   * @param tau
+   *          - at least min(m,n) elements, receives the reflector scalars
+   * @return the 0-based pivot vector: column j of R is column p[j] of A
+   */
+  static int[] factorPivoted(double[] a, int m, int n, int lda, double[] tau) {
+    return factorPivoted(a, 0, m, n, lda, tau, 0);
+  }
+
+  /**
+   * The same as `factorPivoted(double[], int, int, int, double[])` but on
+   * the `m x n` sub-matrix that starts at `a[off]`. Only the rows of the
+   * sub-matrix are swapped. The reflector scalars are stored from
+   * `tau[tauOff]` onwards.
+   */
+  static int[] factorPivoted(double[] a, int off, int m, int n, int lda,
+      double[] tau, int tauOff) {
+    int[] p = new int[n];
+    factorPivoted(a, off, m, n, lda, tau, tauOff, p, new double[n],
+        new double[n]);
+    return p;
+  }
+
+  /**
+   * The same as `factorPivoted(double[], int, int, int, int, double[], int)`
+   * but nothing is allocated: the pivot vector is written to `p` and `vn1`
+   * and `vn2` (at least n elements each) are used for the column norms.
+   */
+  static void factorPivoted(double[] a, int off, int m, int n, int lda,
+      double[] tau, int tauOff, int[] p, double[] vn1, double[] vn2) {
+    for (int j = 0; j < n; j++) {
+      p[j] = j;
+      vn1[j] = norm(a, off + j * lda, m);
+      vn2[j] = vn1[j];
+    }
+    int k = Math.min(m, n);
+    for (int i = 0; i < k; i++) {
+      int pvt = i;
+      for (int j = i + 1; j < n; j++)
+        if (vn1[j] > vn1[pvt])
+          pvt = j;
+      if (pvt != i) {
+        swapColumns(a, off, m, lda, i, pvt);
+        int t = p[pvt];
+        p[pvt] = p[i];
+        p[i] = t;
+        vn1[pvt] = vn1[i];
+        vn2[pvt] = vn2[i];
+      }
+      int d = off + i * lda + i;
+      double ti = reflector(a, d, m - i);
+      tau[tauOff + i] = ti;
+      for (int j = i + 1; j < n; j++) {
+        int o = off + j * lda;
+        apply(a, d, ti, a, o + i, m - i);
+        if (vn1[j] != 0.0) {
+          double t = Math.abs(a[o + i]) / vn1[j];
+          t = Math.max(0.0, 1.0 - t * t);
+          double t2 = t * (vn1[j] / vn2[j]) * (vn1[j] / vn2[j]);
+          if (t2 <= TOL3Z) {
+            vn1[j] = (i + 1 < m) ? norm(a, o + i + 1, m - i - 1) : 0.0;
+            vn2[j] = vn1[j];
+          } else
+            vn1[j] *= Math.sqrt(t);
+        }
+      }
+    }
+  }
+
+  static void swapColumns(double[] a, int m, int lda, int i, int j) {
+    swapColumns(a, 0, m, lda, i, j);
+  }
+
+  /**
+   * Swaps columns `i` and `j` (`m` rows) of the sub-matrix that starts at
+   * `a[off]`.
+   */
+  static void swapColumns(double[] a, int off, int m, int lda, int i, int j) {
+    int oi = off + i * lda;
+    int oj = off + j * lda;
+    for (int l = 0; l < m; l++) {
+      double t = a[oi + l];
+      a[oi + l] = a[oj + l];
+      a[oj + l] = t;
+    }
+  }
+
+  /**
+   * Copies the upper trapezoidal part of the first `k` rows of the factored
+   * matrix `a` into a new `k x n` column major array.
+   */
+  static double[] upper(double[] a, int k, int n, int lda) {
+    double[] r = new double[k * n];
+    for (int j = 0; j < n; j++)
+      System.arraycopy(a, j * lda, r, j * k, Math.min(k, j + 1));
+    return r;
+  }
+}
@@ -0,0 +1,184 @@
+package pt.inescn.scratchpad;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Basis of the null space (kernel) of an `m x n` matrix A, obtained from the
+ * rank revealing (pivoted) QR factorization of its transpose: AᵀP = QR. If r
+ * is the rank of A, then the last n - r columns of Q span the kernel of A
+ * (see `QRTest`).
+ *
+ * Q (n x n) is never formed. As in LAPACK, the factorization keeps Q as the
+ * product of min(m,n) Householder reflectors stored below the diagonal of R,
+ * so its memory is that of Aᵀ (n x m) instead of n x n. Q or Qᵀ are applied to
+ * vectors on demand and only the n - r kernel vectors are generated. Each one
+ * costs O(n min(m,n)). The residual ||A z||∞ of a vector z is calculated
+ * with a compressed (non-zero only) copy of A, so no matrix product is formed
+ * either.
+ *
+ * @see NullSpace
+ * @see SparseQR
+ * @see QRTest
+ * @see Householder
+ * @see RankEstimator
+ *
+ *      sbt "run-main pt.inescn.scratchpad.QRTest"
+ */
+public class KernelBasis implements NullSpace {
+
+  private final int m; // rows of A
+  private final int n; // columns of A (rows of Aᵀ)
+  private final int k; // number of reflectors
+  private final double[] a; // R and the reflectors of Aᵀ (n x m, ld = n)
+  private final double[] tau;
+  private final int rank;
+  // A in compressed column form: the non zeros of column j are at
+  // colPtr[j] to colPtr[j+1]-1
+  private final int[] colPtr;
+  private final int[] rowIdx;
+  private final double[] vals;
+
+  /**
+   * The rank is max(m,n) × ulp(s1) (see `RankEstimator.ulpRank`).
+   *
+   * @param A
+   *          - the matrix (for example an `OpenMapRealMatrix`), not changed
+   */
+  public KernelBasis(RealMatrix A) {
+    this(A, Double.NaN);
+  }
+
+  /**
+   * The rank is selected with the Frobenius norm drop criterion used by
+   * `RRQRDecomposition.getRank(double)` (see `RankEstimator.normDropRank`).
+   *
+   * Aᵀ is factored in a dense copy, so all m x n entries of `A` are read
+   * with `getEntry` whatever its type. For a sparse `A` use
+   * `SparseQR.kernel` (see `NullSpace.of`), preferably with the compressed
+   * arrays (`SparseQR.kernel(MatrixGenerator.Compressed, double)`).
+   *
+   * @param A
+   *          - the matrix (for example an `OpenMapRealMatrix`), not changed
+   * @param dropThreshold
+   */
+  public KernelBasis(RealMatrix A, double dropThreshold) {
+    m = A.getRowDimension();
+    n = A.getColumnDimension();
+    k = Math.min(m, n);
+    a = new double[n * m];
+    int nnz = 0;
+    colPtr = new int[n + 1];
+    for (int i = 0; i < m; i++)
+      for (int j = 0; j < n; j++) {
+        double v = A.getEntry(i, j);
+        if (v != 0.0) {
+          a[i * n + j] = v; // Aᵀ
+          colPtr[j + 1]++;
+          nnz++;
+        }
+      }
+    for (int j = 0; j < n; j++)
+      colPtr[j + 1] += colPtr[j];
+    rowIdx = new int[nnz];
+    vals = new double[nnz];
+    int[] next = new int[n];
+    System.arraycopy(colPtr, 0, next, 0, n);
+    for (int i = 0; i < m; i++)
+      for (int j = 0; j < n; j++) {
+        double v = a[i * n + j];
+        if (v != 0.0) {
+          rowIdx[next[j]] = i;
+          vals[next[j]++] = v;
+        }
+      }
+    tau = new double[k];
+    Householder.factorPivoted(a, n, m, n, tau);
+    RankEstimator e = new RankEstimator(a, n, m, n);
+    rank = Double.isNaN(dropThreshold) ? e.ulpRank() : Math.min(k,
+        e.normDropRank(dropThreshold));
+  }
+
+  /**
+   * @return the rank of A
+   */
+  @Override
+  public int getRank() {
+    return rank;
+  }
+
+  /**
+   * @return the dimension of the kernel (n - r)
+   */
+  @Override
+  public int getNullity() {
+    return n - rank;
+  }
+
+  /**
+   * Replaces `x` (n elements) with Qᵀx.
+   */
+  @Override
+  public void applyQt(double[] x) {
+    checkLength(x);
+    for (int i = 0; i < k; i++)
+      Householder.apply(a, i * n + i, tau[i], x, i, n - i);
+  }
+
+  /**
+   * Replaces `x` (n elements) with Qx.
+   */
+  @Override
+  public void applyQ(double[] x) {
+    checkLength(x);
+    for (int i = k - 1; i >= 0; i--)
+      Householder.apply(a, i * n + i, tau[i], x, i, n - i);
+  }
+
+  private void checkLength(double[] x) {
+    if (x.length != n)
+      throw new IllegalArgumentException("Expected " + n
+          + " elements but got " + x.length);
+  }
+
+  /**
+   * Column `r + i` of Q. Reflector H(l) only changes the elements from l
+   * onwards, so the reflectors after column `r + i` are skipped.
+   *
+   * @param i
+   *          - index of the kernel vector (0 to n - r - 1)
+   * @return the kernel vector (unit norm)
+   */
+  @Override
+  public double[] kernelVector(int i) {
+    if (i < 0 || i >= getNullity())
+      throw new IndexOutOfBoundsException("Index " + i + " not in [0, "
+          + getNullity() + ")");
+    int j = rank + i;
+    double[] z = new double[n];
+    z[j] = 1.0;
+    for (int l = Math.min(j, k - 1); l >= 0; l--)
+      Householder.apply(a, l * n + l, tau[l], z, l, n - l);
+    return z;
+  }
+
+  /**
+   * @param z
+   *          - vector with n elements
+   * @return the sup norm of A z (calculated with the non-zeros of A only)
+   */
+  @Override
+  public double residual(double[] z) {
+    checkLength(z);
+    double[] y = new double[m];
+    for (int j = 0; j < n; j++) {
+      double zj = z[j];
+      if (zj != 0.0)
+        for (int p = colPtr[j]; p < colPtr[j + 1]; p++)
+          y[rowIdx[p]] += vals[p] * zj;
+    }
+    double max = 0.0;
+    for (double v : y)
+      max = Math.max(max, Math.abs(v));
+    return max;
+  }
+}
@@ -0,0 +1,174 @@
+package pt.inescn.scratchpad;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compact (CSR like) representation of a set of linear combinations of
+ * columns. Combination k states that column `dependent(k)` is equal to the
+ * sum of the columns `indices[offsets[k]]` to `indices[offsets[k+1] - 1]`
+ * multiplied by the respective `coefficients`. Only primitive arrays are
+ * used, so building and traversing the combinations does not create boxed
+ * integers or lists.
+ *
+ * `toList` converts the combinations to the representation used by
+ * `QRMatrixToolkit.collinear`. If the combinations were checked against the
+ * matrix (see `QRMatrixToolkit.linearCombos`) the relative residual of each
+ * one is also kept.
+ *
+ * @see QRMatrixToolkit#linearCombos
+ * @see https://en.wikipedia.org/wiki/Sparse_matrix
+ */
+public class LinearCombos {
+
+  /**
+   * No linear combinations.
+   */
+  public static final LinearCombos EMPTY = new LinearCombos(new int[0],
+      new int[1], new int[0], new double[0]);
+
+  private final int[] dependents;
+  private final int[] offsets;
+  private final int[] indices;
+  private final double[] coefficients;
+  private final double[] residuals; // null if not checked
+
+  /**
+   * No copies are made. The combinations are not checked.
+   *
+   * @param dependents
+   *          - dependent column of each combination
+   * @param offsets
+   *          - start of each combination in `indices` (length is the number
+   *          of combinations + 1)
+   * @param indices
+   *          - independent columns of all combinations
+   * @param coefficients
+   *          - coefficient of each independent column
+   */
+  public LinearCombos(int[] dependents, int[] offsets, int[] indices,
+      double[] coefficients) {
+    this(dependents, offsets, indices, coefficients, null);
+  }
+
+  /**
+   * Same as `LinearCombos(int[], int[], int[], double[])` with the relative
+   * residual of each combination.
+   *
+   * @param residuals
+   *          - relative residual of each combination (null if the
+   *          combinations were not checked)
+   */
+  public LinearCombos(int[] dependents, int[] offsets, int[] indices,
+      double[] coefficients, double[] residuals) {
+    if (offsets.length != dependents.length + 1
+        || indices.length != coefficients.length
+        || offsets[dependents.length] > indices.length
+        || (residuals != null && residuals.length != dependents.length))
+      throw new IllegalArgumentException("Inconsistent array sizes");
+    this.dependents = dependents;
+    this.offsets = offsets;
+    this.indices = indices;
+    this.coefficients = coefficients;
+    this.residuals = residuals;
+  }
+
+  /**
+   * @return number of combinations
+   */
+  public int size() {
+    return dependents.length;
+  }
+
+  /**
+   * @return the dependent column of combination `k`
+   */
+  public int dependent(int k) {
+    return dependents[k];
+  }
+
+  /**
+   * @return the index of the first independent column of combination `k` in
+   *         `indices` and `coefficients`
+   */
+  public int start(int k) {
+    return offsets[k];
+  }
+
+  /**
+   * @return one past the index of the last independent column of combination
+   *         `k` in `indices` and `coefficients`
+   */
+  public int end(int k) {
+    return offsets[k + 1];
+  }
+
+  /**
+   * @return the independent column at position `i` (see `start` and `end`)
+   */
+  public int index(int i) {
+    return indices[i];
+  }
+
+  /**
+   * @return the coefficient at position `i` (see `start` and `end`)
+   */
+  public double coefficient(int i) {
+    return coefficients[i];
+  }
+
+  /**
+   * @return true if the relative residuals are known
+   */
+  public boolean isChecked() {
+    return residuals != null;
+  }
+
+  /**
+   * @return the largest absolute difference between the dependent column of
+   *         combination `k` and the combination, divided by the largest
+   *         absolute value of the dependent column (NaN if not checked)
+   */
+  public double residual(int k) {
+    return residuals == null ? Double.NaN : residuals[k];
+  }
+
+  /**
+   * @return a copy of the dependent columns
+   */
+  public int[] getDependents() {
+    return Arrays.copyOf(dependents, dependents.length);
+  }
+
+  /**
+   * Converts the combinations to lists. The first element of each list is
+   * the dependent column. The rest are the independent ones.
+   *
+   * @return the boxed representation used by `QRMatrixToolkit.collinear`
+   */
+  public List<List<Integer>> toList() {
+    List<List<Integer>> l = new ArrayList<List<Integer>>(size());
+    for (int k = 0; k < size(); k++) {
+      List<Integer> deps = new ArrayList<Integer>(end(k) - start(k) + 1);
+      deps.add(dependents[k]);
+      for (int i = start(k); i < end(k); i++)
+        deps.add(indices[i]);
+      l.add(deps);
+    }
+    return l;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    for (int k = 0; k < size(); k++) {
+      sb.append(dependents[k]).append(" =");
+      for (int i = start(k); i < end(k); i++)
+        sb.append(i == start(k) ? " " : " + ").append(coefficients[i])
+            .append(" * ").append(indices[i]);
+      sb.append('\n');
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,471 @@
+package pt.inescn.scratchpad;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.IntStream;
+
+import no.uib.cipr.matrix.AbstractMatrix;
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * A matrix stored off-heap in a memory mapped file. The file has a small
+ * header (followed by the optional column names) and then the raw doubles in
+ * column major order, which is the layout of MTJ's `DenseMatrix`. The
+ * operating system pages the data in and out as required, so the matrix may
+ * be larger than the heap. Once written (for example from a CSV file with
+ * `fromCSV` or from TableSaw columns with `TableSawUtils.toMappedMatrix`) the
+ * file can be opened again with `open` without parsing anything.
+ *
+ * Layout (little endian):
+ *
+ * <pre>
+ *  0 int  magic ("MTJM")
+ *  4 int  version
+ *  8 int  number of rows
+ * 12 int  number of columns
+ * 16 long offset of the data (multiple of 8)
+ * 24 int  number of bytes of the column names (0 if none)
+ * 28 int  reserved
+ * 32      column names (UTF-8, separated by '\n')
+ * data    doubles, column j starts at data + 8 * j * rows
+ * </pre>
+ *
+ * Because it is an MTJ `Matrix` all of MTJ's generic operations can be used.
+ * `factorize` runs the streaming factorization over blocks of rows (in
+ * parallel) so that only the p x p R factors are kept in memory. The result
+ * can then be used with `QRMatrixToolkit.collinear(UpdatableQR, DenseMatrix,
+ * double, boolean)` as is done by `QRMatrixToolkit.collinear(MappedMatrix,
+ * double)`.
+ *
+ * Note that a single mapping is limited to 2GB so the columns are mapped in
+ * several segments. A mapping is only released when it is garbage collected.
+ *
+ * @see StreamingQR
+ * @see QRMatrixToolkit#collinear(MappedMatrix, double)
+ * @see QRMatrixToolkit#getRankN(MappedMatrix)
+ *
+ *      sbt "run-main pt.inescn.scratchpad.MappedMatrix"
+ */
+public class MappedMatrix extends AbstractMatrix {
+
+  /**
+   * "MTJM"
+   */
+  public static final int MAGIC = 0x4D544A4D;
+  public static final int VERSION = 1;
+  static final int HEADER_BYTES = 32;
+  static final long MAX_SEGMENT_BYTES = Integer.MAX_VALUE;
+  // Rows (and elements) buffered by fromCSV before they are written
+  static final int CSV_BLOCK_ROWS = 4096;
+  static final int CSV_BLOCK_ELEMENTS = 1 << 22;
+
+  private final MappedByteBuffer[] buffers;
+  private final DoubleBuffer[] segments; // groups of whole columns
+  private final int segmentColumns; // number of columns per segment
+  private final List<String> names;
+  private long skipped; // rows of the CSV file that were not written
+
+  private MappedMatrix(int numRows, int numColumns,
+      MappedByteBuffer[] buffers, int segmentColumns, List<String> names) {
+    super(numRows, numColumns);
+    this.buffers = buffers;
+    this.segments = new DoubleBuffer[buffers.length];
+    for (int s = 0; s < buffers.length; s++)
+      segments[s] = buffers[s].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    this.segmentColumns = segmentColumns;
+    this.names = names;
+  }
+
+  /**
+   * Creates (or overwrites) the file and maps it for reading and writing. All
+   * elements are initially 0.
+   *
+   * @param file
+   * @param numRows
+   * @param numColumns
+   * @param names
+   *          - the names of the columns or null
+   * @return the writable matrix
+   * @throws IOException
+   */
+  public static MappedMatrix create(Path file, int numRows, int numColumns,
+      List<String> names) throws IOException {
+    if (numRows < 0 || numColumns < 0)
+      throw new IllegalArgumentException("Invalid dimensions: " + numRows
+          + " x " + numColumns);
+    if (names != null && names.size() != numColumns)
+      throw new IllegalArgumentException("Expected " + numColumns
+          + " names but got " + names.size());
+    byte[] nb = names == null ? new byte[0] : String.join("\n", names)
+        .getBytes(StandardCharsets.UTF_8);
+    long dataOffset = (HEADER_BYTES + nb.length + 7) & ~7L;
+    ByteBuffer header = ByteBuffer.allocate((int) dataOffset).order(
+        ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(numRows).putInt(numColumns)
+        .putLong(dataOffset).putInt(nb.length).putInt(0).put(nb);
+    header.rewind();
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      while (header.hasRemaining())
+        ch.write(header);
+      return map(ch, MapMode.READ_WRITE, numRows, numColumns, dataOffset,
+          names == null ? null : new ArrayList<String>(names));
+    }
+  }
+
+  /**
+   * Maps an existing file for reading only. Calls to `set` or `add` throw a
+   * `ReadOnlyBufferException`.
+   *
+   * @param file
+   * @return the read only matrix
+   * @throws IOException
+   *           if the file is not a matrix file
+   */
+  public static MappedMatrix open(Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(
+          ByteOrder.LITTLE_ENDIAN);
+      while (header.hasRemaining())
+        if (ch.read(header) < 0)
+          throw new IOException("Not a matrix file: " + file);
+      header.flip();
+      if (header.getInt() != MAGIC)
+        throw new IOException("Not a matrix file: " + file);
+      int version = header.getInt();
+      if (version != VERSION)
+        throw new IOException("Unsupported version " + version + ": " + file);
+      int numRows = header.getInt();
+      int numColumns = header.getInt();
+      long dataOffset = header.getLong();
+      int namesBytes = header.getInt();
+      if (dataOffset + 8L * numRows * numColumns > ch.size())
+        throw new IOException("Truncated matrix file: " + file);
+      List<String> names = null;
+      if (namesBytes > 0) {
+        ByteBuffer nb = ByteBuffer.allocate(namesBytes);
+        while (nb.hasRemaining())
+          if (ch.read(nb, HEADER_BYTES + nb.position()) < 0)
+            throw new IOException("Truncated matrix file: " + file);
+        names = Arrays.asList(new String(nb.array(), StandardCharsets.UTF_8)
+            .split("\n", -1));
+      }
+      return map(ch, MapMode.READ_ONLY, numRows, numColumns, dataOffset, names);
+    }
+  }
+
+  private static MappedMatrix map(FileChannel ch, MapMode mode, int numRows,
+      int numColumns, long dataOffset, List<String> names) throws IOException {
+    long columnBytes = 8L * numRows;
+    if (columnBytes > MAX_SEGMENT_BYTES)
+      throw new IllegalArgumentException("A column cannot have more than "
+          + MAX_SEGMENT_BYTES / 8 + " rows");
+    int segmentColumns = columnBytes == 0 ? Math.max(1, numColumns)
+        : (int) Math.min(Math.max(1, numColumns), MAX_SEGMENT_BYTES
+            / columnBytes);
+    int n = (numColumns + segmentColumns - 1) / segmentColumns;
+    MappedByteBuffer[] buffers = new MappedByteBuffer[n];
+    for (int s = 0; s < n; s++) {
+      int cols = Math.min(segmentColumns, numColumns - s * segmentColumns);
+      buffers[s] = ch.map(mode, dataOffset + s * segmentColumns
+          * columnBytes, cols * columnBytes);
+    }
+    return new MappedMatrix(numRows, numColumns, buffers, segmentColumns,
+        names);
+  }
+
+  /**
+   * Reads a CSV file and writes its rows to the matrix file `file`. Rows with
+   * missing (empty or "NA") or non numeric values are skipped and counted
+   * (see `numSkipped`).
+   *
+   * @see #fromCSV(String, boolean, char, Path, NAPolicy)
+   */
+  public static MappedMatrix fromCSV(String csv, boolean header,
+      char delimiter, Path file) throws IOException {
+    return fromCSV(csv, header, delimiter, file, NAPolicy.SKIP);
+  }
+
+  /**
+   * Reads a CSV file and writes its rows to the matrix file `file`. The rows
+   * that are not written are counted (see `numSkipped`). The CSV file is read
+   * twice: first to count the rows and then to write them. Only the
+   * second pass writes: the rows are buffered in blocks of up to
+   * `CSV_BLOCK_ROWS` rows and each column of a block is written as one
+   * contiguous slice, so the file is never held in memory and the mapping is
+   * written sequentially per column.
+   *
+   * @param csv
+   * @param header
+   *          - true if the first line has the column names
+   * @param delimiter
+   * @param file
+   *          - the matrix file that is created
+   * @param na
+   *          - what to do with the missing (empty or "NA") values
+   * @return the writable matrix
+   * @throws IOException
+   *           - also if `na` is `FAIL` and a row cannot be used (the matrix
+   *           file is then not created)
+   */
+  public static MappedMatrix fromCSV(String csv, boolean header,
+      char delimiter, Path file, NAPolicy na) throws IOException {
+    List<String> names = new ArrayList<String>();
+    int rows = 0;
+    long skipped = 0;
+    try (BufferedReader in = Files.newBufferedReader(Paths.get(csv),
+        StandardCharsets.UTF_8)) {
+      String line = in.readLine();
+      if (line == null)
+        throw new IOException("Empty file: " + csv);
+      List<String> first = StreamingQR.split(line, delimiter);
+      for (int j = 0; j < first.size(); j++)
+        names.add(header ? StreamingQR.unquote(first.get(j)) : "Col" + j);
+      double[] row = new double[names.size()];
+      long lineNo = 1;
+      if (!header) {
+        if (StreamingQR.parse(first, row, na, csv, lineNo))
+          rows++;
+        else
+          skipped++;
+      }
+      while ((line = in.readLine()) != null)
+        if (StreamingQR.parse(StreamingQR.split(line, delimiter), row, na,
+            csv, ++lineNo))
+          rows++;
+        else
+          skipped++;
+    }
+    MappedMatrix m = create(file, rows, names.size(), names);
+    m.skipped = skipped;
+    int numColumns = names.size();
+    // Rows are buffered and written one block at a time so that each column
+    // slice is written contiguously (one row at a time would touch a page of
+    // every column)
+    int blockRows = Math.max(1, Math.min(CSV_BLOCK_ROWS,
+        CSV_BLOCK_ELEMENTS / Math.max(1, numColumns)));
+    double[] block = new double[blockRows * numColumns];
+    try (BufferedReader in = Files.newBufferedReader(Paths.get(csv),
+        StandardCharsets.UTF_8)) {
+      double[] row = new double[numColumns];
+      String line;
+      if (header)
+        in.readLine();
+      int i = 0; // rows written
+      int n = 0; // rows in the block
+      long lineNo = header ? 1 : 0;
+      while ((line = in.readLine()) != null && i + n < rows)
+        if (StreamingQR.parse(StreamingQR.split(line, delimiter), row, na,
+            csv, ++lineNo)) {
+          for (int j = 0; j < numColumns; j++)
+            block[j * blockRows + n] = row[j];
+          if (++n == blockRows) {
+            m.setRows(i, n, block, blockRows);
+            i += n;
+            n = 0;
+          }
+        }
+      m.setRows(i, n, block, blockRows);
+    }
+    m.flush();
+    return m;
+  }
+
+  /**
+   * Writes `n` rows starting at `row1` from the column major block `block`
+   * (column j starts at `j * stride`), one contiguous slice per column.
+   */
+  private void setRows(int row1, int n, double[] block, int stride) {
+    if (n > 0)
+      for (int j = 0; j < numColumns; j++)
+        setColumn(j, row1, row1 + n, block, j * stride);
+  }
+
+  /**
+   * @return the number of rows of the CSV file that were skipped if the
+   *         matrix was created by `fromCSV` (0 otherwise)
+   */
+  public long numSkipped() {
+    return skipped;
+  }
+
+  /**
+   * @return the names of the columns (empty if the file has none)
+   */
+  public List<String> getColumnNames() {
+    return names == null ? Collections.<String> emptyList() : Collections
+        .unmodifiableList(names);
+  }
+
+  /**
+   * Writes any changes to the file.
+   */
+  public void flush() {
+    for (MappedByteBuffer b : buffers)
+      b.force();
+  }
+
+  private int index(int row, int column) {
+    return (column % segmentColumns) * numRows + row;
+  }
+
+  @Override
+  public double get(int row, int column) {
+    check(row, column);
+    return segments[column / segmentColumns].get(index(row, column));
+  }
+
+  @Override
+  public void set(int row, int column, double value) {
+    check(row, column);
+    segments[column / segmentColumns].put(index(row, column), value);
+  }
+
+  @Override
+  public void add(int row, int column, double value) {
+    check(row, column);
+    DoubleBuffer s = segments[column / segmentColumns];
+    int i = index(row, column);
+    s.put(i, s.get(i) + value);
+  }
+
+  private void checkRows(int column, int row1, int row2) {
+    if (column < 0 || column >= numColumns)
+      throw new IndexOutOfBoundsException("Column " + column + " not in [0, "
+          + numColumns + ")");
+    if (row1 < 0 || row2 < row1 || row2 > numRows)
+      throw new IndexOutOfBoundsException("Rows [" + row1 + ", " + row2
+          + ") not in [0, " + numRows + ")");
+  }
+
+  /**
+   * Bulk copy of the rows `row1` (inclusive) to `row2` (exclusive) of column
+   * `column` to `dst` starting at `offset`.
+   */
+  public void getColumn(int column, int row1, int row2, double[] dst,
+      int offset) {
+    checkRows(column, row1, row2);
+    // duplicate so that concurrent readers do not share the position
+    DoubleBuffer d = segments[column / segmentColumns].duplicate();
+    d.position(index(row1, column));
+    d.get(dst, offset, row2 - row1);
+  }
+
+  /**
+   * Bulk copy of `src` (starting at `offset`) to the rows `row1` (inclusive)
+   * to `row2` (exclusive) of column `column`.
+   */
+  public void setColumn(int column, int row1, int row2, double[] src,
+      int offset) {
+    checkRows(column, row1, row2);
+    DoubleBuffer d = segments[column / segmentColumns].duplicate();
+    d.position(index(row1, column));
+    d.put(src, offset, row2 - row1);
+  }
+
+  /**
+   * Copies the rows `row1` (inclusive) to `row2` (exclusive) to the heap.
+   *
+   * @return a `DenseMatrix` with the rows
+   */
+  public DenseMatrix rows(int row1, int row2) {
+    int len = row2 - row1;
+    if ((long) len * numColumns > Integer.MAX_VALUE)
+      throw new IllegalArgumentException("Too many elements: " + len + " x "
+          + numColumns);
+    double[] d = new double[len * numColumns];
+    for (int j = 0; j < numColumns; j++)
+      getColumn(j, row1, row2, d, j * len);
+    return new DenseMatrix(len, numColumns, d, false);
+  }
+
+  /**
+   * Copies the whole matrix to the heap (only possible if it fits). For
+   * example use this to run a `QREngine` on the matrix.
+   */
+  @Override
+  public DenseMatrix copy() {
+    return rows(0, numRows);
+  }
+
+  /**
+   * Same as `factorize(int)` with `StreamingQR.DEFAULT_CHUNK_ROWS`.
+   */
+  public UpdatableQR factorize() {
+    return factorize(StreamingQR.DEFAULT_CHUNK_ROWS);
+  }
+
+  /**
+   * Factors the matrix one block of `chunkRows` rows at a time. The blocks
+   * are factored in parallel and their R factors are merged (see
+   * `StreamingQR.merge`). At most one block per thread is on the heap.
+   *
+   * @param chunkRows
+   *          - number of rows of each block
+   * @return the updatable factorization (without Q)
+   */
+  public UpdatableQR factorize(int chunkRows) {
+    if (chunkRows < 1)
+      throw new IllegalArgumentException("Invalid chunkRows = " + chunkRows);
+    int blocks = (numRows + chunkRows - 1) / chunkRows;
+    Optional<StreamingQR> qr = IntStream.range(0, blocks).parallel()
+        .mapToObj(b -> factorRows(b * chunkRows,
+            Math.min(numRows, (b + 1) * chunkRows))).reduce((a, b) -> {
+          a.merge(b);
+          return a;
+        });
+    return qr.orElseGet(() -> new StreamingQR(numColumns)).factorize();
+  }
+
+  private StreamingQR factorRows(int row1, int row2) {
+    int len = row2 - row1;
+    double[] block = rows(row1, row2).getData();
+    StreamingQR qr = new StreamingQR(numColumns, len);
+    double[] row = new double[numColumns];
+    for (int i = 0; i < len; i++) {
+      for (int j = 0; j < numColumns; j++)
+        row[j] = block[j * len + i];
+      qr.addRow(row);
+    }
+    return qr;
+  }
+
+  public static void main(String[] args) throws IOException {
+    String csv = args.length > 0 ? args[0] : "data/mdrrdesc/mdrrdesc.csv";
+    Path file = Paths.get(args.length > 1 ? args[1] : "data/mdrrdesc/mdrrdesc.mtjm");
+    long t0 = System.nanoTime();
+    if (!Files.exists(file))
+      System.out.println("Skipped rows = "
+          + fromCSV(csv, true, ',', file).numSkipped());
+    long t1 = System.nanoTime();
+    MappedMatrix m = open(file);
+    long t2 = System.nanoTime();
+    System.out.println("Rows = " + m.numRows() + " ; columns = "
+        + m.numColumns() + " ; write = " + (t1 - t0) / 1e6 + " ms ; open = "
+        + (t2 - t1) / 1e6 + " ms");
+    List<String> names = m.getColumnNames();
+    for (List<Integer> c : QRMatrixToolkit.collinear(m, 1e-6)) {
+      StringBuilder sb = new StringBuilder(names.get(c.get(0)) + " ~");
+      for (int i = 1; i < c.size(); i++)
+        sb.append(" ").append(names.get(c.get(i)));
+      System.out.println(sb.toString());
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+import org.apache.commons.math3.linear.OpenMapRealMatrix;
+
+/**
+ * Generates reproducible random sparse matrices with a known set of linearly
+ * dependent columns. These are used as the ground truth of the rank and
+ * collinearity tests and benchmarks (see `QRTest` and `QRBenchmark`).
+ *
+ * The work is O(nnz): the rows of the non-zeros of each column are sampled
+ * without replacement (Floyd's algorithm), so no cell is ever tried twice as
+ * in the rejection sampling that was used by `QRTest.generate`. Each column
+ * has its own random number generator split from the seed beforehand, so the
+ * columns can be generated in parallel and the result is the same for any
+ * number of threads.
+ *
+ * `dependent(k, terms)` replaces `k` randomly selected columns with linear
+ * combinations of `terms` of the other (independent) columns. Their indices
+ * and coefficients are returned with the matrix (see
+ * `Compressed.getCombinations`). `condition(kappa)` scales the independent
+ * columns geometrically from 1 down to 1/kappa. For random columns that are
+ * nearly orthogonal (sparse or tall matrices) the condition number of the
+ * independent columns is then close to kappa.
+ *
+ * Example:
+ *
+ * <pre>
+ * MatrixGenerator.Compressed A = new MatrixGenerator(2000, 100, 1234L)
+ *     .density(0.1).dependent(10, 3).condition(1e6).generate();
+ * DenseMatrix D = A.toDenseMatrix();
+ * LinearCombos truth = A.getCombinations();
+ * </pre>
+ *
+ * @see LinearCombos
+ * @see https://doi.org/10.1145/30401.315746
+ *
+ *      sbt "run-main pt.inescn.scratchpad.QRTest"
+ */
+public class MatrixGenerator {
+
+  private final int rows;
+  private final int cols;
+  private final long seed;
+  private double density = 1.0;
+  private double absval = 1.0;
+  private int dependent = 0;
+  private int terms = 0;
+  private double kappa = 1.0;
+  private boolean parallel = true;
+
+  /**
+   * A dense matrix with entries uniform in [-1, 1] and no dependent columns.
+   *
+   * @param rows
+   * @param cols
+   * @param seed
+   *          - the same seed always gives the same matrix
+   */
+  public MatrixGenerator(int rows, int cols, long seed) {
+    if (rows < 0 || cols < 0)
+      throw new IllegalArgumentException("Invalid dimensions " + rows + " x "
+          + cols);
+    this.rows = rows;
+    this.cols = cols;
+    this.seed = seed;
+  }
+
+  /**
+   * @param density
+   *          - fraction of non-zeros of the independent columns. Each column
+   *          has floor(density × rows) or one more non-zeros, so the total
+   *          is density × rows × cols on average.
+   */
+  public MatrixGenerator density(double density) {
+    if (!(density >= 0.0 && density <= 1.0))
+      throw new IllegalArgumentException("Density " + density
+          + " not in [0, 1]");
+    this.density = density;
+    return this;
+  }
+
+  /**
+   * @param absval
+   *          - the entries of the independent columns are uniform in
+   *          [-absval, absval]
+   */
+  public MatrixGenerator range(double absval) {
+    if (!(absval > 0.0))
+      throw new IllegalArgumentException("Range " + absval
+          + " must be positive");
+    this.absval = absval;
+    return this;
+  }
+
+  /**
+   * @param k
+   *          - number of dependent columns
+   * @param terms
+   *          - number of (distinct) independent columns of each combination.
+   *          The coefficients are uniform in ±[0.5, 1.5].
+   */
+  public MatrixGenerator dependent(int k, int terms) {
+    if (k < 0 || k > cols || (k > 0 && (terms < 1 || terms > cols - k)))
+      throw new IllegalArgumentException("Cannot make " + k
+          + " columns out of " + terms + " of the other " + (cols - k));
+    this.dependent = k;
+    this.terms = k > 0 ? terms : 0;
+    return this;
+  }
+
+  /**
+   * @param kappa
+   *          - ratio between the scale of the first and last independent
+   *          column (1 means no scaling)
+   */
+  public MatrixGenerator condition(double kappa) {
+    if (!(kappa >= 1.0) || Double.isInfinite(kappa))
+      throw new IllegalArgumentException("Condition number " + kappa
+          + " must be finite and at least 1");
+    this.kappa = kappa;
+    return this;
+  }
+
+  /**
+   * @param parallel
+   *          - if false all columns are generated by the calling thread (the
+   *          result is the same)
+   */
+  public MatrixGenerator parallel(boolean parallel) {
+    this.parallel = parallel;
+    return this;
+  }
+
+  /**
+   * @return the matrix in compressed column form
+   */
+  public Compressed generate() {
+    SplittableRandom root = new SplittableRandom(seed);
+    // the dependent columns and their combinations
+    int[] deps = sample(root, cols, dependent, new int[cols], 1);
+    Arrays.sort(deps);
+    int ni = cols - dependent;
+    int[] indep = new int[ni];
+    for (int j = 0, d = 0, t = 0; j < cols; j++)
+      if (d < deps.length && deps[d] == j)
+        d++;
+      else
+        indep[t++] = j;
+    int[] offsets = new int[dependent + 1];
+    int[] indices = new int[dependent * terms];
+    double[] coefficients = new double[dependent * terms];
+    int[] stamp = new int[Math.max(ni, 1)];
+    for (int k = 0; k < dependent; k++) {
+      offsets[k + 1] = offsets[k] + terms;
+      int[] pick = sample(root, ni, terms, stamp, k + 2);
+      Arrays.sort(pick);
+      for (int t = 0; t < terms; t++) {
+        int p = offsets[k] + t;
+        indices[p] = indep[pick[t]];
+        coefficients[p] = root.nextDouble(0.5, 1.5)
+            * (root.nextBoolean() ? 1.0 : -1.0);
+      }
+    }
+    LinearCombos combos = new LinearCombos(deps, offsets, indices,
+        coefficients);
+
+    // one generator per column, split in order so the result does not
+    // depend on the threads
+    SplittableRandom[] rngs = new SplittableRandom[cols];
+    for (int j = 0; j < cols; j++)
+      rngs[j] = root.split();
+    int[][] colRows = new int[cols][];
+    double[][] colVals = new double[cols][];
+    double logKappa = Math.log(kappa);
+    ThreadLocal<int[]> marks = ThreadLocal.withInitial(() -> new int[rows]);
+    stream(ni).forEach(t -> {
+      int j = indep[t];
+      SplittableRandom rnd = rngs[j];
+      double nnz = density * rows;
+      int k = (int) nnz;
+      if (k < rows && rnd.nextDouble() < nnz - k)
+        k++;
+      int[] r = sample(rnd, rows, k, marks.get(), j + 1);
+      Arrays.sort(r);
+      double scale = ni > 1 ? Math.exp(-logKappa * t / (ni - 1)) : 1.0;
+      double[] v = new double[k];
+      for (int i = 0; i < k; i++)
+        v[i] = scale * rnd.nextDouble(-absval, absval);
+      colRows[j] = r;
+      colVals[j] = v;
+    });
+    ThreadLocal<double[]> works = ThreadLocal.withInitial(
+        () -> new double[rows]);
+    stream(dependent).forEach(k -> {
+      int[] mark = marks.get();
+      double[] work = works.get();
+      int j = deps[k];
+      int stampValue = j + 1;
+      int total = 0;
+      for (int p = offsets[k]; p < offsets[k + 1]; p++)
+        total += colRows[indices[p]].length;
+      int[] touched = new int[Math.min(rows, total)];
+      int nt = 0;
+      for (int p = offsets[k]; p < offsets[k + 1]; p++) {
+        int c = indices[p];
+        double coef = coefficients[p];
+        int[] r = colRows[c];
+        double[] v = colVals[c];
+        for (int i = 0; i < r.length; i++) {
+          if (mark[r[i]] != stampValue) {
+            mark[r[i]] = stampValue;
+            work[r[i]] = 0.0;
+            touched[nt++] = r[i];
+          }
+          work[r[i]] += coef * v[i];
+        }
+      }
+      Arrays.sort(touched, 0, nt);
+      int nz = 0;
+      for (int t = 0; t < nt; t++)
+        if (work[touched[t]] != 0.0)
+          nz++;
+      int[] r = new int[nz];
+      double[] v = new double[nz];
+      for (int t = 0, q = 0; t < nt; t++) {
+        double w = work[touched[t]];
+        if (w != 0.0) {
+          r[q] = touched[t];
+          v[q++] = w;
+        }
+      }
+      colRows[j] = r;
+      colVals[j] = v;
+    });
+
+    int[] colPtr = new int[cols + 1];
+    for (int j = 0; j < cols; j++)
+      colPtr[j + 1] = colPtr[j] + colRows[j].length;
+    int[] rowIdx = new int[colPtr[cols]];
+    double[] vals = new double[colPtr[cols]];
+    stream(cols).forEach(j -> {
+      System.arraycopy(colRows[j], 0, rowIdx, colPtr[j], colRows[j].length);
+      System.arraycopy(colVals[j], 0, vals, colPtr[j], colVals[j].length);
+    });
+    return new Compressed(rows, cols, true, colPtr, rowIdx, vals, combos);
+  }
+
+  private IntStream stream(int n) {
+    IntStream s = IntStream.range(0, n);
+    return parallel ? s.parallel() : s;
+  }
+
+  /**
+   * Floyd's algorithm: `k` distinct integers in [0, n) in O(k) time. `mark`
+   * (n elements) must not contain `stampValue`, which is written to the
+   * selected positions.
+   */
+  private static int[] sample(SplittableRandom rnd, int n, int k,
+      int[] mark, int stampValue) {
+    int[] s = new int[k];
+    for (int j = n - k, t = 0; j < n; j++, t++) {
+      int r = rnd.nextInt(j + 1);
+      if (mark[r] == stampValue)
+        r = j;
+      mark[r] = stampValue;
+      s[t] = r;
+    }
+    return s;
+  }
+
+  /**
+   * A sparse matrix in compressed column (CSC) or compressed row (CSR) form.
+   * The non-zeros of column (or row) `j` are at `ptr[j]` to `ptr[j+1] - 1` of
+   * `idx` (their row or column) and `vals`, in increasing `idx` order.
+   */
+  public static final class Compressed {
+
+    private final int rows;
+    private final int cols;
+    private final boolean byColumns;
+    private final int[] ptr;
+    private final int[] idx;
+    private final double[] vals;
+    private final LinearCombos combos;
+
+    private Compressed(int rows, int cols, boolean byColumns, int[] ptr,
+        int[] idx, double[] vals, LinearCombos combos) {
+      this.rows = rows;
+      this.cols = cols;
+      this.byColumns = byColumns;
+      this.ptr = ptr;
+      this.idx = idx;
+      this.vals = vals;
+      this.combos = combos;
+    }
+
+    public int getRowDimension() {
+      return rows;
+    }
+
+    public int getColumnDimension() {
+      return cols;
+    }
+
+    /**
+     * @return true if compressed by column (CSC), false if by row (CSR)
+     */
+    public boolean isByColumns() {
+      return byColumns;
+    }
+
+    /**
+     * @return the number of non-zeros
+     */
+    public int nonZeros() {
+      return ptr[ptr.length - 1];
+    }
+
+    /**
+     * The arrays are not copied.
+     */
+    public int[] getPointers() {
+      return ptr;
+    }
+
+    public int[] getIndices() {
+      return idx;
+    }
+
+    public double[] getValues() {
+      return vals;
+    }
+
+    /**
+     * @return the dependent columns of the matrix, with the indices and
+     *         coefficients of the independent columns they are made of. This
+     *         is the same whether the matrix is in CSC or CSR form.
+     */
+    public LinearCombos getCombinations() {
+      return combos;
+    }
+
+    /**
+     * Converts between CSC and CSR in O(nnz + rows + cols). The matrix is
+     * the same, only its storage changes.
+     *
+     * @return the matrix compressed the other way
+     */
+    public Compressed transpose() {
+      int n = byColumns ? rows : cols; // new number of pointers
+      int[] tptr = new int[n + 1];
+      for (int p = 0; p < nonZeros(); p++)
+        tptr[idx[p] + 1]++;
+      for (int i = 0; i < n; i++)
+        tptr[i + 1] += tptr[i];
+      int[] next = Arrays.copyOf(tptr, n);
+      int[] tidx = new int[nonZeros()];
+      double[] tvals = new double[nonZeros()];
+      for (int j = 0; j < ptr.length - 1; j++)
+        for (int p = ptr[j]; p < ptr[j + 1]; p++) {
+          int q = next[idx[p]]++;
+          tidx[q] = j;
+          tvals[q] = vals[p];
+        }
+      return new Compressed(rows, cols, !byColumns, tptr, tidx, tvals, combos);
+    }
+
+    /**
+     * @return the matrix in column major order
+     */
+    public double[] toColumnMajor() {
+      double[] d = new double[rows * cols];
+      for (int j = 0; j < ptr.length - 1; j++)
+        for (int p = ptr[j]; p < ptr[j + 1]; p++)
+          if (byColumns)
+            d[j * rows + idx[p]] = vals[p];
+          else
+            d[idx[p] * rows + j] = vals[p];
+      return d;
+    }
+
+    /**
+     * @return the column major data wrapped in a `DenseMatrix` (not copied)
+     */
+    public DenseMatrix toDenseMatrix() {
+      return new DenseMatrix(rows, cols, toColumnMajor(), false);
+    }
+
+    /**
+     * @return the matrix as an `OpenMapRealMatrix` (for example for
+     *         `SparseQR` or `KernelBasis`)
+     */
+    public OpenMapRealMatrix toOpenMapRealMatrix() {
+      OpenMapRealMatrix A = new OpenMapRealMatrix(rows, cols);
+      for (int j = 0; j < ptr.length - 1; j++)
+        for (int p = ptr[j]; p < ptr[j + 1]; p++)
+          if (byColumns)
+            A.setEntry(idx[p], j, vals[p]);
+          else
+            A.setEntry(j, idx[p], vals[p]);
+      return A;
+    }
+  }
+}
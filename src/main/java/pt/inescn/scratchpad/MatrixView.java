@@ -0,0 +1,271 @@
+package pt.inescn.scratchpad;
+
+import java.util.List;
+
+import no.uib.cipr.matrix.AbstractMatrix;
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.Matrix;
+
+/**
+ * A sub-matrix view over the column major data of a `DenseMatrix`. No data is
+ * copied: reads and writes go directly to the underlying array. The rows are
+ * either a contiguous range or a list of row indexes. The same holds for the
+ * columns. Because it is an MTJ `Matrix`, the view can be used as an operand
+ * of MTJ's multiplications and solvers (for example as the right hand side
+ * of `DenseMatrix.solve` or as the `B` of `DenseMatrix.mult`).
+ *
+ * When the view is the left operand of a multiplication the product is
+ * calculated directly on the underlying array (column by column) instead of
+ * going through `get(i,j)`.
+ *
+ * Note that the view shares the data of the original matrix. Any change to
+ * the original matrix is seen by the view and vice-versa.
+ *
+ * @see QRMatrixToolkit#getSubMarix
+ * @see no.uib.cipr.matrix.DenseMatrix#getData()
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class MatrixView extends AbstractMatrix {
+
+  private final double[] data; // column major data of the original matrix
+  private final int ld; // number of rows of the original matrix
+  private final int rowOffset; // first row (if rows == null)
+  private final int colOffset; // first column (if cols == null)
+  private final int[] rows; // row indexes or null if contiguous
+  private final int[] cols; // column indexes or null if contiguous
+
+  /**
+   * Creates a view over the column major array `data` that has `ld` rows.
+   * No copies are made.
+   *
+   * @param data
+   *          - column major data
+   * @param ld
+   *          - number of rows of the matrix stored in `data`
+   * @param numRows
+   *          - number of rows of the view
+   * @param numColumns
+   *          - number of columns of the view
+   * @param rowOffset
+   *          - first row of the view (ignored if `rows` is not null)
+   * @param colOffset
+   *          - first column of the view (ignored if `cols` is not null)
+   * @param rows
+   *          - row indexes or null for a contiguous range of rows
+   * @param cols
+   *          - column indexes or null for a contiguous range of columns
+   */
+  MatrixView(double[] data, int ld, int numRows, int numColumns,
+      int rowOffset, int colOffset, int[] rows, int[] cols) {
+    super(numRows, numColumns);
+    this.data = data;
+    this.ld = ld;
+    this.rowOffset = rowOffset;
+    this.colOffset = colOffset;
+    this.rows = rows;
+    this.cols = cols;
+  }
+
+  /**
+   * Returns a view of the matrix `am`. It selects rows from `row1` to `row2`
+   * inclusive and columns from `col1` to `col2` inclusive.
+   *
+   * @param am
+   * @param row1
+   * @param row2
+   * @param col1
+   * @param col2
+   * @return view of the sub-matrix
+   */
+  public static MatrixView of(DenseMatrix am, int row1, int row2, int col1,
+      int col2) {
+    checkRange(row1, row2, am.numRows());
+    checkRange(col1, col2, am.numColumns());
+    return new MatrixView(am.getData(), am.numRows(), row2 - row1 + 1, col2
+        - col1 + 1, row1, col1, null, null);
+  }
+
+  /**
+   * Returns a view of the matrix `am`. It selects rows from `row1` to `row2`
+   * inclusive. It only selects the columns listed in `cols`.
+   *
+   * @param am
+   * @param cols
+   * @param row1
+   * @param row2
+   * @return view of the sub-matrix
+   */
+  public static MatrixView of(DenseMatrix am, List<Integer> cols, int row1,
+      int row2) {
+    checkRange(row1, row2, am.numRows());
+    int[] c = toIndexes(cols, am.numColumns());
+    return new MatrixView(am.getData(), am.numRows(), row2 - row1 + 1,
+        c.length, row1, 0, null, c);
+  }
+
+  /**
+   * Returns a view of the matrix `am`. It selects rows from `row1` to `row2`
+   * inclusive. It only selects the columns listed in `cols` (which is not
+   * copied).
+   *
+   * @param am
+   * @param cols
+   * @param row1
+   * @param row2
+   * @return view of the sub-matrix
+   */
+  public static MatrixView of(DenseMatrix am, int[] cols, int row1, int row2) {
+    checkRange(row1, row2, am.numRows());
+    for (int c : cols)
+      if (c < 0 || c >= am.numColumns())
+        throw new IndexOutOfBoundsException("Index " + c + " not in [0, "
+            + am.numColumns() + ")");
+    return new MatrixView(am.getData(), am.numRows(), row2 - row1 + 1,
+        cols.length, row1, 0, null, cols);
+  }
+
+  /**
+   * Returns a view of the matrix `am`. It selects columns from `col1` to
+   * `col2` inclusive. It only selects the rows listed in `rows`.
+   *
+   * @param am
+   * @param col1
+   * @param col2
+   * @param rows
+   * @return view of the sub-matrix
+   */
+  public static MatrixView of(DenseMatrix am, int col1, int col2,
+      List<Integer> rows) {
+    checkRange(col1, col2, am.numColumns());
+    int[] r = toIndexes(rows, am.numRows());
+    return new MatrixView(am.getData(), am.numRows(), r.length, col2 - col1
+        + 1, 0, col1, r, null);
+  }
+
+  /**
+   * Returns a view of a single column `col1` of the matrix `am`. It selects
+   * all rows from `row1` to `row2` inclusive.
+   *
+   * @param am
+   * @param col1
+   * @param row1
+   * @param row2
+   * @return view of the column
+   */
+  public static MatrixView column(DenseMatrix am, int col1, int row1, int row2) {
+    return of(am, row1, row2, col1, col1);
+  }
+
+  private static void checkRange(int first, int last, int size) {
+    if (first < 0 || last >= size || first > last + 1)
+      throw new IndexOutOfBoundsException("Range [" + first + ", " + last
+          + "] not in [0, " + size + ")");
+  }
+
+  private static int[] toIndexes(List<Integer> idxs, int size) {
+    int[] r = new int[idxs.size()];
+    for (int i = 0; i < r.length; i++) {
+      r[i] = idxs.get(i);
+      if (r[i] < 0 || r[i] >= size)
+        throw new IndexOutOfBoundsException("Index " + r[i] + " not in [0, "
+            + size + ")");
+    }
+    return r;
+  }
+
+  /**
+   * Offset of the first element of column `j` in the underlying array.
+   */
+  private int columnStart(int j) {
+    return ld * (cols == null ? colOffset + j : cols[j]);
+  }
+
+  private int row(int i) {
+    return rows == null ? rowOffset + i : rows[i];
+  }
+
+  @Override
+  public double get(int row, int column) {
+    check(row, column);
+    return data[columnStart(column) + row(row)];
+  }
+
+  @Override
+  public void set(int row, int column, double value) {
+    check(row, column);
+    data[columnStart(column) + row(row)] = value;
+  }
+
+  @Override
+  public void add(int row, int column, double value) {
+    check(row, column);
+    data[columnStart(column) + row(row)] += value;
+  }
+
+  /**
+   * Materializes the view. This is the only operation that copies the data.
+   *
+   * @return a new `DenseMatrix` with a copy of the elements of the view
+   */
+  @Override
+  public DenseMatrix copy() {
+    double[] d = new double[numRows * numColumns];
+    for (int j = 0; j < numColumns; j++) {
+      int cs = columnStart(j);
+      if (rows == null)
+        System.arraycopy(data, cs + rowOffset, d, j * numRows, numRows);
+      else
+        for (int i = 0; i < numRows; i++)
+          d[j * numRows + i] = data[cs + rows[i]];
+    }
+    return new DenseMatrix(numRows, numColumns, d, false);
+  }
+
+  /**
+   * C = alpha * A * B + C, where A is this view. If `C` is a `DenseMatrix`
+   * the product is accumulated directly in its data, otherwise the generic
+   * implementation is used.
+   */
+  @Override
+  public Matrix multAdd(double alpha, Matrix B, Matrix C) {
+    if (!(C instanceof DenseMatrix))
+      return super.multAdd(alpha, B, C);
+    checkMultAdd(B, C);
+    if (alpha == 0)
+      return C;
+    double[] cd = ((DenseMatrix) C).getData();
+    int cld = C.numRows();
+    for (int j = 0; j < C.numColumns(); j++) {
+      int co = j * cld;
+      for (int l = 0; l < numColumns; l++) {
+        double s = alpha * B.get(l, j);
+        if (s == 0.0)
+          continue;
+        int cs = columnStart(l);
+        if (rows == null) {
+          int ao = cs + rowOffset;
+          for (int i = 0; i < numRows; i++)
+            cd[co + i] += s * data[ao + i];
+        } else
+          for (int i = 0; i < numRows; i++)
+            cd[co + i] += s * data[cs + rows[i]];
+      }
+    }
+    return C;
+  }
+
+  /**
+   * MTJ only has dense solvers for its own storage formats, so the view is
+   * materialized (once) and solved with `DenseMatrix.solve`.
+   */
+  @Override
+  public Matrix solve(Matrix B, Matrix X) {
+    return copy().solve(B, X);
+  }
+
+  @Override
+  public Matrix transSolve(Matrix B, Matrix X) {
+    return copy().transSolve(B, X);
+  }
+}
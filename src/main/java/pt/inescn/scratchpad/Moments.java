@@ -0,0 +1,117 @@
+package pt.inescn.scratchpad;
+
+import java.util.function.DoubleConsumer;
+import java.util.stream.DoubleStream;
+
+/**
+ * Count, mean, variance, minimum and maximum of a stream of values in one
+ * pass, without keeping the values. The mean and variance are updated with
+ * Welford's method. Partial results (for example of the splits of a parallel
+ * stream) are merged with the pairwise formulas of Chan et al., so
+ *
+ * <pre>
+ * stream.collect(Moments::new, Moments::accept, Moments::combine)
+ * </pre>
+ *
+ * gives the same result (up to rounding) sequentially and in parallel. NaN
+ * values are ignored.
+ *
+ * @see FixedHistogram
+ * @see TDigest
+ * @see https://en.wikipedia.org/wiki/Algorithms_for_calculating_variance#Parallel_algorithm
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public class Moments implements DoubleConsumer {
+
+  private long count;
+  private double mean;
+  private double m2; // sum of squared differences to the mean
+  private double min = Double.POSITIVE_INFINITY;
+  private double max = Double.NEGATIVE_INFINITY;
+
+  /**
+   * @return the moments of all the values of `s`
+   */
+  public static Moments of(DoubleStream s) {
+    return s.collect(Moments::new, Moments::accept, Moments::combine);
+  }
+
+  @Override
+  public void accept(double x) {
+    if (x != x)
+      return;
+    count++;
+    double d = x - mean;
+    mean += d / count;
+    m2 += d * (x - mean);
+    if (x < min)
+      min = x;
+    if (x > max)
+      max = x;
+  }
+
+  /**
+   * Adds the values seen by `other` to these. Subclasses that keep more than
+   * the moments override this and only accept their own type.
+   */
+  public void combine(Moments other) {
+    if (other.count == 0)
+      return;
+    if (count == 0) {
+      count = other.count;
+      mean = other.mean;
+      m2 = other.m2;
+    } else {
+      long n = count + other.count;
+      double d = other.mean - mean;
+      mean += d * other.count / n;
+      m2 += other.m2 + d * d * ((double) count * other.count / n);
+      count = n;
+    }
+    min = Math.min(min, other.min);
+    max = Math.max(max, other.max);
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  /**
+   * @return the mean (NaN if there are no values)
+   */
+  public double getMean() {
+    return count == 0 ? Double.NaN : mean;
+  }
+
+  /**
+   * @return the (unbiased) sample variance
+   */
+  public double getVariance() {
+    return count < 2 ? Double.NaN : m2 / (count - 1);
+  }
+
+  public double getStandardDeviation() {
+    return Math.sqrt(getVariance());
+  }
+
+  /**
+   * @return the smallest value (+infinity if there are no values)
+   */
+  public double getMin() {
+    return min;
+  }
+
+  /**
+   * @return the largest value (-infinity if there are no values)
+   */
+  public double getMax() {
+    return max;
+  }
+
+  @Override
+  public String toString() {
+    return "n=" + count + " mean=" + getMean() + " sd="
+        + getStandardDeviation() + " min=" + min + " max=" + max;
+  }
+}
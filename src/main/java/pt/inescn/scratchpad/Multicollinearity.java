@@ -0,0 +1,257 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * Multicollinearity diagnostics of all the columns (features) of an `m x p`
+ * matrix: the variance inflation factor (VIF) of each column and the
+ * condition number of the correlation matrix. The VIF of column j is 1 / (1 -
+ * R²j), where R²j is the coefficient of determination of the regression of
+ * column j on all the other columns. Instead of p regressions, all VIFs are
+ * read from the diagonal of the inverse of the correlation matrix, which is
+ * obtained from a single Cholesky factorization.
+ *
+ * The mean and the scale of each column are calculated first (O(m p)). The
+ * correlation matrix (the Gram matrix of the standardized columns) is then
+ * accumulated in parallel, one row of the upper triangle per task, by
+ * centering the data as it is read and scaling each sum, so no standardized
+ * copy of the data is made. This is a single O(m p²) pass. The Cholesky
+ * factorization and the inverse are then O(p³) on the small p x p matrix.
+ *
+ * Exact (or numerical) collinearity makes the correlation matrix singular.
+ * When the Cholesky pivot of a column is below max(m,p) × ulp(1) that column
+ * is a linear combination of the preceding columns. It gets an infinite VIF
+ * and is left out of the remaining factorization (as `collinear` reports one
+ * dependent column per combination), so the other VIFs refer to the
+ * independent columns only. Constant columns also get an infinite VIF. The
+ * condition number is infinite if any column was left out.
+ *
+ * A common rule of thumb flags VIFs above 5 or 10 and condition numbers above
+ * 30² (the condition index of the standardized data is the square root of
+ * the condition number of the correlation matrix).
+ *
+ * @see QRMatrixToolkit#collinear(DenseMatrix, double, boolean)
+ * @see https://en.wikipedia.org/wiki/Variance_inflation_factor
+ * @see https://en.wikipedia.org/wiki/Multicollinearity
+ * @see https://en.wikipedia.org/wiki/Condition_number
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class Multicollinearity {
+
+  private final int m;
+  private final int p;
+  private final double[] corr; // p x p column major correlation matrix
+  private final double[] vif;
+  private final int[] dependent;
+  private final double condition;
+
+  /**
+   * @param A
+   *          - the matrix (not changed)
+   */
+  public Multicollinearity(DenseMatrix A) {
+    this(A.getData(), A.numRows(), A.numColumns());
+  }
+
+  /**
+   * @param data
+   *          - column major `m x p` matrix (not changed)
+   * @param m
+   *          - number of rows (observations)
+   * @param p
+   *          - number of columns (features)
+   */
+  public Multicollinearity(double[] data, int m, int p) {
+    if (m < 0 || p < 0 || data.length < (long) m * p)
+      throw new IllegalArgumentException("Invalid dimensions " + m + " x "
+          + p + " for " + data.length + " elements");
+    this.m = m;
+    this.p = p;
+    // Mean and scale of each column: the standardized column j is
+    // (data[j] - mean[j]) * scale[j]
+    double[] mean = new double[p];
+    double[] scale = new double[p];
+    boolean[] constant = new boolean[p];
+    IntStream.range(0, p).parallel().forEach(j -> {
+      int o = j * m;
+      double mu = 0.0;
+      for (int i = 0; i < m; i++)
+        mu += data[o + i];
+      mu /= m;
+      double ss = 0.0;
+      for (int i = 0; i < m; i++) {
+        double d = data[o + i] - mu;
+        ss += d * d;
+      }
+      mean[j] = mu;
+      constant[j] = !(ss > 0.0);
+      scale[j] = constant[j] ? 0.0 : 1.0 / Math.sqrt(ss);
+    });
+    // Gram matrix of the standardized columns, centered as the data is read
+    corr = new double[p * p];
+    IntStream.range(0, p).parallel().forEach(i -> {
+      int oi = i * m;
+      double mi = mean[i];
+      for (int j = i; j < p; j++) {
+        int oj = j * m;
+        double mj = mean[j];
+        double s = 0.0;
+        for (int r = 0; r < m; r++)
+          s += (data[oi + r] - mi) * (data[oj + r] - mj);
+        s *= scale[i] * scale[j];
+        corr[j * p + i] = s;
+        corr[i * p + j] = s;
+      }
+    });
+
+    // Left looking Cholesky (lower triangle of l) that skips the columns
+    // whose pivot is negligible
+    double tol = Math.max(m, p) * Math.ulp(1.0);
+    double[] l = new double[p * p];
+    boolean[] keep = new boolean[p];
+    int q = 0;
+    for (int j = 0; j < p; j++) {
+      if (constant[j])
+        continue;
+      int oj = j * p;
+      for (int i = j; i < p; i++)
+        l[oj + i] = corr[oj + i];
+      for (int k = 0; k < j; k++)
+        if (keep[k]) {
+          int ok = k * p;
+          double ljk = l[ok + j];
+          for (int i = j; i < p; i++)
+            l[oj + i] -= l[ok + i] * ljk;
+        }
+      double d = l[oj + j];
+      if (d < tol) {
+        Arrays.fill(l, oj, oj + p, 0.0);
+        continue;
+      }
+      double s = Math.sqrt(d);
+      for (int i = j; i < p; i++)
+        l[oj + i] /= s;
+      keep[j] = true;
+      q++;
+    }
+    int[] kept = new int[q];
+    dependent = new int[p - q];
+    for (int j = 0, a = 0, b = 0; j < p; j++)
+      if (keep[j])
+        kept[a++] = j;
+      else
+        dependent[b++] = j;
+
+    // Inverse of the (compacted) Cholesky factor L of the independent columns:
+    // inv(C) = inv(L)' inv(L), so the VIF of column j is the squared norm of
+    // column j of inv(L)
+    double[] li = new double[q * q];
+    for (int c = 0; c < q; c++) {
+      int oc = c * q;
+      li[oc + c] = 1.0 / l[kept[c] * p + kept[c]];
+      for (int i = c + 1; i < q; i++) {
+        double s = 0.0;
+        for (int k = c; k < i; k++)
+          s += l[kept[k] * p + kept[i]] * li[oc + k];
+        li[oc + i] = -s / l[kept[i] * p + kept[i]];
+      }
+    }
+    vif = new double[p];
+    Arrays.fill(vif, Double.POSITIVE_INFINITY);
+    for (int c = 0; c < q; c++) {
+      double s = 0.0;
+      for (int i = c; i < q; i++)
+        s += li[c * q + i] * li[c * q + i];
+      vif[kept[c]] = s;
+    }
+
+    // 1-norm condition number ||C|| ||inv(C)|| (all columns are kept, q == p)
+    if (q < p)
+      condition = Double.POSITIVE_INFINITY;
+    else if (p == 0)
+      condition = 1.0;
+    else {
+      double norm = 0.0;
+      double inorm = 0.0;
+      for (int j = 0; j < p; j++) {
+        double s = 0.0;
+        double si = 0.0;
+        for (int i = 0; i < p; i++) {
+          s += Math.abs(corr[j * p + i]);
+          // inv(C)[i][j] = sum_k inv(L)[k][i] inv(L)[k][j]
+          double c = 0.0;
+          for (int k = Math.max(i, j); k < q; k++)
+            c += li[i * q + k] * li[j * q + k];
+          si += Math.abs(c);
+        }
+        norm = Math.max(norm, s);
+        inorm = Math.max(inorm, si);
+      }
+      condition = norm * inorm;
+    }
+  }
+
+  /**
+   * @return number of rows (observations)
+   */
+  public int numRows() {
+    return m;
+  }
+
+  /**
+   * @return number of columns (features)
+   */
+  public int numColumns() {
+    return p;
+  }
+
+  /**
+   * @return the variance inflation factor of column `j`
+   */
+  public double getVIF(int j) {
+    return vif[j];
+  }
+
+  /**
+   * @return a copy of the variance inflation factors of all columns
+   */
+  public double[] getVIFs() {
+    return Arrays.copyOf(vif, p);
+  }
+
+  /**
+   * @param threshold
+   *          - for example 5 or 10
+   * @return the columns whose VIF is above `threshold` (in increasing order)
+   */
+  public int[] above(double threshold) {
+    return IntStream.range(0, p).filter(j -> vif[j] > threshold).toArray();
+  }
+
+  /**
+   * @return the columns that are constant or (numerically) linear
+   *         combinations of the preceding columns (in increasing order)
+   */
+  public int[] getDependent() {
+    return Arrays.copyOf(dependent, dependent.length);
+  }
+
+  /**
+   * @return the 1-norm condition number of the correlation matrix (infinite
+   *         if it is singular)
+   */
+  public double getConditionNumber() {
+    return condition;
+  }
+
+  /**
+   * @return a copy of the correlation matrix (p x p)
+   */
+  public DenseMatrix getCorrelation() {
+    return new DenseMatrix(p, p, Arrays.copyOf(corr, p * p), false);
+  }
+}
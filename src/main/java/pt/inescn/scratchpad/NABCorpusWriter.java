@@ -0,0 +1,539 @@
+package pt.inescn.scratchpad;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Writes synthetic data-sets in the format of the Numenta Anomaly Benchmark
+ * (NAB) so that detectors can be tested on much larger corpora than the ones
+ * in `data/nab`. The output can be read by `NABUtils.loadData` and
+ * `NABUtils.loadJSONLabels`:
+ *
+ * <pre>
+ * root/data/&lt;data-set&gt;/&lt;prefix&gt;0000.csv   timestamp,value
+ * root/labels/combined_windows.json             anomaly windows per file
+ * </pre>
+ *
+ * The values are drawn from a (by default bimodal) mixture model (see
+ * `StreamBuilders.biModalDoubles`) in chunks with {@link Variates}, so a file
+ * only depends on the seed and on its number. Each file has a number of
+ * anomalies injected at random (but known) rows: spikes, level shifts or flat
+ * segments. As in NAB, each anomaly gets a label window that starts before
+ * its first row and whose width is 10% of the file length divided by the
+ * number of anomalies (limited so that windows do not overlap).
+ *
+ * The files are generated in parallel. Each one is written with a
+ * `FileChannel` from a byte buffer that is filled directly: the time-stamps
+ * only format the date when the day changes and the values are written as
+ * fixed point decimals, so no `String` is created per row. The time-stamps
+ * are in UTC with second precision (microseconds are added if the start or
+ * period need them), as in the NAB data files.
+ *
+ * @see https://github.com/numenta/NAB/tree/master/data
+ * @see https://github.com/numenta/NAB/wiki/NAB-Entry-Points#anomaly-windows
+ *
+ *      sbt "run-main pt.inescn.scratchpad.NABCorpusWriter"
+ */
+public class NABCorpusWriter {
+
+  /**
+   * The type of anomaly injected into the values.
+   */
+  public enum Kind {
+    /** a single value is moved by `magnitude` */
+    SPIKE,
+    /** `magnitude` is added to `length` values */
+    LEVEL_SHIFT,
+    /** `length` values are replaced by the value at the start */
+    FLAT
+  }
+
+  /**
+   * An anomaly injected into a file. Rows are counted from 0 (the first row
+   * after the header).
+   */
+  public static final class Anomaly {
+
+    private final Kind kind;
+    private final long row;
+    private final long length;
+    private final double value;
+    private final long windowStart;
+    private final long windowEnd;
+
+    Anomaly(Kind kind, long row, long length, double value, long windowStart,
+        long windowEnd) {
+      this.kind = kind;
+      this.row = row;
+      this.length = length;
+      this.value = value;
+      this.windowStart = windowStart;
+      this.windowEnd = windowEnd;
+    }
+
+    public Kind getKind() {
+      return kind;
+    }
+
+    /**
+     * @return the first anomalous row
+     */
+    public long getRow() {
+      return row;
+    }
+
+    /**
+     * @return number of anomalous rows
+     */
+    public long getLength() {
+      return length;
+    }
+
+    /**
+     * @return the added offset (spikes and shifts) or the constant value
+     *         (flat segments)
+     */
+    public double getValue() {
+      return value;
+    }
+
+    /**
+     * @return first row of the label window
+     */
+    public long getWindowStart() {
+      return windowStart;
+    }
+
+    /**
+     * @return last row of the label window (inclusive, as NAB)
+     */
+    public long getWindowEnd() {
+      return windowEnd;
+    }
+
+    @Override
+    public String toString() {
+      return kind + "@" + row + "(" + length + ", " + value + ")[" + windowStart
+          + ", " + windowEnd + "]";
+    }
+  }
+
+  private static final int BUFFER = 1 << 20;
+  private static final long NANOS_PER_SECOND = 1000000000L;
+  private static final long[] POW10 = { 1L, 10L, 100L, 1000L, 10000L, 100000L,
+      1000000L, 10000000L, 100000000L, 1000000000L };
+
+  private final Path root;
+  private final long seed;
+  private String dataSet = "syntheticWithAnomaly";
+  private String prefix = "synthetic_";
+  private int files = 1;
+  private long rows = 4032; // 14 days every 5 minutes, as the NAB artificial files
+  private long start = Timestamps.toEpochNanos(LocalDateTime.of(2014, 4, 1, 0,
+      0).toInstant(ZoneOffset.UTC));
+  private long period = Duration.ofMinutes(5).toNanos();
+  private Variates.Sampler signal = Variates.mixture(new double[] { 0.5, 0.5 },
+      Variates.normal(20.0, 2.0), Variates.normal(40.0, 3.0));
+  private int anomalies = 3;
+  private Kind[] kinds = Kind.values();
+  private double magnitude = 30.0;
+  private long length = 36;
+  private int decimals = 6;
+  private int chunk = 16 * Variates.BLOCK;
+
+  /**
+   * @param root
+   *          - the data is written to `root/data` and the labels to
+   *          `root/labels`
+   * @param seed
+   *          - the same seed and parameters give the same files
+   */
+  public NABCorpusWriter(Path root, long seed) {
+    this.root = root;
+    this.seed = seed;
+  }
+
+  /**
+   * @param name
+   *          - the directory of the files (and the first part of the file
+   *          names in the labels)
+   */
+  public NABCorpusWriter dataSet(String name) {
+    this.dataSet = name;
+    return this;
+  }
+
+  /**
+   * @param prefix
+   *          - file names are the prefix followed by the file number
+   */
+  public NABCorpusWriter prefix(String prefix) {
+    this.prefix = prefix;
+    return this;
+  }
+
+  public NABCorpusWriter files(int count) {
+    if (count < 0)
+      throw new IllegalArgumentException("Negative number of files " + count);
+    this.files = count;
+    return this;
+  }
+
+  public NABCorpusWriter rows(long count) {
+    if (count < 1)
+      throw new IllegalArgumentException("Expected at least one row " + count);
+    this.rows = count;
+    return this;
+  }
+
+  /**
+   * @param time
+   *          - time-stamp of the first row (UTC)
+   */
+  public NABCorpusWriter start(LocalDateTime time) {
+    this.start = Timestamps.toEpochNanos(time.toInstant(ZoneOffset.UTC));
+    return this;
+  }
+
+  public NABCorpusWriter period(Duration sampling) {
+    if (sampling.isNegative() || sampling.isZero())
+      throw new IllegalArgumentException("Period must be positive " + sampling);
+    this.period = sampling.toNanos();
+    return this;
+  }
+
+  /**
+   * @param values
+   *          - distribution of the values (for example a mixture, see
+   *          `Variates.mixture`)
+   */
+  public NABCorpusWriter signal(Variates.Sampler values) {
+    this.signal = values;
+    return this;
+  }
+
+  /**
+   * @param count
+   *          - number of anomalies per file (0 for no anomalies)
+   * @param types
+   *          - the kinds of anomalies selected at random (all by default)
+   */
+  public NABCorpusWriter anomalies(int count, Kind... types) {
+    if (count < 0)
+      throw new IllegalArgumentException("Negative number of anomalies "
+          + count);
+    this.anomalies = count;
+    if (types.length > 0)
+      this.kinds = types.clone();
+    return this;
+  }
+
+  /**
+   * @param size
+   *          - absolute value added by spikes and level shifts (the sign is
+   *          random)
+   */
+  public NABCorpusWriter magnitude(double size) {
+    this.magnitude = size;
+    return this;
+  }
+
+  /**
+   * @param count
+   *          - number of rows of level shifts and flat segments
+   */
+  public NABCorpusWriter length(long count) {
+    if (count < 1)
+      throw new IllegalArgumentException("Expected at least one row " + count);
+    this.length = count;
+    return this;
+  }
+
+  /**
+   * @param digits
+   *          - number of decimal places of the values (0 to 9)
+   */
+  public NABCorpusWriter decimals(int digits) {
+    if (digits < 0 || digits >= POW10.length)
+      throw new IllegalArgumentException("Invalid number of decimals " + digits);
+    this.decimals = digits;
+    return this;
+  }
+
+  /**
+   * @return the name of file `f` as used in the labels (`data-set/name.csv`)
+   */
+  public String name(int f) {
+    return dataSet + "/" + prefix + String.format("%04d", f) + ".csv";
+  }
+
+  /**
+   * Writes all the files (in parallel) and the labels.
+   *
+   * @return the anomalies of each file (keyed by `name`)
+   * @throws IOException
+   */
+  public Map<String, List<Anomaly>> write() throws IOException {
+    Path data = root.resolve("data");
+    Path labels = root.resolve("labels");
+    Files.createDirectories(data.resolve(dataSet));
+    Files.createDirectories(labels);
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    List<Anomaly>[] injected = new List[files];
+    try {
+      IntStream.range(0, files).parallel().forEach(f -> {
+        try {
+          injected[f] = writeFile(f, data.resolve(name(f)));
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Map<String, List<Anomaly>> all = new TreeMap<>();
+    for (int f = 0; f < files; f++)
+      all.put(name(f), injected[f]);
+    writeWindows(labels.resolve("combined_windows.json"), all);
+    return all;
+  }
+
+  /**
+   * Places the anomalies of a file: one per segment of `rows / anomalies`
+   * rows, starting in the middle half of the segment.
+   */
+  private List<Anomaly> place(SplittableRandom r, long valueSeed) {
+    if (anomalies == 0)
+      return Collections.emptyList();
+    long segment = rows / anomalies;
+    if (segment < 4)
+      throw new IllegalArgumentException(rows + " rows are too few for "
+          + anomalies + " anomalies");
+    long window = Math.max(1, Math.min(rows / 10 / anomalies, segment / 2));
+    List<Anomaly> placed = new ArrayList<>(anomalies);
+    double[] level = new double[1];
+    for (int k = 0; k < anomalies; k++) {
+      long row = k * segment + segment / 4 + r.nextLong(segment / 2);
+      Kind kind = kinds[r.nextInt(kinds.length)];
+      double sign = r.nextBoolean() ? 1.0 : -1.0;
+      long rowsOf = kind == Kind.SPIKE ? 1 : Math.min(length, rows - row);
+      double value = sign * magnitude;
+      if (kind == Kind.FLAT) {
+        Variates.fill(valueSeed, row, level, 0, 1, signal);
+        value = level[0];
+      }
+      long ws = Math.max(0, row - window / 2);
+      long we = Math.min(rows - 1, ws + window);
+      placed.add(new Anomaly(kind, row, rowsOf, value, ws, we));
+    }
+    return placed;
+  }
+
+  private List<Anomaly> writeFile(int f, Path file) throws IOException {
+    SplittableRandom r = Variates.generator(seed, f);
+    long valueSeed = r.nextLong();
+    List<Anomaly> placed = place(r, valueSeed);
+
+    boolean fraction = start % NANOS_PER_SECOND != 0
+        || period % NANOS_PER_SECOND != 0;
+    TimestampFormat time = new TimestampFormat(fraction);
+    byte[] out = new byte[BUFFER];
+    double[] values = new double[(int) Math.min(chunk, rows)];
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      int p = ascii("timestamp,value\n", out, 0);
+      for (long from = 0; from < rows; from += values.length) {
+        int len = (int) Math.min(values.length, rows - from);
+        Variates.fill(valueSeed, from, values, 0, len, signal);
+        inject(placed, from, values, len);
+        for (int i = 0; i < len; i++) {
+          if (p > BUFFER - 64) {
+            flush(channel, out, p);
+            p = 0;
+          }
+          p = time.write(start + (from + i) * period, out, p);
+          out[p++] = ',';
+          p = writeDouble(values[i], decimals, out, p);
+          out[p++] = '\n';
+        }
+      }
+      flush(channel, out, p);
+    }
+    return Collections.unmodifiableList(placed);
+  }
+
+  /**
+   * Applies the anomalies to rows `from` to `from + len - 1`.
+   */
+  private static void inject(List<Anomaly> placed, long from, double[] values,
+      int len) {
+    for (Anomaly a : placed) {
+      long lo = Math.max(a.row, from);
+      long hi = Math.min(a.row + a.length, from + len);
+      for (long i = lo; i < hi; i++) {
+        int j = (int) (i - from);
+        values[j] = a.kind == Kind.FLAT ? a.value : values[j] + a.value;
+      }
+    }
+  }
+
+  private static void flush(FileChannel channel, byte[] out, int len)
+      throws IOException {
+    ByteBuffer b = ByteBuffer.wrap(out, 0, len);
+    while (b.hasRemaining())
+      channel.write(b);
+  }
+
+  /**
+   * Writes the label windows in the layout of NAB's `combined_windows.json`
+   * (time-stamps with microseconds).
+   */
+  private void writeWindows(Path file, Map<String, List<Anomaly>> all)
+      throws IOException {
+    TimestampFormat time = new TimestampFormat(true);
+    byte[] ts = new byte[32];
+    StringBuilder sb = new StringBuilder("{");
+    String sep = "\n";
+    for (Map.Entry<String, List<Anomaly>> e : all.entrySet()) {
+      sb.append(sep).append("    \"").append(e.getKey()).append("\": [");
+      String wsep = "\n";
+      for (Anomaly a : e.getValue()) {
+        sb.append(wsep).append("        [\n");
+        int n = time.write(start + a.windowStart * period, ts, 0);
+        sb.append("            \"").append(new String(ts, 0, n,
+            StandardCharsets.US_ASCII)).append("\",\n");
+        n = time.write(start + a.windowEnd * period, ts, 0);
+        sb.append("            \"").append(new String(ts, 0, n,
+            StandardCharsets.US_ASCII)).append("\"\n");
+        sb.append("        ]");
+        wsep = ",\n";
+      }
+      sb.append(e.getValue().isEmpty() ? "]" : "\n    ]");
+      sep = ",\n";
+    }
+    sb.append("\n}\n");
+    Files.write(file, sb.toString().getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static int ascii(String s, byte[] out, int p) {
+    for (int i = 0; i < s.length(); i++)
+      out[p++] = (byte) s.charAt(i);
+    return p;
+  }
+
+  /**
+   * Writes a non-negative number with at least `digits` digits (zero padded).
+   */
+  private static int writeLong(long v, int digits, byte[] out, int p) {
+    int n = 1;
+    while (n < POW10.length && v >= POW10[n])
+      n++;
+    if (n >= POW10.length) // at least 10 digits
+      n = Long.toString(v).length();
+    n = Math.max(n, digits);
+    for (int i = p + n - 1; i >= p; i--) {
+      out[i] = (byte) ('0' + v % 10);
+      v /= 10;
+    }
+    return p + n;
+  }
+
+  /**
+   * Writes `v` rounded to `decimals` places in fixed point. Values that are
+   * too large (or not finite) use `Double.toString`.
+   */
+  static int writeDouble(double v, int decimals, byte[] out, int p) {
+    double a = Math.abs(v);
+    if (!(a < 1e9))
+      return ascii(Double.toString(v), out, p);
+    long scale = POW10[decimals];
+    long x = Math.round(a * scale);
+    if (v < 0 && x != 0)
+      out[p++] = '-';
+    p = writeLong(x / scale, 1, out, p);
+    if (decimals > 0) {
+      out[p++] = '.';
+      p = writeLong(x % scale, decimals, out, p);
+    }
+    return p;
+  }
+
+  /**
+   * Formats epoch nanoseconds as `yyyy-MM-dd HH:mm:ss[.SSSSSS]` (UTC). The
+   * date is only formatted when the day changes.
+   */
+  static final class TimestampFormat {
+
+    private final boolean fraction;
+    private long day = Long.MIN_VALUE;
+    private final byte[] date = new byte[11];
+
+    TimestampFormat(boolean fraction) {
+      this.fraction = fraction;
+    }
+
+    int write(long nanos, byte[] out, int p) {
+      long seconds = Math.floorDiv(nanos, NANOS_PER_SECOND);
+      long d = Math.floorDiv(seconds, 86400L);
+      if (d != day) {
+        day = d;
+        ascii(LocalDate.ofEpochDay(d).toString() + " ", date, 0);
+      }
+      System.arraycopy(date, 0, out, p, date.length);
+      p += date.length;
+      int s = (int) (seconds - d * 86400L);
+      p = writeLong(s / 3600, 2, out, p);
+      out[p++] = ':';
+      p = writeLong(s / 60 % 60, 2, out, p);
+      out[p++] = ':';
+      p = writeLong(s % 60, 2, out, p);
+      if (fraction) {
+        out[p++] = '.';
+        p = writeLong(Math.floorMod(nanos, NANOS_PER_SECOND) / 1000, 6, out, p);
+      }
+      return p;
+    }
+  }
+
+  /**
+   * Writes a corpus to `./output/nab` and reports the throughput.
+   *
+   * @param args
+   *          - number of files and rows per file (optional)
+   * @throws IOException
+   */
+  public static void main(String[] args) throws IOException {
+    int files = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    long rows = args.length > 1 ? Long.parseLong(args[1]) : 1000000;
+    NABCorpusWriter w = new NABCorpusWriter(Paths.get("output", "nab"), 1234L)
+        .files(files).rows(rows).anomalies(5);
+    long t0 = System.nanoTime();
+    Map<String, List<Anomaly>> all = w.write();
+    long t1 = System.nanoTime();
+    long bytes = 0;
+    for (String name : all.keySet())
+      bytes += Files.size(Paths.get("output", "nab", "data").resolve(name));
+    System.out.println(all.get(w.name(0)));
+    System.out.println(String.format("%d files, %d rows, %d MB in %d ms (%.1f MB/s)",
+        files, files * rows, bytes >> 20, (t1 - t0) / 1000000, bytes / 1e6
+            / ((t1 - t0) / 1e9)));
+  }
+}
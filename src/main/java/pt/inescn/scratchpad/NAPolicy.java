@@ -0,0 +1,31 @@
+package pt.inescn.scratchpad;
+
+/**
+ * What to do with the missing values (empty fields or "NA") of the rows that
+ * are read from a CSV file. Rows that cannot be used for any other reason (a
+ * non numeric value or the wrong number of fields) are skipped, unless the
+ * policy is `FAIL`. The number of rows that were skipped is always available
+ * after reading.
+ *
+ * @see StreamingQR#fromCSV(String, boolean, char, NAPolicy)
+ * @see MappedMatrix#fromCSV(String, boolean, char, java.nio.file.Path,
+ *      NAPolicy)
+ */
+public enum NAPolicy {
+
+  /**
+   * Rows with missing values are skipped.
+   */
+  SKIP,
+
+  /**
+   * Missing values are replaced by 0.
+   */
+  ZERO,
+
+  /**
+   * Reading stops with an `IOException` at the first row that has a missing
+   * value or cannot be used.
+   */
+  FAIL
+}
@@ -0,0 +1,91 @@
+package pt.inescn.scratchpad;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SparseRealMatrix;
+
+/**
+ * Basis of the null space (kernel) of an `m x n` matrix A obtained from a
+ * rank revealing QR factorization of Aᵀ, where Q is kept in compact
+ * (Householder reflector) form. The kernel is spanned by the n - r columns of
+ * Q that do not correspond to the rank r of A.
+ *
+ * @see KernelBasis
+ * @see SparseQR#kernel(RealMatrix, double)
+ */
+public interface NullSpace {
+
+  /**
+   * @return the rank of A
+   */
+  int getRank();
+
+  /**
+   * @return the dimension of the kernel (n - r)
+   */
+  int getNullity();
+
+  /**
+   * Replaces `x` (n elements) with Qᵀx.
+   */
+  void applyQt(double[] x);
+
+  /**
+   * Replaces `x` (n elements) with Qx.
+   */
+  void applyQ(double[] x);
+
+  /**
+   * @param i
+   *          - index of the kernel vector (0 to n - r - 1)
+   * @return the kernel vector (unit norm)
+   */
+  double[] kernelVector(int i);
+
+  /**
+   * @return the orthonormal basis of the kernel (n x (n - r)), one kernel
+   *         vector per column
+   */
+  default DenseMatrix getKernel() {
+    int n = getRank() + getNullity();
+    int nk = getNullity();
+    double[] d = new double[n * nk];
+    for (int i = 0; i < nk; i++)
+      System.arraycopy(kernelVector(i), 0, d, i * n, n);
+    return new DenseMatrix(n, nk, d, false);
+  }
+
+  /**
+   * @param z
+   *          - vector with n elements
+   * @return the sup norm of A z (calculated with the non-zeros of A only)
+   */
+  double residual(double[] z);
+
+  /**
+   * @return the largest residual of the kernel vectors (0 if the kernel is
+   *         {0})
+   */
+  default double maxResidual() {
+    double max = 0.0;
+    for (int i = 0; i < getNullity(); i++)
+      max = Math.max(max, residual(kernelVector(i)));
+    return max;
+  }
+
+  /**
+   * Uses the sparse factorization if `A` is sparse (for example an
+   * `OpenMapRealMatrix`), otherwise the dense one.
+   *
+   * @param A
+   * @param dropThreshold
+   *          - see `RRQRDecomposition.getRank(double)`
+   * @return the kernel of `A`
+   */
+  static NullSpace of(RealMatrix A, double dropThreshold) {
+    if (A instanceof SparseRealMatrix)
+      return SparseQR.kernel(A, dropThreshold);
+    return new KernelBasis(A, dropThreshold);
+  }
+}
@@ -0,0 +1,50 @@
+package pt.inescn.scratchpad;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * The rank revealing QR factorizations that can be used to detect collinear
+ * columns. All of them produce an `UpdatableQR` so that the rest of the
+ * processing (see `QRMatrixToolkit.collinear`) is the same.
+ *
+ * @see QRFactorizer
+ * @see QRMatrixToolkit#collinear(DenseMatrix, double, boolean, QRFactorizer)
+ * @see QRMatrixToolkit#findLinearCombos(DenseMatrix, double, boolean,
+ *      QRFactorizer)
+ */
+public enum QREngine implements QRFactorizer {
+
+  /**
+   * MTJ's `QRP` (LAPACK's `dgeqp3`) on the full matrix. Single threaded.
+   */
+  QRP {
+    @Override
+    public UpdatableQR factorize(DenseMatrix A) {
+      return UpdatableQR.factorize(A, false);
+    }
+  },
+
+  /**
+   * Parallel tall and skinny QR. Use this when the matrix has many more rows
+   * than columns.
+   */
+  TSQR {
+    @Override
+    public UpdatableQR factorize(DenseMatrix A) {
+      return pt.inescn.scratchpad.TSQR.factorize(A);
+    }
+  },
+
+  /**
+   * Randomized blocked rank revealing QR with the default parameters (see
+   * `RandomizedQR`). Use this when the numerical rank is much lower than the
+   * number of columns. To change the block size, oversampling, power
+   * iterations or seed use a `new RandomizedQR(...)` instead of this engine.
+   */
+  RANDOMIZED {
+    @Override
+    public UpdatableQR factorize(DenseMatrix A) {
+      return new RandomizedQR().factorize(A);
+    }
+  };
+}
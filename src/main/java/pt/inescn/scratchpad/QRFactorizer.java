@@ -0,0 +1,25 @@
+package pt.inescn.scratchpad;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * A rank revealing QR factorization that produces an `UpdatableQR`. The
+ * `QREngine` constants use fixed (default) parameters. A configured
+ * factorization, for example a `new RandomizedQR(...)` with a different
+ * oversampling or number of power iterations, can be used wherever an engine
+ * is accepted.
+ *
+ * @see QREngine
+ * @see RandomizedQR
+ * @see QRMatrixToolkit#collinear(DenseMatrix, double, boolean, QRFactorizer)
+ */
+public interface QRFactorizer {
+
+  /**
+   * Factors the matrix `A` (which is not changed).
+   *
+   * @param A
+   * @return the updatable factorization of `A` (without Q)
+   */
+  UpdatableQR factorize(DenseMatrix A);
+}
@@ -40,31 +40,19 @@ public class QRIssue {
    * the Frobenius norm of the previous submatrix, rNorm is is the Frobenius
    * norm of the complete matrix
    * </p>
+   * <p>
+   * All the trailing norms are calculated in a single pass over R (see
+   * `RankEstimator`).
+   * </p>
+   *
+   * @see RankEstimator#normDropRank(double)
    *
    * @param dropThreshold
    *          threshold triggering rank computation
    * @return effective numerical matrix rank
    */
   static public int getRank(final QRDecomposition qr, final double dropThreshold) {
-    RealMatrix r = qr.getR();
-    int rows = r.getRowDimension();
-    int columns = r.getColumnDimension();
-    int rank = 1;
-    double lastNorm = r.getFrobeniusNorm();
-    double rNorm = lastNorm;
-    System.out.println("rank = 0  ratio = "+rNorm);
-    while (rank < FastMath.min(rows, columns)) {
-      double thisNorm = r.getSubMatrix(rank, rows - 1, rank, columns - 1)
-          .getFrobeniusNorm();
-      double ratio = (thisNorm / lastNorm) * rNorm ;
-      System.out.println("rank = " + rank + "  ratio = "+ratio);
-      if (thisNorm == 0 ||  ratio < dropThreshold) {
-        break;
-      }
-      lastNorm = thisNorm;
-      rank++;
-    }
-    return rank;
+    return new RankEstimator(qr.getR()).normDropRank(dropThreshold);
   }
 
   /**
@@ -3,17 +3,14 @@ package pt.inescn.scratchpad;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 import no.uib.cipr.matrix.DenseMatrix;
 import no.uib.cipr.matrix.Matrix;
-import no.uib.cipr.matrix.QRP;
 
 import org.apache.commons.math3.linear.RRQRDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
+import org.apache.commons.math3.linear.SparseRealMatrix;
 import org.apache.commons.math3.util.FastMath;
 //import org.apache.commons.math3.linear.QRDecomposition;
 //import org.apache.commons.math3.linear.RealMatrix;
@@ -86,6 +83,12 @@ public class QRMatrixToolkit {
 
   static final boolean debug = false;
 
+  /**
+   * Regression coefficients with a smaller absolute value are set to 0 (as
+   * Caret does).
+   */
+  public static final double ZAP_THRESHOLD = 1e-6;
+
   public static void printd(String s) {
     if (debug)
       System.out.print(s);
@@ -171,9 +174,10 @@ public class QRMatrixToolkit {
   /**
    * Returns sub-matrix from the matrix `am`. It selects rows from `row1` to
    * `row2` inclusive. It only selects and returns the columns listed in `cols`.
-   * Note that this function performs a deep copy twice.
+   * Note that this function performs a deep copy. If `am` is a `DenseMatrix`
+   * use a `MatrixView` to avoid the copy.
    * 
-   * TODO: add to Matrix class
+   * @see MatrixView#of(DenseMatrix, List, int, int)
    * 
    * @param am
    * @param cols
@@ -183,26 +187,29 @@ public class QRMatrixToolkit {
    */
   public static DenseMatrix getSubMarix(Matrix am, List<Integer> cols,
       int row1, int row2) {
+    if (am instanceof DenseMatrix)
+      return MatrixView.of((DenseMatrix) am, cols, row1, row2).copy();
     int num_rows = row2 - row1 + 1;
     // printlnd("num_rows : "+ num_rows);
     // printlnd("num_cols : "+ cols.size());
-    double[][] nam = new double[num_rows][cols.size()];
-    for (int i = row1; i <= row2; i++) {
-      for (int j = 0; j < cols.size(); j++) {
+    DenseMatrix nam = new DenseMatrix(num_rows, cols.size());
+    for (int j = 0; j < cols.size(); j++) {
+      for (int i = row1; i <= row2; i++) {
         // printlnd("(" + (i-row1) + "," + cols.get(j) + ") -> (" + i + ", " + j
         // + ")");
-        nam[i - row1][j] = am.get(i, cols.get(j));
+        nam.set(i - row1, j, am.get(i, cols.get(j)));
       }
     }
-    return new DenseMatrix(nam);
+    return nam;
   }
 
   /**
    * Returns sub-matrix from the matrix `am`. It selects columns from `col1` to
    * `col2` inclusive. It only selects and returns the rows listed in `rows`.
-   * Note that this function performs a deep copy twice.
+   * Note that this function performs a deep copy. If `am` is a `DenseMatrix`
+   * use a `MatrixView` to avoid the copy.
    * 
-   * TODO: add to Matrix class
+   * @see MatrixView#of(DenseMatrix, int, int, List)
    * 
    * @param am
    * @param col1
@@ -212,23 +219,26 @@ public class QRMatrixToolkit {
    */
   public static DenseMatrix getSubMarix(Matrix am, int col1, int col2,
       List<Integer> rows) {
+    if (am instanceof DenseMatrix)
+      return MatrixView.of((DenseMatrix) am, col1, col2, rows).copy();
     int num_cols = col2 - col1 + 1;
     // printlnd("num_rows : "+ rows.size());
     // printlnd("num_cols : "+ num_cols);
-    double[][] nam = new double[rows.size()][num_cols];
-    for (int i = 0; i < rows.size(); i++) {
-      for (int j = col1; j <= col2; j++) {
+    DenseMatrix nam = new DenseMatrix(rows.size(), num_cols);
+    for (int j = col1; j <= col2; j++) {
+      for (int i = 0; i < rows.size(); i++) {
         // printlnd("(" + rows.get(i) + "," + j + ") -> (" + i + ", "
         // + (j-col1) + ")");
-        nam[i][j - col1] = am.get(rows.get(i), j);
+        nam.set(i, j - col1, am.get(rows.get(i), j));
       }
     }
-    return new DenseMatrix(nam);
+    return nam;
   }
 
   /**
    * Returns a single column from the matrix `am`. It selects column `col1` and
-   * all rows from `row1` to `row2` inclusive.
+   * all rows from `row1` to `row2` inclusive. This is a copy (see
+   * `MatrixView.column` for a view).
    * 
    * @param am
    * @param col1
@@ -252,7 +262,7 @@ public class QRMatrixToolkit {
    * @param eps
    * @return true if equal otherwise false
    */
-  public static boolean isEqual(DenseMatrix a, DenseMatrix b, double eps) {
+  public static boolean isEqual(Matrix a, Matrix b, double eps) {
     if (a.numColumns() != b.numColumns())
       return false;
     if (a.numRows() != b.numRows())
@@ -317,8 +327,14 @@ public class QRMatrixToolkit {
    *
    * If the boolean `checkResults` is set to `true`, then each set of regression
    * coefficients that are found are multiplied with the original Matrix's
-   * independent columns and checked if it equals the original independent
-   * column.
+   * independent columns and checked if it equals the original dependent
+   * column. All columns are rebuilt with a single matrix product. The largest
+   * difference, relative to the largest absolute value of the dependent
+   * column, must not exceed `max(dropThreshold, ZAP_THRESHOLD)` plus the
+   * error introduced by zapping the coefficients and by rounding (see
+   * `tolerances`), otherwise an `IllegalStateException` is thrown (with or
+   * without assertions enabled).
+   * `linearCombos` also returns these residuals.
    * 
    * We identify and select the collinear coefficients if they are not zero. We
    * assume zero if an element has an absolute value less than `dropThreshold`
@@ -333,6 +349,7 @@ public class QRMatrixToolkit {
    * @see https://en.wikipedia.org/wiki/Multicollinearity
    * @see https://en.wikipedia.org/wiki/Condition_number
    * @See https://github.com/topepo/caret/issues/607
+   * @see Multicollinearity
    * 
    * @param B
    * @param dropThreshold
@@ -342,99 +359,334 @@ public class QRMatrixToolkit {
    */
   public static List<List<Integer>> collinear(DenseMatrix B,
       double dropThreshold, boolean checkResults) {
-    // List<Integer> l = new ArrayList<Integer>();
-    List<List<Integer>> l = new ArrayList<List<Integer>>();
+    return collinear(B, dropThreshold, checkResults, QREngine.QRP);
+  }
 
+  /**
+   * This is the same as `collinear(DenseMatrix, double, boolean)` but the
+   * factorization is done with the selected `engine`. For example use
+   * `QREngine.TSQR` for tall matrices or `QREngine.RANDOMIZED` for wide
+   * matrices with a low rank. To set the parameters of the factorization
+   * pass a configured one instead of an engine, for example
+   * `new RandomizedQR(blockSize, oversampling, powerIterations, seed)`.
+   * 
+   * @see QREngine
+   * @see QRFactorizer
+   * 
+   * @param B
+   * @param dropThreshold
+   * @param checkResults
+   * @param engine
+   * @return sets of collinear columns of the matrix. The first element of each
+   *         sublist is the dependent column. The rest are the independent ones.
+   */
+  public static List<List<Integer>> collinear(DenseMatrix B,
+      double dropThreshold, boolean checkResults, QRFactorizer engine) {
     // R <- qr.R(qrObj) # extract R matrix
-    QRP qr = QRP.factorize(B);
-    DenseMatrix r = qr.getR();
+    UpdatableQR qr = engine.factorize(B);
+    return collinear(qr, B, dropThreshold, checkResults);
+  }
+
+  /**
+   * This is the same as `collinear(DenseMatrix, double, boolean,
+   * QRFactorizer)` but the matrix is given as a single column major buffer (MTJ's native
+   * layout), for example one filled directly from the TableSaw columns by
+   * `TableSawUtils.toColumnMajor`. The buffer is wrapped, not copied, and is
+   * not changed.
+   *
+   * @see pt.inescn.utils.TableSawUtils#toColumnMajor
+   *
+   * @param data
+   *          - column major data (column j starts at `j * numRows`)
+   * @param numRows
+   * @param numColumns
+   * @param dropThreshold
+   * @param checkResults
+   * @param engine
+   * @return sets of collinear columns of the matrix. The first element of each
+   *         sublist is the dependent column. The rest are the independent ones.
+   */
+  public static List<List<Integer>> collinear(double[] data, int numRows,
+      int numColumns, double dropThreshold, boolean checkResults,
+      QRFactorizer engine) {
+    if ((long) numRows * numColumns != data.length)
+      throw new IllegalArgumentException("Expected " + numRows + " x "
+          + numColumns + " elements but got " + data.length);
+    DenseMatrix B = new DenseMatrix(numRows, numColumns, data, false);
+    return collinear(B, dropThreshold, checkResults, engine);
+  }
+
+  /**
+   * This is the same as `collinear(DenseMatrix, double, boolean)` but the
+   * matrix is stored off-heap in a memory mapped file. The R factor is
+   * calculated one block of rows at a time (see `MappedMatrix.factorize`), so
+   * the matrix need not fit in the heap. The results are not checked because
+   * that would require the whole matrix.
+   * 
+   * @see MappedMatrix
+   * 
+   * @param B
+   * @param dropThreshold
+   * @return sets of collinear columns of the matrix. The first element of each
+   *         sublist is the dependent column. The rest are the independent ones.
+   */
+  public static List<List<Integer>> collinear(MappedMatrix B,
+      double dropThreshold) {
+    return collinear(B.factorize(), null, dropThreshold, false);
+  }
+
+  /**
+   * This is the same as `collinear(DenseMatrix, double, boolean)` but the
+   * matrix is sparse (for example an `OpenMapRealMatrix`). It is factored with
+   * the sparse rank revealing QR, so it is never made dense. Only the compact
+   * R (rank x n) is. The results are not checked. Note that all m x n
+   * entries of `B` are read to find its non-zeros (see
+   * `SparseQR.factorize(RealMatrix, double)`).
+   * 
+   * @see SparseQR
+   * 
+   * @param B
+   * @param dropThreshold
+   * @return sets of collinear columns of the matrix. The first element of each
+   *         sublist is the dependent column. The rest are the independent ones.
+   */
+  public static List<List<Integer>> collinear(SparseRealMatrix B,
+      double dropThreshold) {
+    UpdatableQR qr = SparseQR.factorize(B, Double.NaN).toUpdatableQR();
+    return collinear(qr, null, dropThreshold, false);
+  }
+
+  /**
+   * This is the same as `collinear(SparseRealMatrix, double)` but the
+   * non-zeros are taken directly from the compressed arrays of `B`, so the
+   * cost depends on the non-zeros only.
+   * 
+   * @see SparseQR#factorize(MatrixGenerator.Compressed, double)
+   * 
+   * @param B
+   * @param dropThreshold
+   * @return sets of collinear columns of the matrix. The first element of each
+   *         sublist is the dependent column. The rest are the independent ones.
+   */
+  public static List<List<Integer>> collinear(MatrixGenerator.Compressed B,
+      double dropThreshold) {
+    UpdatableQR qr = SparseQR.factorize(B, Double.NaN).toUpdatableQR();
+    return collinear(qr, null, dropThreshold, false);
+  }
+
+  /**
+   * This is the same as `collinear(DenseMatrix, double, boolean)` but works on
+   * an existing (possibly updated) factorization. The column indexes that are
+   * returned are those used to tag the columns of the factorization (the
+   * original column indexes of `B`). No new factorization is done: the
+   * regression coefficients are obtained by back substitution on R, so the
+   * cost does not depend on the number of rows of `B`.
+   * 
+   * If the boolean `checkResults` is set to `true` then the matrix `B` is
+   * used to check the results, otherwise it can be null. All dependent
+   * columns are checked at once (see `maxResiduals`).
+   * 
+   * @see UpdatableQR
+   * 
+   * @param qr
+   * @param B
+   * @param dropThreshold
+   * @param checkResults
+   * @return sets of collinear columns of the matrix. The first element of each
+   *         sublist is the dependent column. The rest are the independent ones.
+   */
+  public static List<List<Integer>> collinear(UpdatableQR qr, DenseMatrix B,
+      double dropThreshold, boolean checkResults) {
+    return linearCombos(qr, B, dropThreshold, checkResults).toList();
+  }
+
+  /**
+   * This is the same as `collinear(UpdatableQR, DenseMatrix, double, boolean)`
+   * but returns the linear combinations and their coefficients in a compact
+   * form. Only primitive arrays are allocated.
+   * 
+   * @see LinearCombos
+   * 
+   * @param qr
+   * @param B
+   * @param dropThreshold
+   * @param checkResults
+   * @return the linear combinations of the dependent columns (with their
+   *         relative residuals if `checkResults` is true)
+   * @throws IllegalStateException
+   *           if `checkResults` is true and a relative residual is larger
+   *           than its tolerance (see `tolerances`)
+   */
+  public static LinearCombos linearCombos(UpdatableQR qr, DenseMatrix B,
+      double dropThreshold, boolean checkResults) {
     // numColumns <- dim(R)[2] # number of columns in R
-    int numColumns = r.numColumns();
+    int numColumns = qr.numColumns();
     // rank <- qrObj$rank # number of independent columns
     int rank = qr.getRank();
     printlnd("Rank R = " + rank);
     // pivot <- qrObj$pivot # get the pivot vector
-    // Matrix pivotm = qr.getP();
-    int[] pivotm = qr.getPVector();
+    int[] pivotm = qr.getColumnIds();
 
     // if (is.null(numColumns) || rank == numColumns)
     if ((numColumns == 0) || (rank == numColumns)) {
       // list() # there are no linear combinations
       // there are no linear combinations
       printlnd("Empty: rank = " + rank);
-      return l;
-    } else {
-      // p1 <- 1:rank
-      // X <- R[p1, p1] # extract the independent columns
-      printlnd("R :\n" + r.toString());
-      double[][] x = subTopLeftMatrix(r, rank, rank);
-      DenseMatrix X = new DenseMatrix(x);
-      printlnd("X :\n" + X.toString());
-      // Y <- R[p1, -p1, drop = FALSE] # extract the dependent columns
-      double[][] y = subTopRightMatrix(r, rank, rank);
-      DenseMatrix Y = new DenseMatrix(y);
-      printlnd("Y :\n" + Y.toString());
-      // b <- qr(X) # factor the independent columns
-      QRP bqr = QRP.factorize(X);
-      DenseMatrix br = bqr.getR();
-      DenseMatrix b = new DenseMatrix(y.length, y[0].length);
-      br.solve(new DenseMatrix(y), b);
-      printlnd("b :\n" + b.toString());
-      // b <- qr.coef(b, Y) # get regression coefficients of the dependent
-      // columns
-      // b[abs(b) < 1e-6] <- 0 # zap small values
-      zap(b, 1e-6);
-      printlnd("zapped(b) :\n" + b.toString());
-
-      // Testing y = br*s
-      DenseMatrix yt = new DenseMatrix(y.length, y[0].length);
-      br.mult(b, yt);
-      printlnd("yt :\n" + yt.toString());
-
-      printlnd("pivot :\n" + Arrays.toString(pivotm));
-      printlnd("br :\n" + br.toString());
-      // # generate a list with one element for each dependent column
-      // lapply(1:dim(Y)[2], function(i) c(pivot[rank + i], pivot[which(b[,i] !=
-      // 0)]))
-
-      int nColsy = Y.numColumns();
-      for (int k = 0; k < nColsy; k++) {
-        printlnd("\n-------------------------------------------\n");
-        List<Integer> depst = which(b, k);
-        printlnd("depst(" + k + ") = " + depst.toString());
-        List<Integer> deps = new ArrayList<Integer>();
-        for (int e : depst) {
-          deps.add(pivotm[e]);
-        }
-        int indep = pivotm[k + rank];
-        deps.add(0, indep);
-        printlnd("deps(" + k + ") = " + deps.toString());
-
-        // Checking
-        if (checkResults) {
-          DenseMatrix idep = getColumn(B, indep, 0, B.numRows() - 1);
-          printlnd("check independent = \n" + idep.toString());
-          printlnd("(" + B.numRows() + " , " + B.numColumns() + ")");
-          DenseMatrix ndep = getSubMarix(B, deps.subList(1, deps.size()), 0,
-              B.numRows() - 1);
-          printlnd("check dependent = \n" + ndep.toString());
-          printlnd("coeffs = \n" + b.toString());
-          // printMat(b);
-          printlnd("coeffs(" + b.numRows() + "," + b.numColumns() + ")");
-          DenseMatrix nb = getSubMarix(b, k, k, depst);
-          printlnd("ncoeffs = \n" + nb.toString());
-          DenseMatrix C = new DenseMatrix(idep.numRows(), idep.numColumns());
-          ndep.mult(nb, C);
-          printlnd("calculated dep = \n" + C.toString());
-          assert (isEqual(idep, C, 1e-12));
-          // No subtract available
-          // ndep.multAdd(b, idep);
-          // printlnd("idep = \n" + idep.toString() );
+      return LinearCombos.EMPTY;
+    }
+    // p1 <- 1:rank
+    // X <- R[p1, p1] # extract the independent columns
+    // Y <- R[p1, -p1, drop = FALSE] # extract the dependent columns
+    // b <- qr(X) # factor the independent columns
+    // X is already upper triangular so we solve X * b = Y directly
+    DenseMatrix b = qr.dependentCoefficients();
+    printlnd("b :\n" + b.toString());
+    // The error of zapping is only known before the coefficients are zapped
+    double[] tolerances = checkResults ? tolerances(qr, B, b, dropThreshold)
+        : null;
+    // b <- qr.coef(b, Y) # get regression coefficients of the dependent
+    // columns
+    // b[abs(b) < 1e-6] <- 0 # zap small values
+    zap(b, ZAP_THRESHOLD);
+    printlnd("zapped(b) :\n" + b.toString());
+    printlnd("pivot :\n" + Arrays.toString(pivotm));
+
+    int nColsy = numColumns - rank;
+    // Checking: all dependent columns are rebuilt with a single product
+    double[] residuals = null;
+    if (checkResults) {
+      residuals = residuals(qr, B, b, true);
+      printlnd("residuals = " + Arrays.toString(residuals));
+    }
+
+    // # generate a list with one element for each dependent column
+    // lapply(1:dim(Y)[2], function(i) c(pivot[rank + i], pivot[which(b[,i] !=
+    // 0)]))
+    double[] bd = b.getData();
+    int nnz = 0;
+    for (int i = 0; i < rank * nColsy; i++)
+      if (bd[i] != 0.0)
+        nnz++;
+    int[] dependents = new int[nColsy];
+    int[] offsets = new int[nColsy + 1];
+    int[] indices = new int[nnz];
+    double[] coefficients = new double[nnz];
+    int pos = 0;
+    for (int k = 0; k < nColsy; k++) {
+      dependents[k] = pivotm[k + rank];
+      offsets[k] = pos;
+      for (int e = 0; e < rank; e++) {
+        double v = bd[k * rank + e];
+        if (v != 0.0) {
+          indices[pos] = pivotm[e];
+          coefficients[pos] = v;
+          pos++;
         }
-        l.add(deps);
       }
-      return l;
+      if (checkResults && !(residuals[k] <= tolerances[k]))
+        throw new IllegalStateException("Column " + dependents[k]
+            + " is not the linear combination found: relative residual "
+            + residuals[k] + " > " + tolerances[k]);
     }
+    offsets[nColsy] = pos;
+    return new LinearCombos(dependents, offsets, indices, coefficients,
+        residuals);
+  }
+
+  /**
+   * Checks the linear combinations found in the factorization `qr` of `B`.
+   * The regression coefficients are calculated and zapped as in `collinear`.
+   * All the dependent columns are then rebuilt at once with a single matrix
+   * product of the independent columns of `B` and the coefficients. No
+   * copies of `B` are made (see `MatrixView`).
+   * 
+   * @see collinear
+   * 
+   * @param qr
+   * @param B
+   * @return the maximum absolute difference between each dependent column and
+   *         its linear combination. Element k refers to the column
+   *         `qr.getColumnIds()[qr.getRank() + k]`.
+   */
+  public static double[] maxResiduals(UpdatableQR qr, DenseMatrix B) {
+    DenseMatrix b = qr.dependentCoefficients();
+    zap(b, ZAP_THRESHOLD);
+    return residuals(qr, B, b, false);
+  }
+
+  /**
+   * The largest relative residual (see `residuals`) that is accepted for each
+   * dependent column given its coefficients `b` before they are zapped. Each
+   * tolerance is `max(dropThreshold, ZAP_THRESHOLD)` plus the error that
+   * zapping introduces (the zapped coefficients times the largest absolute
+   * value of their independent columns) plus the rounding error of the
+   * product (about max(m, rank) ulps of the sum of the remaining terms),
+   * both relative to the largest absolute value of the dependent column.
+   */
+  static double[] tolerances(UpdatableQR qr, DenseMatrix B, DenseMatrix b,
+      double dropThreshold) {
+    int rank = qr.getRank();
+    int[] ids = qr.getColumnIds();
+    int nd = ids.length - rank;
+    int m = B.numRows();
+    double[] a = B.getData();
+    double[] colMax = new double[ids.length];
+    for (int e = 0; e < ids.length; e++) {
+      int ao = ids[e] * m;
+      for (int i = 0; i < m; i++)
+        colMax[e] = Math.max(colMax[e], FastMath.abs(a[ao + i]));
+    }
+    double base = Math.max(dropThreshold, ZAP_THRESHOLD);
+    double ulp = Math.ulp(1.0) * Math.max(m, rank);
+    double[] bd = b.getData();
+    double[] tolerances = new double[nd];
+    for (int k = 0; k < nd; k++) {
+      double zapped = 0.0;
+      double kept = 0.0;
+      for (int e = 0; e < rank; e++) {
+        double v = FastMath.abs(bd[k * rank + e]);
+        if (v < ZAP_THRESHOLD)
+          zapped += v * colMax[e];
+        else
+          kept += v * colMax[e];
+      }
+      double scale = colMax[rank + k];
+      tolerances[k] = base
+          + (scale > 0.0 ? (zapped + ulp * kept) / scale : 0.0);
+    }
+    return tolerances;
+  }
+
+  /**
+   * Same as `maxResiduals(UpdatableQR, DenseMatrix)` but uses the
+   * coefficients `b` (rank x number of dependent columns). If `relative` is
+   * true each residual is divided by the largest absolute value of its
+   * dependent column.
+   */
+  static double[] residuals(UpdatableQR qr, DenseMatrix B, DenseMatrix b,
+      boolean relative) {
+    int rank = qr.getRank();
+    int[] ids = qr.getColumnIds();
+    int nd = ids.length - rank;
+    int m = B.numRows();
+    DenseMatrix C = new DenseMatrix(m, nd);
+    if (rank > 0)
+      MatrixView.of(B, Arrays.copyOf(ids, rank), 0, m - 1).mult(b, C);
+    double[] c = C.getData();
+    double[] a = B.getData();
+    double[] residuals = new double[nd];
+    for (int k = 0; k < nd; k++) {
+      int co = k * m;
+      int ao = ids[rank + k] * m;
+      double max = 0.0;
+      double scale = 0.0;
+      for (int i = 0; i < m; i++) {
+        max = Math.max(max, FastMath.abs(c[co + i] - a[ao + i]));
+        scale = Math.max(scale, FastMath.abs(a[ao + i]));
+      }
+      residuals[k] = relative && max > 0.0 ? max / scale : max;
+    }
+    return residuals;
   }
 
   /**
@@ -443,7 +695,12 @@ public class QRMatrixToolkit {
    * link below.  Unfortunately, although the results seem to be ok, they do not match perfectly with the
    * results one gets from Caret. 
    * 
+   * The matrix is only factored once. The dependent columns are then removed from the existing 
+   * factorization (see `UpdatableQR.deleteColumns`), so each new pass only works on R and does not 
+   * depend on the number of rows of `B`. The column indexes always refer to the columns of `B`.
+   * 
    * @see https://github.com/topepo/caret/blob/master/pkg/caret/R/findLinearCombos.R
+   * @see UpdatableQR
    * 
    * @param B
    * @param dropThreshold
@@ -452,52 +709,86 @@ public class QRMatrixToolkit {
    */
   public static Pair<List<List<Integer>>, List<Integer> > findLinearCombos(DenseMatrix B,
       double dropThreshold, boolean checkResults) {
-    List<List<Integer>> l = new ArrayList<List<Integer>>();
+    return findLinearCombos(B, dropThreshold, checkResults, QREngine.QRP);
+  }
+
+  /**
+   * This is the same as `findLinearCombos(DenseMatrix, double, boolean)` but 
+   * the (single) factorization is done with the selected `engine` (or a
+   * configured factorization such as a `RandomizedQR`).
+   * 
+   * @see QREngine
+   * @see QRFactorizer
+   * 
+   * @param B
+   * @param dropThreshold
+   * @param checkResults
+   * @param engine
+   * @return
+   */
+  public static Pair<List<List<Integer>>, List<Integer> > findLinearCombos(DenseMatrix B,
+      double dropThreshold, boolean checkResults, QRFactorizer engine) {
+    Pair<LinearCombos, int[]> r = findLinearCombinations(B, dropThreshold, checkResults, engine);
+    List<Integer> badList = new ArrayList<Integer>(r.getSecond().length);
+    for (int c : r.getSecond())
+      badList.add(c);
+    return new Pair<List<List<Integer>>, List<Integer> >(r.getFirst().toList(), badList);
+  }
 
-    List<Integer> range = IntStream.range(0, B.numColumns())
-                                                      .boxed()
-                                                      .collect(Collectors.toList());
+  /**
+   * This is the same as `findLinearCombos(DenseMatrix, double, boolean, QRFactorizer)` 
+   * but returns the initial linear combinations in a compact form (with the 
+   * coefficients) and the removed columns as an array. The removed columns 
+   * are tracked with a bit set so the loop does not allocate per column. 
+   * 
+   * @see LinearCombos
+   * 
+   * @param B
+   * @param dropThreshold
+   * @param checkResults
+   * @param engine
+   * @return the initial linear combinations and the columns that were removed 
+   *         (in the order they were removed)
+   */
+  public static Pair<LinearCombos, int[]> findLinearCombinations(DenseMatrix B,
+      double dropThreshold, boolean checkResults, QRFactorizer engine) {
+    UpdatableQR qr = engine.factorize(B);
 
     // lcList <- enumLC(x)
-    List<List<Integer>> lcList = collinear(B, dropThreshold, checkResults);  
+    LinearCombos lcList = linearCombos(qr, B, dropThreshold, checkResults);  
     // initialList <- lcList
-    List<List<Integer>> initialList = lcList;
+    LinearCombos initialList = lcList;
     // badList <- NULL
-    List<Integer> badList = new ArrayList<Integer>();
-    if (lcList.size() > 0) {
-      boolean continue_ = true;
-      while(continue_)
-      {
-         //# keep removing linear dependencies until it resolves
-         //tmp <- unlist(lapply(lcList, function(x) x[1]))   
-        //tmp <- unique(tmp[!is.na(tmp)])
-        Stream<Integer> tmp = lcList.stream().map( il -> il.get(0) ).distinct();
-        List<Integer> tmp1 = tmp.collect(Collectors.toList());
-        //System.out.println("tmp:\n" + tmp1.toString());
-         //badList <- unique(c(tmp, badList))
-        badList.addAll(tmp1);
-        badList = badList.stream().distinct().collect(Collectors.toList());
-        //System.out.println("badList:\n" + badList.toString());
-         //lcList <- enumLC(x[,-badList])
-        ArrayList<Integer> activeCols = new ArrayList<Integer>(range);
-        activeCols.removeAll(badList);
-        //System.out.println("activeCols:\n" + activeCols.toString());
-        DenseMatrix Btmp = getSubMarix(B, activeCols, 0, B.numRows()-1);
-        lcList = collinear(Btmp, dropThreshold, checkResults);  
-         //continue <- (length(lcList) > 0)
-        continue_ = (lcList.size() > 0) ? true : false;
-       }
+    BitSet bad = new BitSet(B.numColumns());
+    int[] badList = new int[B.numColumns()];
+    int nBad = 0;
+    while (lcList.size() > 0) {
+      //# keep removing linear dependencies until it resolves
+      //tmp <- unlist(lapply(lcList, function(x) x[1]))   
+      //tmp <- unique(tmp[!is.na(tmp)])
+      //badList <- unique(c(tmp, badList))
+      //lcList <- enumLC(x[,-badList])
+      for (int k = 0; k < lcList.size(); k++) {
+        int dep = lcList.dependent(k);
+        if (!bad.get(dep)) {
+          bad.set(dep);
+          badList[nBad++] = dep;
+          // Dependent columns are removed without rotations
+          qr.deleteColumn(dep);
+        }
+      }
+      lcList = linearCombos(qr, B, dropThreshold, checkResults);  
+      //continue <- (length(lcList) > 0)
     }
-
-    
-    Pair<List<List<Integer>>, List<Integer> > p = new Pair<List<List<Integer>>, List<Integer> >(initialList,badList);
-    return p;
+    return new Pair<LinearCombos, int[]>(initialList, Arrays.copyOf(badList, nBad));
   }
 
   /**
    * Calculate the rank based on a precision EPS. Function found in Matrix
-   * Toolkit Java which uses netlib-java.
+   * Toolkit Java which uses netlib-java. To try other criteria on the same R
+   * use a `RankEstimator`.
    * 
+   * @see RankEstimator
    * @see https://github.com/fommil/netlib-java.
    * @see no.uib.cipr.matrix.QRP.factor(Matrix A)
    * @see https://github.com/fommil/matrix-toolkits-java/blob/6157618
@@ -505,15 +796,63 @@ public class QRMatrixToolkit {
    *      /src/main/java/no/uib/cipr/matrix/QRP.java
    */
   public static int getRankN(RRQRDecomposition qrp) {
-    RealMatrix R = qrp.getR();
-    int k = FastMath.min(R.getRowDimension(), R.getColumnDimension());
     final double EPS = 1e-12;
-    int rank;
-    for (rank = 0; rank < k; rank++) {
-      if (Math.abs(R.getEntry(rank, rank)) < EPS)
-        break;
-    }
-    return rank;
+    return new RankEstimator(qrp.getR()).diagonalRank(EPS);
+  }
+
+  /**
+   * Calculate the rank of `A` with the selected `engine`. For example use
+   * `QREngine.RANDOMIZED` for wide matrices with a low rank. To change the
+   * oversampling, power iterations or seed of the randomized factorization
+   * pass a `new RandomizedQR(...)` as the engine.
+   * 
+   * @see QREngine
+   * @see QRFactorizer
+   * @see RandomizedQR
+   * 
+   * @param A
+   * @param engine
+   * @return the number of linearly independent columns of `A`
+   */
+  public static int getRankN(DenseMatrix A, QRFactorizer engine) {
+    return engine.factorize(A).getRank();
+  }
+
+  /**
+   * Calculate the rank of the memory mapped matrix `A`. Only blocks of rows
+   * are copied to the heap (see `MappedMatrix.factorize`).
+   * 
+   * @see MappedMatrix
+   * 
+   * @param A
+   * @return the number of linearly independent columns of `A`
+   */
+  public static int getRankN(MappedMatrix A) {
+    return A.factorize().getRank();
+  }
+
+  /**
+   * Calculate the rank of the sparse matrix `A` without making it dense.
+   * 
+   * @see SparseQR
+   * 
+   * @param A
+   * @return the number of linearly independent columns of `A`
+   */
+  public static int getRankN(SparseRealMatrix A) {
+    return SparseQR.factorize(A, Double.NaN).getRank();
+  }
+
+  /**
+   * Calculate the rank of the compressed matrix `A` from its non-zeros.
+   * 
+   * @see SparseQR#factorize(MatrixGenerator.Compressed, double)
+   * 
+   * @param A
+   * @return the number of linearly independent columns of `A`
+   */
+  public static int getRankN(MatrixGenerator.Compressed A) {
+    return SparseQR.factorize(A, Double.NaN).getRank();
   }
 
 }
@@ -1,10 +1,7 @@
 package pt.inescn.scratchpad ;
 
-import org.apache.commons.math3.linear.Array2DRowRealMatrix;
-import org.apache.commons.math3.linear.OpenMapRealMatrix;
-import org.apache.commons.math3.linear.RRQRDecomposition;
-import org.apache.commons.math3.linear.RealMatrix;
-import org.apache.commons.math3.random.RandomDataGenerator;
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.Matrix;
 
 /**
  * QRTest tests the use of QR decomposition in the Apache Commons Math
@@ -16,7 +13,10 @@ import org.apache.commons.math3.random.RandomDataGenerator;
  * and R is upper triangular.
  *
  * Note that it is imperative that the "rank revealing" version of QR
- * decomposition is used.
+ * decomposition is used. Q is not formed: only the kernel columns are
+ * generated from the Householder reflectors (see `KernelBasis`). Because A is
+ * sparse the sparse factorization is used (see `SparseQR`). It is read
+ * directly from the compressed arrays of the generated matrix.
  * @author Paul A. Rubin (rubin@msu.edu)
  * 
  * @see https://gitlab.msu.edu/orobworld/QRTest/blob/master/src/qrtest/QRTest.java
@@ -52,44 +52,44 @@ public final class QRTest {
                             // with a linear combination of the other columns
                             // to ensure that the kernel is not just {0}
     // generate a test matrix (A)
-    OpenMapRealMatrix aMatrix = generate(rows, cols, seed, density, absval, tweak);
+    MatrixGenerator.Compressed aMatrix = generate(rows, cols, seed, density,
+                                                  absval, tweak);
     // sanity check: report the dimensions of A
     System.out.printf("The dimensions of A are %d x %d.\n",
                       aMatrix.getRowDimension(), aMatrix.getColumnDimension());
-    // decompose the transpose A'
-    RRQRDecomposition qr = new RRQRDecomposition(aMatrix.transpose());
-    // get the factors
-    RealMatrix qMatrix = qr.getQ();
-    RealMatrix rMatrix = qr.getR();
-    System.out.printf("The dimensions of Q are %d x %d.\n",
-                      qMatrix.getRowDimension(), qMatrix.getColumnDimension());
-    System.out.printf("The dimensions of R are %d x %d.\n",
-                      rMatrix.getRowDimension(), rMatrix.getColumnDimension());
-    System.out.println();
-    // sanity check: confirm orthogonality
-    RealMatrix eye = new Array2DRowRealMatrix(cols, cols);  // identity matrix
-    for (int i = 0; i < cols; i++) {
-      eye.setEntry(i, i, 1.0);
-    }
-    System.out.printf("The difference between Q'Q and I has sup norm %f.\n",
-                      eye.subtract(qMatrix.transpose().multiply(qMatrix))
-                         .getNorm());
+    // decompose the transpose A' (Q is kept as Householder reflectors).
+    // A is sparse so it is not made dense
+    NullSpace kb = SparseQR.kernel(aMatrix, fuzz);
     // get the rank of A
-    int rank = qr.getRank(fuzz);
+    int rank = kb.getRank();
     System.out.printf("The reported rank of A = %d.\n", rank);
-    // confirm that the last n - r columns of Q belong to the kernel of A,
+    // only the last n - r columns of Q (the kernel basis) are formed
+    DenseMatrix zMatrix = kb.getKernel();
+    System.out.printf("The dimensions of the kernel basis are %d x %d.\n",
+                      zMatrix.numRows(), zMatrix.numColumns());
+    System.out.println();
+    // sanity check: confirm orthogonality of the basis
+    DenseMatrix ztz = new DenseMatrix(zMatrix.numColumns(),
+                                      zMatrix.numColumns());
+    zMatrix.transAmult(zMatrix, ztz);
+    for (int i = 0; i < ztz.numRows(); i++) {
+      ztz.add(i, i, -1.0);
+    }
+    System.out.printf("The difference between Z'Z and I has sup norm %f.\n",
+                      ztz.norm(Matrix.Norm.Maxvalue));
+    // confirm that the kernel vectors belong to the kernel of A,
     // where n is the column dimension of A and r is the rank of A
     System.out.println("\nChecking kernel columns ...");
-    RealMatrix zMatrix = aMatrix.multiply(qMatrix);
     for (int c = rank; c < cols; c++) {
       System.out.printf("The product of A with column %d of Q has sup "
                         + "norm %f.\n",
-                        c, zMatrix.getColumnMatrix(c).getNorm());
+                        c, kb.residual(kb.kernelVector(c - rank)));
     }
   }
 
   /**
-   * Generate a random matrix instance.
+   * Generate a random matrix instance (see `MatrixGenerator`). The non-zeros
+   * are sampled without replacement, so this is O(nnz) for any density.
    * Note: There are no validity tests for the arguments; the onus for using
    * legitimate values (e.g., density between 0 and 1) is on the user.
    * @param rows the desired number of rows
@@ -101,49 +101,22 @@ public final class QRTest {
    * of the other columns
    * @return a sparse matrix containing random entries.
    */
-  private static OpenMapRealMatrix generate(final int rows,
+  private static MatrixGenerator.Compressed generate(final int rows,
                                             final int cols,
                                             final long seed,
                                             final double density,
                                             final double absval,
                                             final boolean tweak) {
-    // create an empty matrix
-    OpenMapRealMatrix matrix = new OpenMapRealMatrix(rows, cols);
-    // create a random number generator
-    RandomDataGenerator rng = new RandomDataGenerator();
-    rng.reSeed(seed);
-    // compute the desired number of nonzero entries
-    long nnz = Math.round(rows * cols * density);
-    // fill in that many cells randomly
-    while (nnz > 0) {
-      // randomly choose a cell
-      int r = rng.nextInt(0, rows - 1);
-      int c = rng.nextInt(0, cols - 1);
-      if (matrix.getEntry(r, c) == 0) {
-        matrix.setEntry(r, c, rng.nextUniform(-absval, absval));
-        nnz--;
-      }
-    }
-    // if requested, randomly replace one column with a linear combination of
-    // the others to ensure less than full rank
+    MatrixGenerator.Compressed matrix =
+      new MatrixGenerator(rows, cols, seed).density(density).range(absval)
+                                           .dependent(tweak ? 1 : 0, cols - 1)
+                                           .generate();
+    // if requested, one column is a linear combination of the others to
+    // ensure less than full rank
     if (tweak) {
-      // pick a column to replace
-      int c = rng.nextInt(0, cols - 1);
       System.out.printf("Making column %d of A a linear combination of "
-                        + "other columns ...\n", c);
-      // generate weights for a linear combination of the other columns
-      double[] combo = new double[cols];
-      for (int i = 0; i < cols; i++) {
-        combo[i] = rng.nextUniform(0, 1);
-      }
-      combo[c] = 0;
-      // compute that linear combination
-      double[] delta =
-        matrix.multiply(new Array2DRowRealMatrix(combo)).getColumn(0);
-      // replace the target column
-      for (int r = 0; r < rows; r++) {
-        matrix.setEntry(r, c, delta[r]);
-      }
+                        + "other columns ...\n",
+                        matrix.getCombinations().dependent(0));
     }
     return matrix;
   }
@@ -0,0 +1,235 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * Randomized blocked rank revealing QR factorization. The pivots are not
+ * selected one column at a time (as in `QRP`) but a block at a time: the
+ * remaining (trailing) columns are compressed with a Gaussian sketch Ω A
+ * ((block + oversampling) rows), optionally refined with power iterations,
+ * and the pivoted QR of this small sketch selects the next block of columns.
+ * These columns are then factored with Householder reflectors that are
+ * applied to the trailing columns. The factorization stops as soon as a
+ * diagonal element of R is negligible, so the cost is about O(m n rank)
+ * instead of the O(m n min(m,n)) of `QRP`. This pays off when the numerical
+ * rank is much lower than the number of columns.
+ *
+ * The random numbers are generated from a fixed seed, so the results are
+ * reproducible. The rank is determined in the same way as in
+ * `UpdatableQR.fromPivoted`.
+ *
+ * The parameters of `QREngine.RANDOMIZED` are the defaults. Because this is
+ * a `QRFactorizer` a configured instance can be passed instead of the engine
+ * (for example to `QRMatrixToolkit.collinear` or `QRMatrixToolkit.getRankN`).
+ *
+ * @see QREngine#RANDOMIZED
+ * @see A randomized blocked algorithm for efficiently computing
+ *      rank-revealing factorizations of matrices Per-Gunnar Martinsson and
+ *      Sergey Voronin https://arxiv.org/pdf/1503.07157.pdf
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class RandomizedQR implements QRFactorizer {
+
+  public static final int DEFAULT_BLOCK_SIZE = 32;
+  public static final int DEFAULT_OVERSAMPLING = 8;
+  public static final int DEFAULT_POWER_ITERATIONS = 1;
+  public static final long DEFAULT_SEED = 1234L;
+
+  private final int blockSize;
+  private final int oversampling;
+  private final int powerIterations;
+  private final long seed;
+
+  /**
+   * Uses the default parameters.
+   */
+  public RandomizedQR() {
+    this(DEFAULT_BLOCK_SIZE, DEFAULT_OVERSAMPLING, DEFAULT_POWER_ITERATIONS,
+        DEFAULT_SEED);
+  }
+
+  /**
+   * @param blockSize
+   *          - number of pivots selected per sketch
+   * @param oversampling
+   *          - number of extra rows in the sketch (5 to 10 is usually enough)
+   * @param powerIterations
+   *          - number of power iterations used to refine the sketch (0 or 1 is
+   *          usually enough)
+   * @param seed
+   *          - seed of the Gaussian random numbers
+   */
+  public RandomizedQR(int blockSize, int oversampling, int powerIterations,
+      long seed) {
+    if (blockSize < 1 || oversampling < 0 || powerIterations < 0)
+      throw new IllegalArgumentException("Invalid parameters: blockSize = "
+          + blockSize + ", oversampling = " + oversampling
+          + ", powerIterations = " + powerIterations);
+    this.blockSize = blockSize;
+    this.oversampling = oversampling;
+    this.powerIterations = powerIterations;
+    this.seed = seed;
+  }
+
+  /**
+   * Factors the matrix `A` (which is not changed).
+   *
+   * @param A
+   * @return the updatable factorization of `A` (without Q)
+   */
+  @Override
+  public UpdatableQR factorize(DenseMatrix A) {
+    int m = A.numRows();
+    int n = A.numColumns();
+    double[] a = A.getData().clone();
+    int[] p = new int[n];
+    double maxNorm = 0.0;
+    for (int j = 0; j < n; j++) {
+      p[j] = j;
+      maxNorm = Math.max(maxNorm, Householder.norm(a, j * m, m));
+    }
+    double tol = Math.max(UpdatableQR.EPS, Math.max(m, n)
+        * Math.ulp(maxNorm));
+    Random rnd = new Random(seed);
+    int kmax = Math.min(m, n);
+    int rank = 0;
+    double[] tau = new double[kmax];
+    while (rank < kmax) {
+      int b = Math.min(blockSize, kmax - rank);
+      // Select the next b pivots from the sketch of the trailing matrix
+      if (b < n - rank)
+        permute(a, m, rank, n, p, selectPivots(a, m, rank, n, b, rnd));
+      // Factor the selected columns (pivoting within the block)
+      int off = rank * m + rank;
+      int[] bp = Householder.factorPivoted(a, off, m - rank, b, m, tau, rank);
+      // Only the lower rows were swapped, do the same for the upper rows
+      int[] pb = new int[b];
+      double[] top = new double[rank * b];
+      for (int i = 0; i < b; i++) {
+        pb[i] = p[rank + bp[i]];
+        System.arraycopy(a, (rank + bp[i]) * m, top, i * rank, rank);
+      }
+      for (int i = 0; i < b; i++)
+        System.arraycopy(top, i * rank, a, (rank + i) * m, rank);
+      System.arraycopy(pb, 0, p, rank, b);
+      // Number of independent columns in the block
+      int r = 0;
+      while (r < b && Math.abs(a[(rank + r) * m + rank + r]) >= tol)
+        r++;
+      // Apply the reflectors of the block to the trailing columns
+      for (int i = rank; i < rank + r; i++) {
+        int d = i * m + i;
+        for (int j = rank + b; j < n; j++)
+          Householder.apply(a, d, tau[i], a, j * m + i, m - i);
+      }
+      rank += r;
+      if (r < b)
+        break;
+    }
+    return new UpdatableQR(m, n, rank, Householder.upper(a, rank, n, m), p,
+        null);
+  }
+
+  /**
+   * Selects `b` pivots of the trailing matrix (rows `k` to `m - 1` and
+   * columns `k` to `n - 1`) with the pivoted QR of its sketch Ω A.
+   *
+   * @return the column permutation relative to column `k` (the first `b`
+   *         are the selected pivots)
+   */
+  int[] selectPivots(double[] a, int m, int k, int n, int b, Random rnd) {
+    int rows = m - k;
+    int cols = n - k;
+    int l = Math.min(b + oversampling, rows);
+    // W = Ω (l x rows) Gaussian
+    double[] w = new double[l * rows];
+    for (int i = 0; i < w.length; i++)
+      w[i] = rnd.nextGaussian();
+    // Y = W A (l x cols)
+    double[] y = new double[l * cols];
+    sketch(w, l, a, m, k, rows, cols, y);
+    for (int it = 0; it < powerIterations; it++) {
+      // W = Y Aᵀ (l x rows), orthonormalize its rows, then Y = W A
+      Arrays.fill(w, 0.0);
+      for (int j = 0; j < cols; j++) {
+        int ao = (k + j) * m + k;
+        int yo = j * l;
+        for (int i = 0; i < rows; i++) {
+          double v = a[ao + i];
+          if (v == 0.0)
+            continue;
+          int wo = i * l;
+          for (int t = 0; t < l; t++)
+            w[wo + t] += y[yo + t] * v;
+        }
+      }
+      orthonormalizeRows(w, l, rows);
+      Arrays.fill(y, 0.0);
+      sketch(w, l, a, m, k, rows, cols, y);
+    }
+    return Householder.factorPivoted(y, l, cols, l, new double[Math.min(l,
+        cols)]);
+  }
+
+  /**
+   * Reorders the columns `k` to `n - 1` of `a` (and of the pivot vector
+   * `p`) so that column `k + i` becomes the column `k + perm[i]`.
+   */
+  private static void permute(double[] a, int m, int k, int n, int[] p,
+      int[] perm) {
+    int cols = n - k;
+    double[] t = new double[m * cols];
+    System.arraycopy(a, k * m, t, 0, m * cols);
+    int[] tp = Arrays.copyOfRange(p, k, n);
+    for (int i = 0; i < cols; i++) {
+      System.arraycopy(t, perm[i] * m, a, (k + i) * m, m);
+      p[k + i] = tp[perm[i]];
+    }
+  }
+
+  /**
+   * y (l x cols) = w (l x rows) * A(k:, k:).
+   */
+  private static void sketch(double[] w, int l, double[] a, int m, int k,
+      int rows, int cols, double[] y) {
+    for (int j = 0; j < cols; j++) {
+      int ao = (k + j) * m + k;
+      int yo = j * l;
+      for (int i = 0; i < rows; i++) {
+        double v = a[ao + i];
+        if (v == 0.0)
+          continue;
+        int wo = i * l;
+        for (int t = 0; t < l; t++)
+          y[yo + t] += w[wo + t] * v;
+      }
+    }
+  }
+
+  /**
+   * Modified Gram-Schmidt on the `l` rows of the column major `l x cols`
+   * matrix `w`. Rows that become (numerically) zero are left as zero.
+   */
+  private static void orthonormalizeRows(double[] w, int l, int cols) {
+    for (int i = 0; i < l; i++) {
+      for (int t = 0; t < i; t++) {
+        double d = 0.0;
+        for (int j = 0; j < cols; j++)
+          d += w[j * l + i] * w[j * l + t];
+        for (int j = 0; j < cols; j++)
+          w[j * l + i] -= d * w[j * l + t];
+      }
+      double s = 0.0;
+      for (int j = 0; j < cols; j++)
+        s += w[j * l + i] * w[j * l + i];
+      s = Math.sqrt(s);
+      double f = s > 0.0 ? 1.0 / s : 0.0;
+      for (int j = 0; j < cols; j++)
+        w[j * l + i] *= f;
+    }
+  }
+}
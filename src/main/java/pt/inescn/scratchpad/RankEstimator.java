@@ -0,0 +1,192 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+
+import no.uib.cipr.matrix.Matrix;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Numerical rank estimates from the R factor of a (preferably pivoted) QR
+ * factorization. The Frobenius norms of all the trailing (bottom right)
+ * sub-matrices of R are calculated once, in a single backward pass over R:
+ * the squared norm of R[r:, r:] is the squared norm of R[r+1:, r+1:] plus
+ * the squares of row r and column r of R[r:, r:]. This is O(n²) in total
+ * and does not copy any sub-matrix. All criteria then reuse these values:
+ *
+ * <ul>
+ * <li>`normDropRank`: the Frobenius norm drop of `QRIssue.getRank`</li>
+ * <li>`diagonalRank`: the absolute threshold on the diagonal of
+ * `QRMatrixToolkit.getRankN`</li>
+ * <li>`ulpRank`: the max(m,n) × ulp(s1) threshold</li>
+ * </ul>
+ *
+ * so trying several thresholds costs nothing extra.
+ *
+ * @see QRIssue#getRank
+ * @see QRMatrixToolkit#getRankN(org.apache.commons.math3.linear.RRQRDecomposition)
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class RankEstimator {
+
+  private interface Entries {
+    double get(int i, int j);
+  }
+
+  private final int rows;
+  private final int columns;
+  private final double[] trailing; // trailing[r] = ||R[r:, r:]||_F
+  private final double[] diagonal; // |R[r, r]|
+  private final double maxColumnNorm; // lower bound of s1
+
+  /**
+   * @param R
+   *          - the R factor (for example `QRDecomposition.getR()`)
+   */
+  public RankEstimator(RealMatrix R) {
+    this(R.getRowDimension(), R.getColumnDimension(), R::getEntry);
+  }
+
+  /**
+   * @param R
+   *          - the R factor (for example `QRP.getR()`)
+   */
+  public RankEstimator(Matrix R) {
+    this(R.numRows(), R.numColumns(), R::get);
+  }
+
+  /**
+   * @param r
+   *          - column major array whose upper trapezoidal part is R (the
+   *          elements below the diagonal are ignored, for example the
+   *          Householder vectors of `Householder.factor`)
+   * @param rows
+   * @param columns
+   * @param ld
+   *          - leading dimension of `r`
+   */
+  RankEstimator(double[] r, int rows, int columns, int ld) {
+    this(rows, columns, (i, j) -> i <= j ? r[j * ld + i] : 0.0);
+  }
+
+  private RankEstimator(int rows, int columns, Entries R) {
+    this.rows = rows;
+    this.columns = columns;
+    int p = Math.min(rows, columns);
+    trailing = new double[p + 1];
+    diagonal = new double[p];
+    double[] colSq = new double[columns];
+    // The part of R below and to the right of the square upper part (zero if
+    // R is triangular)
+    double t = 0.0;
+    for (int j = p; j < columns; j++)
+      for (int i = p; i < rows; i++) {
+        double v = R.get(i, j);
+        t += v * v;
+      }
+    trailing[p] = Math.sqrt(t);
+    for (int r = p - 1; r >= 0; r--) {
+      double d = R.get(r, r);
+      diagonal[r] = Math.abs(d);
+      t += d * d;
+      colSq[r] += d * d;
+      for (int j = r + 1; j < columns; j++) {
+        double v = R.get(r, j);
+        t += v * v;
+        colSq[j] += v * v;
+      }
+      for (int i = r + 1; i < rows; i++) {
+        double v = R.get(i, r);
+        t += v * v;
+        colSq[r] += v * v;
+      }
+      trailing[r] = Math.sqrt(t);
+    }
+    double max = 0.0;
+    for (double c : colSq)
+      max = Math.max(max, c);
+    maxColumnNorm = Math.sqrt(max);
+  }
+
+  /**
+   * @return the Frobenius norm of the trailing sub-matrix R[r:, r:] (r = 0 is
+   *         the norm of R)
+   */
+  public double getTrailingNorm(int r) {
+    return trailing[r];
+  }
+
+  /**
+   * @return a copy of the Frobenius norms of all trailing sub-matrices
+   */
+  public double[] getTrailingNorms() {
+    return Arrays.copyOf(trailing, trailing.length);
+  }
+
+  /**
+   * Looks at the Frobenius norms of the sequence of bottom right
+   * sub-matrices. When a large fall in norm is seen, the rank is returned.
+   * The drop is computed as:
+   *
+   * <pre>
+   * (thisNorm / lastNorm) * rNorm &lt; dropThreshold
+   * </pre>
+   *
+   * where thisNorm is the Frobenius norm of the current sub-matrix, lastNorm
+   * is the Frobenius norm of the previous sub-matrix, rNorm is the Frobenius
+   * norm of the complete matrix. This gives the same result as
+   * `QRIssue.getRank` did.
+   *
+   * @param dropThreshold
+   *          - threshold triggering rank computation
+   * @return effective numerical matrix rank
+   */
+  public int normDropRank(double dropThreshold) {
+    int p = diagonal.length;
+    int rank = 1;
+    double lastNorm = trailing[0];
+    double rNorm = lastNorm;
+    while (rank < p) {
+      double thisNorm = trailing[rank];
+      double ratio = (thisNorm / lastNorm) * rNorm;
+      if (thisNorm == 0 || ratio < dropThreshold)
+        break;
+      lastNorm = thisNorm;
+      rank++;
+    }
+    return rank;
+  }
+
+  /**
+   * @param eps
+   *          - absolute threshold
+   * @return the number of diagonal elements before the first one whose
+   *         absolute value is below `eps`
+   */
+  public int diagonalRank(double eps) {
+    int rank = 0;
+    while (rank < diagonal.length && diagonal[rank] >= eps)
+      rank++;
+    return rank;
+  }
+
+  /**
+   * @return the tolerance max(m,n) × ulp(s1) where ulp(s1) is the least
+   *         significant bit of the largest singular value. s1 is approximated
+   *         by the largest column norm of R (which is |R[0,0]| if R is
+   *         pivoted).
+   */
+  public double ulpTolerance() {
+    return Math.max(rows, columns) * Math.ulp(maxColumnNorm);
+  }
+
+  /**
+   * Same as `diagonalRank(ulpTolerance())`.
+   *
+   * @return effective numerical matrix rank
+   */
+  public int ulpRank() {
+    return diagonalRank(ulpTolerance());
+  }
+}
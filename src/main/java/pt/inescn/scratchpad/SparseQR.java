@@ -0,0 +1,591 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.linear.RealMatrix;
+
+/**
+ * Sparse rank revealing QR factorization with column pivoting, AP = QR, for
+ * matrices that are mostly zeros (for example the generated matrix of
+ * `QRTest`). Unlike `RRQRDecomposition` (or MTJ's `QRP`) the matrix is never
+ * made dense:
+ *
+ * <ul>
+ * <li>the matrix is stored in compressed sparse column (CSC) form and each
+ * column only keeps its non-zeros as they change;</li>
+ * <li>each step builds a Householder reflector whose support is that of the
+ * pivot column and applies it only to the columns that share a row with it
+ * (found with a row to columns index), so the cost depends on the non-zeros
+ * and fill, not on m x n;</li>
+ * <li>the pivot is selected with threshold pivoting: among the columns whose
+ * remaining norm is at least `PIVOT_THRESHOLD` times the largest one, the
+ * column with the fewest non-zeros is selected. This is the usual
+ * compromise between rank revealing (largest norm first) and a fill
+ * reducing (sparsest first) column ordering;</li>
+ * <li>the factorization stops as soon as all remaining columns are
+ * negligible, so only r steps are done for a matrix of rank r.</li>
+ * </ul>
+ *
+ * The reflectors are kept in sparse compact form. Q is applied to vectors on
+ * demand (`applyQ`, `applyQt`), R is converted to the `UpdatableQR` used by
+ * `QRMatrixToolkit.collinear` (see `toUpdatableQR`) and the kernel of a
+ * matrix is available through the `NullSpace` interface of `KernelBasis`
+ * (see `kernel`).
+ *
+ * Because the rows of the reflectors are not reordered, row i of R is stored
+ * in the row `getPivotRows()[i]` of the (row space of the) matrix.
+ *
+ * @see KernelBasis
+ * @see QRMatrixToolkit#collinear(org.apache.commons.math3.linear.SparseRealMatrix,
+ *      double)
+ * @see http://faculty.cse.tamu.edu/davis/suitesparse.html (SuiteSparseQR)
+ *
+ *      sbt "run-main pt.inescn.scratchpad.QRTest"
+ */
+public class SparseQR {
+
+  /**
+   * A column is a pivot candidate if its norm is at least this fraction of
+   * the largest norm.
+   */
+  public static final double PIVOT_THRESHOLD = 0.1;
+
+  private final int m;
+  private final int n;
+  // Input (CSC), not changed
+  private final int[] colPtr;
+  private final int[] rowIdx;
+  private final double[] vals;
+
+  // Active (not yet eliminated) part of each column
+  private final int[][] cIdx;
+  private final double[][] cVal;
+  private final int[] cLen;
+  // Rows of R of each column (step index and value)
+  private final int[][] rIdx;
+  private final double[][] rVal;
+  private final int[] rLen;
+
+  // Reflectors: H(i) = I - tau[i] v vᵀ with v[pivotRows[i]] = 1
+  private final int[] pivotRows;
+  private final double[] tau;
+  private final int[][] vIdx;
+  private final double[][] vVal;
+
+  private final int[] pivot; // pivot[i] = column of step i
+  private final int rank;
+
+  /**
+   * Factors the `m x n` matrix given in CSC form. The arrays are not changed
+   * (nor copied).
+   *
+   * @param m
+   * @param n
+   * @param colPtr
+   *          - the non-zeros of column j are at `colPtr[j]` to `colPtr[j+1]-1`
+   * @param rowIdx
+   *          - row of each non-zero
+   * @param vals
+   *          - value of each non-zero
+   * @param dropThreshold
+   *          - the norm drop threshold of `RRQRDecomposition.getRank(double)`
+   *          or NaN to stop when all remaining column norms are below max(m,n)
+   *          × ulp(largest column norm) (the tolerance of the dense engines)
+   */
+  public SparseQR(int m, int n, int[] colPtr, int[] rowIdx, double[] vals,
+      double dropThreshold) {
+    if (colPtr.length != n + 1 || rowIdx.length < colPtr[n]
+        || vals.length < colPtr[n])
+      throw new IllegalArgumentException("Inconsistent array sizes");
+    this.m = m;
+    this.n = n;
+    this.colPtr = colPtr;
+    this.rowIdx = rowIdx;
+    this.vals = vals;
+    cIdx = new int[n][];
+    cVal = new double[n][];
+    cLen = new int[n];
+    rIdx = new int[n][];
+    rVal = new double[n][];
+    rLen = new int[n];
+    int[] rowLen = new int[m];
+    for (int j = 0; j < n; j++) {
+      int len = colPtr[j + 1] - colPtr[j];
+      cIdx[j] = Arrays.copyOfRange(rowIdx, colPtr[j], colPtr[j + 1]);
+      cVal[j] = Arrays.copyOfRange(vals, colPtr[j], colPtr[j + 1]);
+      cLen[j] = len;
+      rIdx[j] = new int[4];
+      rVal[j] = new double[4];
+      for (int p = colPtr[j]; p < colPtr[j + 1]; p++)
+        rowLen[rowIdx[p]]++;
+    }
+    // Row to columns index (may have stale entries, checked when used)
+    int[][] rowCols = new int[m][];
+    for (int i = 0; i < m; i++)
+      rowCols[i] = new int[Math.max(4, rowLen[i])];
+    Arrays.fill(rowLen, 0);
+    for (int j = 0; j < n; j++)
+      for (int p = colPtr[j]; p < colPtr[j + 1]; p++) {
+        int i = rowIdx[p];
+        rowCols[i][rowLen[i]++] = j;
+      }
+
+    int k = Math.min(m, n);
+    pivotRows = new int[k];
+    tau = new double[k];
+    vIdx = new int[k][];
+    vVal = new double[k][];
+    pivot = new int[n];
+    boolean[] done = new boolean[n];
+    double[] norms = new double[n];
+    double maxNorm = 0.0;
+    double total = 0.0;
+    for (int j = 0; j < n; j++) {
+      norms[j] = Householder.norm(cVal[j], 0, cLen[j]);
+      maxNorm = Math.max(maxNorm, norms[j]);
+      total += norms[j] * norms[j];
+    }
+    boolean dropRule = !Double.isNaN(dropThreshold);
+    double tol = Math.max(m, n) * Math.ulp(maxNorm);
+    double rNorm = Math.sqrt(total);
+    double lastNorm = rNorm;
+
+    double[] work = new double[m]; // dense scatter of a column
+    int[] mark = new int[m]; // rows of the reflector (step + 1) or column
+    int[] stamp = new int[n]; // columns already updated in this step
+    int[] touched = new int[n];
+    int steps = 0;
+    for (; steps < k; steps++) {
+      // Select the pivot column (threshold pivoting)
+      double max = 0.0;
+      for (int j = 0; j < n; j++)
+        if (!done[j])
+          max = Math.max(max, norms[j]);
+      if (max <= tol || max == 0.0)
+        break;
+      if (dropRule && steps > 0) {
+        double rest = 0.0;
+        for (int j = 0; j < n; j++)
+          if (!done[j])
+            rest += norms[j] * norms[j];
+        double thisNorm = Math.sqrt(rest);
+        if ((thisNorm / lastNorm) * rNorm < dropThreshold)
+          break;
+        lastNorm = thisNorm;
+      }
+      int pc = -1;
+      for (int j = 0; j < n; j++)
+        if (!done[j] && norms[j] >= PIVOT_THRESHOLD * max
+            && (pc < 0 || cLen[j] < cLen[pc]))
+          pc = j;
+      done[pc] = true;
+      pivot[steps] = pc;
+
+      // Reflector from the active part of the pivot column. The pivot row is
+      // that of its largest element
+      int len = cLen[pc];
+      int[] idx = cIdx[pc];
+      double[] val = cVal[pc];
+      int pp = 0;
+      for (int p = 1; p < len; p++)
+        if (Math.abs(val[p]) > Math.abs(val[pp]))
+          pp = p;
+      swap(idx, val, 0, pp);
+      int prow = idx[0];
+      double alpha = val[0];
+      double xnorm = Householder.norm(val, 1, len - 1);
+      double beta = alpha;
+      double ti = 0.0;
+      double s = 0.0;
+      if (xnorm != 0.0) {
+        beta = -Math.copySign(Math.hypot(alpha, xnorm), alpha);
+        ti = (beta - alpha) / beta;
+        s = 1.0 / (alpha - beta);
+      }
+      int[] vi = Arrays.copyOfRange(idx, 1, Math.max(1, len));
+      double[] vv = new double[vi.length];
+      for (int l = 0; l < vi.length; l++)
+        vv[l] = val[l + 1] * s;
+      pivotRows[steps] = prow;
+      tau[steps] = ti;
+      vIdx[steps] = vi;
+      vVal[steps] = vv;
+      addR(pc, steps, beta);
+      cLen[pc] = 0;
+      cIdx[pc] = null;
+      cVal[pc] = null;
+      norms[pc] = 0.0;
+
+      // Columns that share a row with the reflector
+      int nt = 0;
+      int stepMark = steps + 1;
+      mark[prow] = stepMark;
+      for (int i : vi)
+        mark[i] = stepMark;
+      nt = collect(rowCols[prow], rowLen[prow], done, stamp, stepMark,
+          touched, nt);
+      for (int i : vi)
+        nt = collect(rowCols[i], rowLen[i], done, stamp, stepMark, touched,
+            nt);
+
+      // Apply the reflector to each of them
+      for (int t = 0; t < nt; t++) {
+        int j = touched[t];
+        int[] ci = cIdx[j];
+        double[] cv = cVal[j];
+        int cl = cLen[j];
+        for (int p = 0; p < cl; p++)
+          work[ci[p]] = cv[p];
+        double w = work[prow];
+        for (int l = 0; l < vi.length; l++)
+          w += vv[l] * work[vi[l]];
+        w *= ti;
+        // Fill: rows of the reflector that are not yet in the column
+        int fill = 0;
+        for (int p = 0; p < cl; p++)
+          mark[ci[p]] = -stepMark;
+        if (mark[prow] != -stepMark)
+          fill++;
+        for (int i : vi)
+          if (mark[i] != -stepMark)
+            fill++;
+        if (cl + fill > ci.length) {
+          int size = Math.max(cl + fill, 2 * ci.length);
+          ci = cIdx[j] = Arrays.copyOf(ci, size);
+          cv = cVal[j] = Arrays.copyOf(cv, size);
+        }
+        if (mark[prow] != -stepMark)
+          ci[cl++] = prow;
+        for (int i : vi)
+          if (mark[i] != -stepMark) {
+            ci[cl++] = i;
+            rowLen[i] = append(rowCols, i, rowLen[i], j);
+          }
+        // Restore the marks of the reflector rows for the next column
+        for (int p = 0; p < cl; p++)
+          mark[ci[p]] = 0;
+        mark[prow] = stepMark;
+        for (int i : vi)
+          mark[i] = stepMark;
+        work[prow] -= w;
+        for (int l = 0; l < vi.length; l++)
+          work[vi[l]] -= w * vv[l];
+        // Gather, moving the pivot row element to R
+        int q = 0;
+        double ss = 0.0;
+        for (int p = 0; p < cl; p++) {
+          int i = ci[p];
+          double v = work[i];
+          work[i] = 0.0;
+          if (i == prow) {
+            addR(j, steps, v);
+            continue;
+          }
+          ci[q] = i;
+          cv[q++] = v;
+          ss += v * v;
+        }
+        cLen[j] = q;
+        norms[j] = Math.sqrt(ss);
+      }
+      rowCols[prow] = null;
+    }
+    rank = steps;
+    // The rest of the columns (dependent) in their original order
+    int p = rank;
+    for (int j = 0; j < n; j++)
+      if (!done[j])
+        pivot[p++] = j;
+  }
+
+  private static void swap(int[] idx, double[] val, int a, int b) {
+    int i = idx[a];
+    idx[a] = idx[b];
+    idx[b] = i;
+    double v = val[a];
+    val[a] = val[b];
+    val[b] = v;
+  }
+
+  private static int collect(int[] cols, int len, boolean[] done,
+      int[] stamp, int stepMark, int[] touched, int nt) {
+    if (cols == null)
+      return nt;
+    for (int l = 0; l < len; l++) {
+      int j = cols[l];
+      if (!done[j] && stamp[j] != stepMark) {
+        stamp[j] = stepMark;
+        touched[nt++] = j;
+      }
+    }
+    return nt;
+  }
+
+  private static int append(int[][] rowCols, int i, int len, int j) {
+    if (len == rowCols[i].length)
+      rowCols[i] = Arrays.copyOf(rowCols[i], 2 * len);
+    rowCols[i][len] = j;
+    return len + 1;
+  }
+
+  private void addR(int j, int step, double v) {
+    if (rLen[j] == rIdx[j].length) {
+      rIdx[j] = Arrays.copyOf(rIdx[j], 2 * rLen[j]);
+      rVal[j] = Arrays.copyOf(rVal[j], 2 * rLen[j]);
+    }
+    rIdx[j][rLen[j]] = step;
+    rVal[j][rLen[j]++] = v;
+  }
+
+  /**
+   * Reads the non-zeros of `A` and factors it. No dense copy is made but
+   * `RealMatrix` has no way to list its non-zeros, so all m x n entries are
+   * read with `getEntry` (a hash lookup each for an `OpenMapRealMatrix`).
+   * This O(m x n) scan can cost more than the factorization itself: use
+   * `factorize(MatrixGenerator.Compressed, double)` or the CSC constructor
+   * when the non-zeros are already available.
+   *
+   * @param A
+   *          - for example an `OpenMapRealMatrix`
+   * @param dropThreshold
+   *          - see `SparseQR(int, int, int[], int[], double[], double)`
+   * @return the factorization of `A`
+   */
+  public static SparseQR factorize(RealMatrix A, double dropThreshold) {
+    return factorize(A, false, dropThreshold);
+  }
+
+  /**
+   * Factors the compressed matrix `A` in O(nnz) setup. If `A` is compressed
+   * by column its arrays are used as they are (not copied), otherwise it is
+   * first converted to CSC (see `MatrixGenerator.Compressed.transpose`).
+   *
+   * @param A
+   * @param dropThreshold
+   *          - see `SparseQR(int, int, int[], int[], double[], double)`
+   * @return the factorization of `A`
+   */
+  public static SparseQR factorize(MatrixGenerator.Compressed A,
+      double dropThreshold) {
+    MatrixGenerator.Compressed c = A.isByColumns() ? A : A.transpose();
+    return new SparseQR(c.getRowDimension(), c.getColumnDimension(),
+        c.getPointers(), c.getIndices(), c.getValues(), dropThreshold);
+  }
+
+  private static SparseQR factorize(RealMatrix A, boolean transpose,
+      double dropThreshold) {
+    int rows = A.getRowDimension();
+    int cols = A.getColumnDimension();
+    int m = transpose ? cols : rows;
+    int n = transpose ? rows : cols;
+    int[] colPtr = new int[n + 1];
+    int nnz = 0;
+    int[] ri = new int[16];
+    double[] rv = new double[16];
+    for (int j = 0; j < n; j++) {
+      for (int i = 0; i < m; i++) {
+        double v = transpose ? A.getEntry(j, i) : A.getEntry(i, j);
+        if (v != 0.0) {
+          if (nnz == ri.length) {
+            ri = Arrays.copyOf(ri, 2 * nnz);
+            rv = Arrays.copyOf(rv, 2 * nnz);
+          }
+          ri[nnz] = i;
+          rv[nnz++] = v;
+        }
+      }
+      colPtr[j + 1] = nnz;
+    }
+    return new SparseQR(m, n, colPtr, ri, rv, dropThreshold);
+  }
+
+  /**
+   * The kernel of `A` from the sparse factorization of Aᵀ. As in
+   * `factorize(RealMatrix, double)` all m x n entries of `A` are read.
+   *
+   * @param A
+   *          - for example an `OpenMapRealMatrix`
+   * @param dropThreshold
+   *          - see `SparseQR(int, int, int[], int[], double[], double)`
+   * @return the kernel of `A`
+   */
+  public static NullSpace kernel(RealMatrix A, double dropThreshold) {
+    return factorize(A, true, dropThreshold).new Kernel();
+  }
+
+  /**
+   * The kernel of the compressed matrix `A` from the sparse factorization of
+   * Aᵀ. The CSR arrays of `A` are the CSC arrays of Aᵀ, so a matrix
+   * compressed by row is used as it is (not copied) and one compressed by
+   * column is converted in O(nnz).
+   *
+   * @param A
+   * @param dropThreshold
+   *          - see `SparseQR(int, int, int[], int[], double[], double)`
+   * @return the kernel of `A`
+   */
+  public static NullSpace kernel(MatrixGenerator.Compressed A,
+      double dropThreshold) {
+    MatrixGenerator.Compressed r = A.isByColumns() ? A.transpose() : A;
+    return new SparseQR(r.getColumnDimension(), r.getRowDimension(),
+        r.getPointers(), r.getIndices(), r.getValues(), dropThreshold).new Kernel();
+  }
+
+  /**
+   * @return the number of linearly independent columns
+   */
+  public int getRank() {
+    return rank;
+  }
+
+  /**
+   * @return the columns in pivot order (the first `getRank()` are the
+   *         independent ones)
+   */
+  public int[] getPivot() {
+    return Arrays.copyOf(pivot, n);
+  }
+
+  /**
+   * @return the row (of the matrix) that holds row i of R
+   */
+  public int[] getPivotRows() {
+    return Arrays.copyOf(pivotRows, rank);
+  }
+
+  /**
+   * @return the number of non-zeros of the reflectors and of R (the fill)
+   */
+  public long nonZeros() {
+    long nz = 0;
+    for (int i = 0; i < rank; i++)
+      nz += vIdx[i].length + 1;
+    for (int j = 0; j < n; j++)
+      nz += rLen[j];
+    return nz;
+  }
+
+  /**
+   * Replaces `x` (m elements) with Qᵀx.
+   */
+  public void applyQt(double[] x) {
+    checkLength(x, m);
+    for (int i = 0; i < rank; i++)
+      reflect(i, x);
+  }
+
+  /**
+   * Replaces `x` (m elements) with Qx.
+   */
+  public void applyQ(double[] x) {
+    checkLength(x, m);
+    for (int i = rank - 1; i >= 0; i--)
+      reflect(i, x);
+  }
+
+  private void reflect(int i, double[] x) {
+    if (tau[i] == 0.0)
+      return;
+    int[] vi = vIdx[i];
+    double[] vv = vVal[i];
+    double w = x[pivotRows[i]];
+    for (int l = 0; l < vi.length; l++)
+      w += vv[l] * x[vi[l]];
+    w *= tau[i];
+    x[pivotRows[i]] -= w;
+    for (int l = 0; l < vi.length; l++)
+      x[vi[l]] -= w * vv[l];
+  }
+
+  private static void checkLength(double[] x, int len) {
+    if (x.length != len)
+      throw new IllegalArgumentException("Expected " + len
+          + " elements but got " + x.length);
+  }
+
+  /**
+   * Only the compact R (rank x n, dense) is created. Note that the sign of
+   * the rows of R may differ from those of the dense engines.
+   *
+   * @return the factorization in the form used by
+   *         `QRMatrixToolkit.collinear(UpdatableQR, DenseMatrix, double,
+   *         boolean)`
+   */
+  public UpdatableQR toUpdatableQR() {
+    double[] r = new double[rank * n];
+    for (int c = 0; c < n; c++) {
+      int j = pivot[c];
+      for (int p = 0; p < rLen[j]; p++)
+        r[c * rank + rIdx[j][p]] = rVal[j][p];
+    }
+    return new UpdatableQR(m, n, rank, r, Arrays.copyOf(pivot, n), null);
+  }
+
+  /**
+   * The kernel of A where this is the factorization of Aᵀ (n = number of
+   * rows of this factorization). The kernel vectors are Q e(i) for the rows
+   * i that are not pivot rows.
+   */
+  private class Kernel implements NullSpace {
+
+    private final int[] free; // rows that are not pivot rows
+
+    Kernel() {
+      boolean[] used = new boolean[m];
+      for (int i = 0; i < rank; i++)
+        used[pivotRows[i]] = true;
+      free = new int[m - rank];
+      int l = 0;
+      for (int i = 0; i < m; i++)
+        if (!used[i])
+          free[l++] = i;
+    }
+
+    @Override
+    public int getRank() {
+      return rank;
+    }
+
+    @Override
+    public int getNullity() {
+      return free.length;
+    }
+
+    @Override
+    public void applyQt(double[] x) {
+      SparseQR.this.applyQt(x);
+    }
+
+    @Override
+    public void applyQ(double[] x) {
+      SparseQR.this.applyQ(x);
+    }
+
+    @Override
+    public double[] kernelVector(int i) {
+      if (i < 0 || i >= free.length)
+        throw new IndexOutOfBoundsException("Index " + i + " not in [0, "
+            + free.length + ")");
+      double[] z = new double[m];
+      z[free[i]] = 1.0;
+      SparseQR.this.applyQ(z);
+      return z;
+    }
+
+    /**
+     * A z where the rows of A are the columns of the factored matrix.
+     */
+    @Override
+    public double residual(double[] z) {
+      checkLength(z, m);
+      double max = 0.0;
+      for (int j = 0; j < n; j++) {
+        double s = 0.0;
+        for (int p = colPtr[j]; p < colPtr[j + 1]; p++)
+          s += vals[p] * z[rowIdx[p]];
+        max = Math.max(max, Math.abs(s));
+      }
+      return max;
+    }
+  }
+}
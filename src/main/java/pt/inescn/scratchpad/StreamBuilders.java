@@ -9,6 +9,7 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -25,14 +26,12 @@ import java.util.stream.StreamSupport;
 
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.distribution.ParetoDistribution;
-import org.apache.commons.math3.distribution.UniformIntegerDistribution;
 import org.apache.commons.math3.distribution.WeibullDistribution;
 import org.apache.commons.math3.random.JDKRandomGenerator;
 import org.apache.commons.math3.random.RandomGenerator;
 import org.apache.commons.math3.util.Pair;
 import org.knowm.xchart.CategoryChart;
 import org.knowm.xchart.CategoryChartBuilder;
-import org.knowm.xchart.Histogram;
 import org.knowm.xchart.SwingWrapper;
 import org.knowm.xchart.VectorGraphicsEncoder;
 import org.knowm.xchart.VectorGraphicsEncoder.VectorGraphicsFormat;
@@ -55,6 +54,7 @@ public class StreamBuilders {
   /**
    * Allows the zipping of two streams. No parallel access allowed.
    * 
+   * @see Columns for a splittable (parallel) multi-column version
    * @param as
    * @param bs
    * @return
@@ -150,8 +150,9 @@ public class StreamBuilders {
    * Creates a set of (integer) labels (from 0 to the length of <code>dist</code>). 
    * The labels are generated according to the distribution indicated in <code>dist</code>.
    * The values of <code>dist</code> should sum to 100 (%). each abel is generated
-   * with the <code>dist</code> distribution. 
+   * with the <code>dist</code> distribution. The labels start at 1. 
    * 
+   * @see AliasSampler
    * @param r
    * @param dist
    * @return
@@ -166,53 +167,65 @@ public class StreamBuilders {
       throw new IllegalArgumentException("Integers represent percentage so must add up to 100.");
     }
 
-    // Create a stream on integer labels
-    // IntStream labels = IntStream.range(0, dist.size());
-    AtomicInteger n = new AtomicInteger(0);
-    Stream<Integer> labels = StreamOfInts(n);
-
-    // Pair each label with the percentage we want
-    Stream<Pair<Integer, Integer>> pairs = zip( labels, dist.stream());
-    // Duplicate each label as many times as indicated in the distribution
-    Stream<Integer> dist_labels = rep(pairs);
-
-    // These are the label distributions (repeated according to dist)
-    Integer[] labels_idx = dist_labels.toArray(Integer[]::new);
-    
-    // Sample these uniformly
-    UniformIntegerDistribution nd = new UniformIntegerDistribution(r, 0, labels_idx.length - 1);
-    Stream<Integer> stream = Stream.generate(() -> labels_idx[ nd.sample() ] );
+    // Sample the labels with an alias table (no label per percentage point)
+    AliasSampler labels = new AliasSampler(dist.stream().mapToDouble(i -> i).toArray());
+    Stream<Integer> stream = Stream.generate(() -> labels.sample(r.nextDouble()) + 1 );
     
     return stream;
   }
 
   /**
-   * Creates a stream of time-stamps (sampling as fast as the machine allows)
+   * Creates a stream of labels (from 0 to the length of <code>weights</code> - 1)
+   * with probabilities proportional to the (real) weights. The labels only
+   * depend on the seed so the stream may be used in parallel (see {@link Variates}).
+   * Use the <code>limit</code> method to set its length.
    * 
-   * @param r
+   * @param seed
+   * @param weights
+   * @return
+   */
+  public static IntStream discreteInts(long seed, double[] weights) {
+    return new AliasSampler(weights).ints(seed);
+  }
+
+  /**
+   * Creates a stream of time-stamps (sampling as fast as the machine allows).
+   * The first time-stamp is <code>start + samplingRate</code>.
+   * 
+   * @see Timestamps
+   * @param start
+   * @param samplingRate
    * @return
    */
   public static Stream<ZonedDateTime> samplingZonedDateTime(LocalDateTime start, Duration samplingRate) {
-    ZoneId currentZone = ZoneId.systemDefault();
-    // ZoneId lisbon = ZoneId.of("Europe/Lisbon");
-    
-    //LocalDateTime now = LocalDateTime.now();
-    ZonedDateTime startTime = ZonedDateTime.of(start, currentZone);
-    // sampling rate converted to delta durations
-    Stream<Duration> sampling = Stream.iterate(samplingRate, s -> s.plus(samplingRate));
-    // Add delta to start the to get final sampled date time-stamp
-    return sampling.map( s -> startTime.plus( s ));
+    return samplingZonedDateTime(start, samplingRate, ZoneId.systemDefault());
   }
 
   public static Stream<ZonedDateTime> samplingZonedDateTime(LocalDateTime start, Duration samplingRate, ZoneId zone) {
     // ZoneId lisbon = ZoneId.of("Europe/Lisbon");
     
-    //LocalDateTime now = LocalDateTime.now();
-    ZonedDateTime startTime = ZonedDateTime.of(start, zone);
-    // sampling rate converted to delta durations
-    Stream<Duration> sampling = Stream.iterate(samplingRate, s -> s.plus(samplingRate));
-    // Add delta to start the to get final sampled date time-stamp
-    return sampling.map( s -> startTime.plus( s ));
+    // Time-stamps are computed as epoch nanoseconds and only converted to the
+    // zone when consumed
+    Timestamps t = new Timestamps(start, samplingRate, zone);
+    return t.zoned(1, Long.MAX_VALUE);
+  }
+
+  /**
+   * Primitive version of <code>samplingZonedDateTime</code>: the time-stamps
+   * are nanoseconds since the epoch (see {@link Timestamps}). The stream is
+   * sized and can be split, so it may be used in parallel. Use the
+   * <code>limit</code> method to set its length. It ends at the last
+   * time-stamp that fits in a <code>long</code> (in 2262, see
+   * {@link Timestamps#size()}).
+   * 
+   * @param start
+   * @param samplingRate
+   * @param zone
+   * @return
+   */
+  public static LongStream samplingEpochNanos(LocalDateTime start, Duration samplingRate, ZoneId zone) {
+    Timestamps t = new Timestamps(start, samplingRate, zone);
+    return t.range(1, Long.MAX_VALUE);
   }
   
   public static Stream<Double> normalDist(RandomGenerator r, double mean, double sd){
@@ -230,6 +243,47 @@ public class StreamBuilders {
     return Stream.generate(() -> d.sample() );
   }
 
+  /**
+   * Primitive version of <code>normalDist</code>. The samples only depend on
+   * the seed, so the stream may be used in parallel and gives the same values
+   * for any number of threads (see {@link Variates}). Use the
+   * <code>limit</code> method to set its length.
+   *
+   * @param seed
+   * @param mean
+   * @param sd
+   * @return
+   */
+  public static DoubleStream normalDoubles(long seed, double mean, double sd){
+    return Variates.stream(seed, Long.MAX_VALUE, Variates.normal(mean, sd));
+  }
+
+  /**
+   * Primitive version of <code>weibullDist</code> (see
+   * <code>normalDoubles</code>).
+   *
+   * @param seed
+   * @param alpha shape
+   * @param beta scale
+   * @return
+   */
+  public static DoubleStream weibullDoubles(long seed, double alpha, double beta){
+    return Variates.stream(seed, Long.MAX_VALUE, Variates.weibull(alpha, beta));
+  }
+
+  /**
+   * Primitive version of <code>paretoDist</code> (see
+   * <code>normalDoubles</code>).
+   *
+   * @param seed
+   * @param alpha scale
+   * @param beta shape
+   * @return
+   */
+  public static DoubleStream paretoDoubles(long seed, double alpha, double beta){
+    return Variates.stream(seed, Long.MAX_VALUE, Variates.pareto(alpha, beta));
+  }
+
   
   public static Integer[] toDiscreteWeights(Double scale, Double[] weights) {
     boolean are_fractions = Arrays.stream(weights).allMatch( e -> (e < 1.0) && (e > 0.0));
@@ -258,6 +312,14 @@ public class StreamBuilders {
     return r2.toArray(Integer[]::new);
   }
   
+  /**
+   * Expands the weights into an array with one label per unit of weight.
+   * 
+   * @deprecated the array grows with the weights, use {@link AliasSampler}
+   * @param weights
+   * @return
+   */
+  @Deprecated
   public static Integer[] toDiscreteDist(Integer[] weights) {
 
     // Create a stream on integer labels
@@ -286,24 +348,40 @@ public class StreamBuilders {
   }
   
   public static Stream<Integer> uniformSampler(Integer[] weights) {
-    
-    // Generate an array of labels according to the weights distribution
-    Integer[] labels_idx = toDiscreteDist(weights);
-    
-    // Sample these uniformly
-    UniformIntegerDistribution nd = new UniformIntegerDistribution(0, labels_idx.length - 1);
-    Supplier<Integer> sampler = () -> nd.sample();
-    return genericSample(sampler, labels_idx);
+    return uniformSampler(new JDKRandomGenerator(), weights);
+  }
+  
+  /**
+   * Samples the labels 1 to the length of <code>weights</code> with 
+   * probabilities proportional to the weights.
+   * 
+   * @see AliasSampler
+   * @param r
+   * @param weights
+   * @return
+   */
+  public static Stream<Integer> uniformSampler(RandomGenerator r, Integer[] weights) {
+    AliasSampler labels = new AliasSampler(Arrays.stream(weights).mapToDouble(i -> i).toArray());
+    return Stream.generate(() -> labels.sample(r.nextDouble()) + 1 );
   }
   
   
+  /**
+   * Each sample is taken from the stream selected at random according to the
+   * weights. The weights may be any non-negative reals (<code>scale</code> is 
+   * no longer needed to turn them into integers and is ignored). 
+   * 
+   * @param r
+   * @param scale ignored
+   * @param weights
+   * @param ts
+   * @return
+   */
   public static Stream<Double> mixtureModel(RandomGenerator r, double scale, Double[] weights, ArrayList<Stream<Double>> ts) {
     
-    // Generate an equivalent weights distribution as integers (scale them)
-    Integer[] dweights = toDiscreteWeights(scale, weights);
-    
-    // Sample these uniformly to get distribution of indexes
-    Stream<Integer> select_stream = uniformSampler(dweights);
+    // Sample the weights to get distribution of indexes
+    AliasSampler select = new AliasSampler(Arrays.stream(weights).mapToDouble(w -> w).toArray());
+    Stream<Integer> select_stream = Stream.generate(() -> select.sample(r.nextDouble()) + 1 );
     //select_stream.limit(10).forEach(System.out::println);
     
     Stream<Iterator<Double>> tss = ts.stream().map(e -> e.iterator());
@@ -336,7 +414,25 @@ public class StreamBuilders {
     ArrayList<Stream<Double>> ts = new ArrayList<Stream<Double>>( l );
     
     return mixtureModel(r, scale, weights, ts);
-  }  
+  }
+
+  /**
+   * Primitive version of <code>mixtureModel</code>. Each sample is taken from
+   * the component selected by the weights, so the weights need not be
+   * rational fractions and no component stream is consumed needlessly.
+   *
+   * @param seed
+   * @param weights non-negative weights, one per component
+   * @param components the samplers of the components (see {@link Variates})
+   * @return
+   */
+  public static DoubleStream mixtureDoubles(long seed, double[] weights, Variates.Sampler... components) {
+    return Variates.stream(seed, Long.MAX_VALUE, Variates.mixture(weights, components));
+  }
+
+  public static DoubleStream biModalDoubles(long seed, double[] weights, double mean_1, double sd_1, double mean_2, double sd_2) {
+    return mixtureDoubles(seed, weights, Variates.normal(mean_1, sd_1), Variates.normal(mean_2, sd_2));
+  }
   
   /*public static Stream<Double> dataSetColumn() {
     
@@ -357,6 +453,12 @@ public class StreamBuilders {
     Stream<ZonedDateTime> stream3 = samplingZonedDateTime( LocalDateTime.now(), sampling2,  ZoneId.of("Europe/Berlin") );
     stream3.limit(10).forEach(p -> System.out.println(p));
 
+    // 20 kHz without creating an object per sample
+    Timestamps vibration = new Timestamps(LocalDateTime.now(), Duration.ofNanos(50000), ZoneId.of("Europe/Lisbon"));
+    long[] times = new long[20000 * 60];
+    vibration.fill(times);
+    System.out.println(vibration.format(times[times.length - 1], DateTimeFormatter.ISO_ZONED_DATE_TIME));
+
     JDKRandomGenerator r = new JDKRandomGenerator() ;
     List<Integer> dist = Arrays.asList(50, 30, 20);
     Stream<Integer> stream4 = discreteDistInts(r, dist);
@@ -378,11 +480,7 @@ public class StreamBuilders {
     Integer[] weights2 = toDiscreteWeights(10.0, new Double[]{0.8, 0.15, 0.05});
     printArray(weights2);
     
-    Integer[] labels1 = toDiscreteDist(weights2);
-    //Arrays.stream(labels1).forEach(System.out::println);
-    System.out.println(labels1.length);
-    
-    Stream<Integer> stream8 = uniformSampler(weights2);
+    Stream<Integer> stream8 = uniformSampler(r, weights2);
     //stream8.limit(10).forEach(p -> System.out.println(p));
     System.out.println( stream8.limit(200).filter(e -> e == 3).count() );
 
@@ -391,6 +489,30 @@ public class StreamBuilders {
     double mean_2 = 1200;
     double sd_2   = 60;
     Stream<Double> biModal1 = biModalDist(r, 10, new Double[]{0.5, 0.5}, mean_1, sd_1, mean_2, sd_2);
+    biModal1.limit(10).forEach(p -> System.out.println(p));
+
+    // Primitive streams: same values sequentially and in parallel
+    long seed = 1234L;
+    System.out.println( normalDoubles(seed, 1000.0, 10.0).limit(1000000).sum() );
+    System.out.println( normalDoubles(seed, 1000.0, 10.0).limit(1000000).parallel().sum() );
+    double[] samples = new double[1000000];
+    Variates.fill(seed, samples, Variates.weibull(100.0, 3.0));
+    System.out.println( Arrays.stream(samples).average().getAsDouble() );
+
+    // Real weights, no expansion into labels
+    int[] labels = new int[1000000];
+    new AliasSampler(new double[]{0.005, 0.95, 0.045}).fill(seed, labels);
+    System.out.println( Arrays.stream(labels).filter(e -> e == 0).count() );
+    System.out.println( discreteInts(seed, new double[]{Math.PI, Math.E}).limit(1000).filter(e -> e == 1).count() );
+
+    // Multi-column data generated in parallel chunks
+    Columns columns = new Columns(
+        Columns.linspace(0.0, 1.0),
+        Columns.sampled(seed, Variates.normal(mean_1, sd_1)),
+        Columns.sampled(seed + 1, Variates.pareto(10.0, 10.0)));
+    double total = columns.chunks(10000000, 16 * Variates.BLOCK).parallel()
+        .mapToDouble(c -> Arrays.stream(c.column(1)).sum()).sum();
+    System.out.println( total / 10000000 );
 
     // http://knowm.org/open-source/xchart/xchart-example-code/
     // https://github.com/timmolter/xchart
@@ -402,13 +524,16 @@ public class StreamBuilders {
     chart.getStyler().setLegendPosition(LegendPosition.InsideNW);
     chart.getStyler().setAvailableSpaceFill(.96);
     chart.getStyler().setOverlapped(true);
-    // Data
-    List<Double> data1 = biModal1.limit(10000).collect(Collectors.toList());
+    // Data: summarized in one (parallel) pass, the samples are never stored
+    TDigest digest1 = TDigest.of(biModalDoubles(seed, new double[]{0.5, 0.5}, mean_1, sd_1, mean_2, sd_2).limit(10000).parallel(), 100);
+    System.out.println(digest1);
+    System.out.println("median = " + digest1.quantile(0.5) + ", 99% = " + digest1.quantile(0.99));
     
     // Add data graph to chart
     //Histogram histogram1 = new Histogram(data1, 20, -20, 20);
-    Histogram histogram1 = new Histogram(data1, 20);
-    chart.addSeries("histogram 1", histogram1.getxAxisData(), histogram1.getyAxisData());
+    int bins = 20;
+    double[] counts1 = digest1.counts(digest1.getMin(), digest1.getMax(), bins);
+    chart.addSeries("histogram 1", FixedHistogram.centers(digest1.getMin(), digest1.getMax(), bins), counts1);
     
     new SwingWrapper<CategoryChart>(chart).displayChart();
     try {
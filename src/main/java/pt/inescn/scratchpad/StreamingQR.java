@@ -0,0 +1,323 @@
+package pt.inescn.scratchpad;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.math3.util.Pair;
+
+/**
+ * Incremental (streaming) R factor of a matrix whose rows are read one at a
+ * time, for example from a CSV file that does not fit in memory. The rows are
+ * appended to a buffer below the current R. When the buffer is full it is
+ * factored with Householder reflectors and only the new R is kept. Memory is
+ * therefore O(p²) (plus the fixed size buffer) and does not depend on the
+ * number of rows. Because no Gram matrix (AᵀA) is formed the condition
+ * number is not squared.
+ *
+ * Two partial factorizations (for example of two parts of the same file
+ * that are read in parallel) can be merged: the R of the stacked R factors
+ * is the R of all the rows.
+ *
+ * At the end `factorize` runs the pivoted rank revealing factorization on
+ * the small R. The result can be used with
+ * `QRMatrixToolkit.collinear(UpdatableQR, DenseMatrix, double, boolean)`
+ * (without checking the results because the rows are not kept).
+ *
+ * @see TSQR
+ * @see QRMatrixToolkit#collinear(UpdatableQR, no.uib.cipr.matrix.DenseMatrix,
+ *      double, boolean)
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamingQR"
+ */
+public class StreamingQR {
+
+  /**
+   * Default number of rows that are buffered before they are factored.
+   */
+  public static final int DEFAULT_CHUNK_ROWS = 4096;
+
+  private final int p; // number of columns
+  private final int ld; // number of rows of the buffer
+  private final double[] buf; // R (top k rows) followed by the new rows
+  private final double[] tau;
+  private int rows; // number of rows used in the buffer
+  private int k; // number of rows of R at the top of the buffer
+  private long count; // number of rows added
+  private long skipped; // number of rows of the CSV file that were not added
+
+  /**
+   * @param p
+   *          - number of columns
+   */
+  public StreamingQR(int p) {
+    this(p, DEFAULT_CHUNK_ROWS);
+  }
+
+  /**
+   * @param p
+   *          - number of columns
+   * @param chunkRows
+   *          - number of rows that are buffered before they are factored
+   */
+  public StreamingQR(int p, int chunkRows) {
+    if (p < 1 || chunkRows < 1)
+      throw new IllegalArgumentException("Invalid parameters: p = " + p
+          + ", chunkRows = " + chunkRows);
+    this.p = p;
+    this.ld = chunkRows + p;
+    this.buf = new double[ld * p];
+    this.tau = new double[p];
+  }
+
+  /**
+   * @return the number of columns
+   */
+  public int numColumns() {
+    return p;
+  }
+
+  /**
+   * @return the number of rows added so far
+   */
+  public long numRows() {
+    return count;
+  }
+
+  /**
+   * @return the number of rows of the CSV file(s) that were skipped (see
+   *         `fromCSV`)
+   */
+  public long numSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Adds a row.
+   *
+   * @param row
+   *          - the `p` values of the row
+   */
+  public void addRow(double[] row) {
+    if (row.length != p)
+      throw new IllegalArgumentException("Expected " + p + " columns but got "
+          + row.length);
+    append(row);
+    count++;
+  }
+
+  private void append(double[] row) {
+    if (rows == ld)
+      flush();
+    for (int j = 0; j < p; j++)
+      buf[j * ld + rows] = row[j];
+    rows++;
+  }
+
+  /**
+   * Adds all the rows of the (partial) factorization `other` to this one.
+   * Only the R factor of `other` is used so the cost does not depend on the
+   * number of rows of `other`.
+   *
+   * @param other
+   *          - factorization with the same number of columns (unchanged)
+   */
+  public void merge(StreamingQR other) {
+    if (other.p != p)
+      throw new IllegalArgumentException("Expected " + p + " columns but got "
+          + other.p);
+    double[] r = other.getR();
+    int kr = r.length / p;
+    double[] row = new double[p];
+    for (int i = 0; i < kr; i++) {
+      for (int j = 0; j < p; j++)
+        row[j] = r[j * kr + i];
+      append(row);
+    }
+    count += other.count;
+    skipped += other.skipped;
+  }
+
+  /**
+   * Factors the buffer so that only R is kept at its top.
+   */
+  private void flush() {
+    if (rows == k)
+      return;
+    Householder.factor(buf, rows, p, ld, tau);
+    k = Math.min(rows, p);
+    // Remove the reflectors from below the diagonal
+    for (int j = 0; j < p; j++) {
+      int o = j * ld;
+      for (int i = Math.min(j + 1, k); i < rows; i++)
+        buf[o + i] = 0.0;
+    }
+    rows = k;
+  }
+
+  /**
+   * @return a copy of the current R factor (k x p, column major, with k <= p)
+   */
+  public double[] getR() {
+    flush();
+    return Householder.upper(buf, k, p, ld);
+  }
+
+  /**
+   * Runs the rank revealing (pivoted) factorization on the current R factor.
+   * More rows can still be added afterwards.
+   *
+   * @return the updatable factorization (without Q)
+   */
+  public UpdatableQR factorize() {
+    double[] r = getR();
+    int m = (int) Math.min(Integer.MAX_VALUE, count);
+    return TSQR.pivoted(m, new TSQR.Block(r, k, p));
+  }
+
+  /**
+   * Reads a CSV file and factors all of its rows. Rows with missing (empty
+   * or "NA") or non numeric values are skipped and counted (see
+   * `numSkipped`).
+   *
+   * @see #fromCSV(String, boolean, char, NAPolicy)
+   */
+  public static Pair<List<String>, StreamingQR> fromCSV(String file,
+      boolean header, char delimiter) throws IOException {
+    return fromCSV(file, header, delimiter, NAPolicy.SKIP);
+  }
+
+  /**
+   * Reads a CSV file and factors all of its rows. The file is read one line
+   * at a time, so only the R factor is kept in memory. The rows that are not
+   * added are counted (see `numSkipped`).
+   *
+   * @param file
+   * @param header
+   *          - true if the first line has the column names
+   * @param delimiter
+   * @param na
+   *          - what to do with the missing (empty or "NA") values
+   * @return the names of the columns (or "Col" + index if there is no
+   *         header) and the factorization
+   * @throws IOException
+   *           - also if `na` is `FAIL` and a row cannot be used
+   */
+  public static Pair<List<String>, StreamingQR> fromCSV(String file,
+      boolean header, char delimiter, NAPolicy na) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(Paths.get(file),
+        StandardCharsets.UTF_8)) {
+      List<String> names = new ArrayList<String>();
+      String line = in.readLine();
+      if (line == null)
+        throw new IOException("Empty file: " + file);
+      List<String> first = split(line, delimiter);
+      for (int j = 0; j < first.size(); j++)
+        names.add(header ? unquote(first.get(j)) : "Col" + j);
+      StreamingQR qr = new StreamingQR(names.size());
+      double[] row = new double[names.size()];
+      long lineNo = 1;
+      if (!header)
+        qr.parseRow(first, row, na, file, lineNo);
+      while ((line = in.readLine()) != null)
+        qr.parseRow(split(line, delimiter), row, na, file, ++lineNo);
+      return new Pair<List<String>, StreamingQR>(names, qr);
+    }
+  }
+
+  /**
+   * Adds the row if it can be used, otherwise counts it as skipped.
+   *
+   * @return true if the row was added
+   */
+  private boolean parseRow(List<String> fields, double[] row, NAPolicy na,
+      String file, long lineNo) throws IOException {
+    if (!parse(fields, row, na, file, lineNo)) {
+      skipped++;
+      return false;
+    }
+    addRow(row);
+    return true;
+  }
+
+  /**
+   * Parses the fields of a CSV line into `row`. Missing values (empty or
+   * "NA") are handled according to `na`.
+   *
+   * @return false if the number of fields is not the length of `row`, if a
+   *         field is not numeric or if a field is missing and `na` is `SKIP`
+   * @throws IOException
+   *           - instead of returning false if `na` is `FAIL`
+   */
+  static boolean parse(List<String> fields, double[] row, NAPolicy na,
+      String file, long lineNo) throws IOException {
+    if (parse(fields, row, na))
+      return true;
+    if (na == NAPolicy.FAIL)
+      throw new IOException("Missing or invalid value in line " + lineNo
+          + " of " + file);
+    return false;
+  }
+
+  private static boolean parse(List<String> fields, double[] row,
+      NAPolicy na) {
+    if (fields.size() != row.length)
+      return false;
+    try {
+      for (int j = 0; j < row.length; j++) {
+        String f = fields.get(j).trim();
+        if (f.isEmpty() || f.equals("NA")) {
+          if (na != NAPolicy.ZERO)
+            return false;
+          row[j] = 0.0;
+        } else
+          row[j] = Double.parseDouble(f);
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+
+  static List<String> split(String line, char delimiter) {
+    List<String> fields = new ArrayList<String>();
+    int start = 0;
+    for (int i = 0; i < line.length(); i++) {
+      if (line.charAt(i) == delimiter) {
+        fields.add(line.substring(start, i));
+        start = i + 1;
+      }
+    }
+    fields.add(line.substring(start));
+    return fields;
+  }
+
+  static String unquote(String s) {
+    s = s.trim();
+    if (s.length() >= 2 && s.charAt(0) == '"' && s.charAt(s.length() - 1) == '"')
+      return s.substring(1, s.length() - 1);
+    return s;
+  }
+
+  public static void main(String[] args) throws IOException {
+    String file = args.length > 0 ? args[0] : "data/mdrrdesc/mdrrdesc.csv";
+    Pair<List<String>, StreamingQR> p = fromCSV(file, true, ',');
+    List<String> names = p.getFirst();
+    StreamingQR sqr = p.getSecond();
+    UpdatableQR qr = sqr.factorize();
+    System.out.println("Rows = " + sqr.numRows() + " (skipped "
+        + sqr.numSkipped() + ") ; columns = " + sqr.numColumns()
+        + " ; rank = " + qr.getRank());
+    List<List<Integer>> l = QRMatrixToolkit.collinear(qr, null, 1e-6, false);
+    for (List<Integer> c : l) {
+      StringBuilder sb = new StringBuilder(names.get(c.get(0)) + " ~");
+      for (int i = 1; i < c.size(); i++)
+        sb.append(" ").append(names.get(c.get(i)));
+      System.out.println(sb.toString());
+    }
+  }
+}
@@ -0,0 +1,262 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+import java.util.stream.DoubleStream;
+
+/**
+ * Adaptive histogram (t-digest) of a stream of values: the values are
+ * summarized by about `compression` weighted centroids that are small near
+ * the tails and larger in the middle, so extreme quantiles are accurate and no
+ * range must be set in advance. The moments of all values are also kept (see
+ * {@link Moments}).
+ *
+ * This is the merging variant: values are added to a buffer that, when full,
+ * is sorted and merged with the centroids in a single pass. A centroid spans
+ * at most one unit of both scale functions k1(q) = compression / (2 pi)
+ * asin(2q - 1) and k2(q) = compression / z(n) log(q / (1 - q)), with z(n) =
+ * 4 log(n / compression) + 24. k2 keeps the extreme centroids down to single
+ * values and k1 limits the centroids in the middle to a width of about pi /
+ * compression in q, which bounds the rank error of the estimates (about 1% at
+ * a compression of 100). Two digests are merged the same way, so the digest
+ * of a (parallel) stream is
+ *
+ * <pre>
+ * TDigest.of(stream, 100)
+ * </pre>
+ *
+ * and the values are never stored. `counts` turns the digest into the counts
+ * of a fixed bin histogram for plotting.
+ *
+ * @see FixedHistogram
+ * @see https://arxiv.org/abs/1902.04023
+ * @see https://github.com/tdunning/t-digest
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public class TDigest extends Moments {
+
+  private final double compression;
+  private double[] means;
+  private double[] weights;
+  private int size; // number of centroids
+  private double total; // weight of the centroids
+  private final double[] buffer;
+  private int buffered;
+
+  /**
+   * @param compression
+   *          - larger values keep more centroids and give more accurate
+   *          quantiles (100 is usual)
+   */
+  public TDigest(double compression) {
+    if (!(compression >= 10))
+      throw new IllegalArgumentException("Compression must be at least 10: "
+          + compression);
+    this.compression = compression;
+    int capacity = (int) Math.ceil(compression) + 10;
+    means = new double[capacity];
+    weights = new double[capacity];
+    buffer = new double[5 * capacity];
+  }
+
+  /**
+   * @return the digest of all the values of `s`
+   */
+  public static TDigest of(DoubleStream s, double compression) {
+    return s.collect(() -> new TDigest(compression), TDigest::accept,
+        TDigest::combine);
+  }
+
+  @Override
+  public void accept(double x) {
+    if (x != x)
+      return;
+    super.accept(x);
+    buffer[buffered++] = x;
+    if (buffered == buffer.length)
+      flush();
+  }
+
+  /**
+   * Adds the values summarized by `other`, which must also be a `TDigest`
+   * (it is flushed). A plain `Moments` cannot be added because it has no
+   * centroids.
+   *
+   * @throws IllegalArgumentException
+   *           if `other` is not a `TDigest`
+   */
+  @Override
+  public void combine(Moments other) {
+    if (!(other instanceof TDigest))
+      throw new IllegalArgumentException("Cannot combine a TDigest with a "
+          + other.getClass().getSimpleName());
+    TDigest d = (TDigest) other;
+    super.combine(d);
+    flush();
+    d.flush();
+    merge(d.means, d.weights, d.size);
+  }
+
+  /**
+   * Merges the buffered values into the centroids.
+   */
+  private void flush() {
+    if (buffered == 0)
+      return;
+    Arrays.sort(buffer, 0, buffered);
+    merge(buffer, null, buffered);
+    buffered = 0;
+  }
+
+  /**
+   * Merges sorted weighted points (weight 1 if `w` is null) with the
+   * centroids and compresses the result.
+   */
+  private void merge(double[] m, double[] w, int n) {
+    if (n == 0)
+      return;
+    double added = 0.0;
+    for (int i = 0; i < n; i++)
+      added += w == null ? 1.0 : w[i];
+    double sum = total + added;
+    double[] nm = new double[size + n];
+    double[] nw = new double[size + n];
+    int k = -1;
+    double before = 0.0; // weight of the finished centroids
+    double limit = 0.0; // largest q of the current centroid
+    for (int i = 0, j = 0; i < size || j < n;) {
+      double xm, xw;
+      if (j >= n || (i < size && means[i] <= m[j])) {
+        xm = means[i];
+        xw = weights[i++];
+      } else {
+        xm = m[j];
+        xw = w == null ? 1.0 : w[j];
+        j++;
+      }
+      if (k >= 0 && (before + nw[k] + xw) / sum <= limit) {
+        nw[k] += xw;
+        nm[k] += (xm - nm[k]) * xw / nw[k];
+      } else {
+        if (k >= 0)
+          before += nw[k];
+        k++;
+        nm[k] = xm;
+        nw[k] = xw;
+        limit = qLimit(before / sum, sum);
+      }
+    }
+    size = k + 1;
+    if (size > means.length) {
+      means = new double[size];
+      weights = new double[size];
+    }
+    System.arraycopy(nm, 0, means, 0, size);
+    System.arraycopy(nw, 0, weights, 0, size);
+    total = sum;
+  }
+
+  /**
+   * @return the largest q of a centroid that starts at `q` when there are `n`
+   *         values: one unit more of the scale function k1 or of k2, which
+   *         ever is reached first
+   */
+  private double qLimit(double q, double n) {
+    if (q <= 0)
+      return 0.0; // the first value is kept on its own
+    // k2: small centroids in the tails
+    double z = compression / (4 * Math.log(Math.max(n / compression, 1.0)) + 24);
+    double q2 = 1 / (1 + Math.exp(-(Math.log(q / (1 - q)) + 1 / z)));
+    // k1: at most about compression / 2 centroids in the middle
+    double k1 = compression / (2 * Math.PI) * Math.asin(2 * q - 1) + 1;
+    double q1 = k1 >= compression / 4 ? 1.0 : (Math.sin(k1 * 2 * Math.PI
+        / compression) + 1) / 2;
+    return Math.min(q1, q2);
+  }
+
+  /**
+   * @return the number of centroids (after merging the buffer)
+   */
+  public int centroids() {
+    flush();
+    return size;
+  }
+
+  /**
+   * Estimates a quantile by interpolating between the centroid means (and the
+   * minimum and maximum at the ends).
+   *
+   * @param q
+   *          - between 0 and 1
+   * @return the estimated quantile (NaN if there are no values)
+   */
+  public double quantile(double q) {
+    flush();
+    if (size == 0)
+      return Double.NaN;
+    if (q <= 0)
+      return getMin();
+    if (q >= 1)
+      return getMax();
+    double target = q * total;
+    // The centroid means are placed at the middle of their weight
+    double center = weights[0] / 2;
+    if (target < center)
+      return getMin() + (means[0] - getMin()) * target / center;
+    for (int i = 1; i < size; i++) {
+      double next = center + (weights[i - 1] + weights[i]) / 2;
+      if (target < next)
+        return means[i - 1] + (means[i] - means[i - 1]) * (target - center)
+            / (next - center);
+      center = next;
+    }
+    return means[size - 1] + (getMax() - means[size - 1]) * (target - center)
+        / (total - center);
+  }
+
+  /**
+   * @return the estimated fraction of the values that are less than or equal
+   *         to `x`
+   */
+  public double cdf(double x) {
+    flush();
+    if (size == 0)
+      return Double.NaN;
+    if (x < getMin())
+      return 0.0;
+    if (x >= getMax())
+      return 1.0;
+    double center = weights[0] / 2;
+    if (x < means[0])
+      return (means[0] > getMin() ? center * (x - getMin())
+          / (means[0] - getMin()) : 0.0) / total;
+    for (int i = 1; i < size; i++) {
+      double next = center + (weights[i - 1] + weights[i]) / 2;
+      if (x < means[i])
+        return (center + (next - center) * (x - means[i - 1])
+            / (means[i] - means[i - 1])) / total;
+      center = next;
+    }
+    return (center + (total - center) * (x - means[size - 1])
+        / (getMax() - means[size - 1])) / total;
+  }
+
+  /**
+   * Estimated counts of `bins` equal width bins in [lower, upper] (see
+   * {@link FixedHistogram#centers(double, double, int)} for the bin
+   * centers).
+   *
+   * @return the counts (for plotting)
+   */
+  public double[] counts(double lower, double upper, int bins) {
+    double[] c = new double[bins];
+    double w = (upper - lower) / bins;
+    double previous = cdf(lower);
+    for (int i = 0; i < bins; i++) {
+      double next = cdf(i == bins - 1 ? upper : lower + (i + 1) * w);
+      c[i] = (next - previous) * getCount();
+      previous = next;
+    }
+    return c;
+  }
+}
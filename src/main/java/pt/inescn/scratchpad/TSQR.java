@@ -0,0 +1,186 @@
+package pt.inescn.scratchpad;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import no.uib.cipr.matrix.DenseMatrix;
+
+/**
+ * Tall and skinny QR (TSQR) factorization. The rows of the matrix are split
+ * into blocks that are factored in parallel (fork/join). The R factors of
+ * the blocks are then merged pairwise in a (binary) reduction tree: two R
+ * factors are stacked and factored again. Because Q is orthogonal, the R of
+ * the whole matrix has the same column norms as the matrix itself, so the
+ * pivoted (rank revealing) factorization only needs to be done on the final
+ * small `n x n` R. This replaces the single threaded `QRP.factorize` of the
+ * full `m x n` matrix with parallel work on `m x n` and sequential work on
+ * `n x n`.
+ *
+ * Q is not formed. The result is an `UpdatableQR` with R only, which is all
+ * that `QRMatrixToolkit.collinear` and `QRMatrixToolkit.findLinearCombos`
+ * need.
+ *
+ * @see QREngine#TSQR
+ * @see Demmel, Grigori, Hoemmen and Langou, Communication-optimal parallel
+ *      and sequential QR and LU factorizations,
+ *      https://arxiv.org/abs/0808.2664
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class TSQR {
+
+  /**
+   * Default minimum number of rows per block.
+   */
+  public static final int MIN_BLOCK_ROWS = 1024;
+
+  /**
+   * Factors `A` using the common fork/join pool. The block size is selected
+   * so that each worker gets a few blocks (see `blockRows`).
+   *
+   * @param A
+   * @return the updatable factorization of `A` (without Q)
+   */
+  public static UpdatableQR factorize(DenseMatrix A) {
+    ForkJoinPool pool = ForkJoinPool.commonPool();
+    return factorize(A,
+        blockRows(A.numRows(), A.numColumns(), pool.getParallelism()), pool);
+  }
+
+  /**
+   * Factors `A` using blocks of at most `blockRows` rows (but never less
+   * than 2 * n rows) that are processed in the fork/join `pool`.
+   *
+   * @param A
+   * @param blockRows
+   *          - maximum number of rows per block
+   * @param pool
+   * @return the updatable factorization of `A` (without Q)
+   */
+  public static UpdatableQR factorize(DenseMatrix A, int blockRows,
+      ForkJoinPool pool) {
+    int m = A.numRows();
+    int n = A.numColumns();
+    Block r = pool.invoke(new BlockTask(A.getData(), m, n, 0, m, Math.max(
+        blockRows, 2 * n)));
+    return pivoted(m, r);
+  }
+
+  /**
+   * Selects a block size that gives about 4 blocks per thread. This keeps the
+   * workers busy while the blocks are large enough to amortize the merges.
+   *
+   * @param m
+   *          - number of rows
+   * @param n
+   *          - number of columns
+   * @param parallelism
+   *          - number of threads
+   * @return number of rows per block
+   */
+  public static int blockRows(int m, int n, int parallelism) {
+    int b = m / (4 * Math.max(1, parallelism));
+    return Math.max(b, Math.max(MIN_BLOCK_ROWS, 2 * n));
+  }
+
+  /**
+   * An R factor: `k x n` upper trapezoidal in column major order.
+   */
+  static final class Block {
+    final double[] r;
+    final int k;
+    final int n;
+
+    Block(double[] r, int k, int n) {
+      this.r = r;
+      this.k = k;
+      this.n = n;
+    }
+  }
+
+  /**
+   * Factors the rows `row1` (inclusive) to `row2` (exclusive) of the column
+   * major `m x n` matrix `a`.
+   *
+   * @return the R factor of the rows
+   */
+  static Block factorRows(double[] a, int m, int n, int row1, int row2) {
+    int rows = row2 - row1;
+    double[] w = new double[rows * n];
+    for (int j = 0; j < n; j++)
+      System.arraycopy(a, j * m + row1, w, j * rows, rows);
+    int k = Math.min(rows, n);
+    Householder.factor(w, rows, n, rows, new double[k]);
+    return new Block(Householder.upper(w, k, n, rows), k, n);
+  }
+
+  /**
+   * Merges two R factors of the same matrix: the R of the stacked R factors
+   * is the R of all the rows they represent.
+   *
+   * @return the merged R factor
+   */
+  static Block merge(Block a, Block b) {
+    int n = a.n;
+    int rows = a.k + b.k;
+    double[] w = new double[rows * n];
+    for (int j = 0; j < n; j++) {
+      System.arraycopy(a.r, j * a.k, w, j * rows, a.k);
+      System.arraycopy(b.r, j * b.k, w, j * rows + a.k, b.k);
+    }
+    int k = Math.min(rows, n);
+    Householder.factor(w, rows, n, rows, new double[k]);
+    return new Block(Householder.upper(w, k, n, rows), k, n);
+  }
+
+  /**
+   * Rank revealing step: pivoted QR of the final R factor.
+   *
+   * @param m
+   *          - number of rows of the original matrix
+   * @param r
+   *          - R factor of the original matrix
+   * @return the updatable factorization (without Q)
+   */
+  static UpdatableQR pivoted(int m, Block r) {
+    double[] w = r.r.clone();
+    int[] p = Householder.factorPivoted(w, r.k, r.n, r.k, new double[Math.min(
+        r.k, r.n)]);
+    return UpdatableQR.fromPivoted(m, w, r.k, r.n, r.k, p);
+  }
+
+  /**
+   * Splits the rows in two until a block has at most `blockRows` rows.
+   * Each pair of results is merged on the way back (reduction tree).
+   */
+  @SuppressWarnings("serial")
+  private static final class BlockTask extends RecursiveTask<Block> {
+    private final double[] a;
+    private final int m;
+    private final int n;
+    private final int row1;
+    private final int row2;
+    private final int blockRows;
+
+    BlockTask(double[] a, int m, int n, int row1, int row2, int blockRows) {
+      this.a = a;
+      this.m = m;
+      this.n = n;
+      this.row1 = row1;
+      this.row2 = row2;
+      this.blockRows = blockRows;
+    }
+
+    @Override
+    protected Block compute() {
+      if (row2 - row1 <= blockRows)
+        return factorRows(a, m, n, row1, row2);
+      int mid = (row1 + row2) >>> 1;
+      BlockTask left = new BlockTask(a, m, n, row1, mid, blockRows);
+      BlockTask right = new BlockTask(a, m, n, mid, row2, blockRows);
+      left.fork();
+      Block r = right.compute();
+      return merge(left.join(), r);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package pt.inescn.scratchpad;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.stream.LongStream;
+import java.util.stream.Stream;
+
+/**
+ * Regularly sampled time-stamps as `long` nanoseconds since the epoch
+ * (1970-01-01T00:00:00Z). Time-stamp i is computed as `start + i * period`,
+ * so any range can be generated on its own (in parallel) and no object is
+ * created per sample. The zone is only used when a time-stamp is converted
+ * to a `ZonedDateTime` or formatted.
+ *
+ * The time-stamps are those of `ZonedDateTime.plus(Duration)`, that is, on
+ * the instant time-line (a day-light saving change does not change the
+ * period). Epoch nanoseconds cover the years 1677 to 2262: the streams end at
+ * the last time-stamp that fits in a `long` (see `size`) and the other
+ * methods throw an `ArithmeticException` instead of wrapping around.
+ *
+ * For example the IMS bearing data (see `AutoEncoders.scala`) sampled at 20
+ * kHz has a period of 50000 ns.
+ *
+ * @see StreamBuilders#samplingEpochNanos(LocalDateTime, Duration, ZoneId)
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public class Timestamps {
+
+  private static final long NANOS_PER_SECOND = 1000000000L;
+
+  private final long start;
+  private final long period;
+  private final ZoneId zone;
+
+  /**
+   * @param start
+   *          - epoch nanoseconds of the first time-stamp (index 0)
+   * @param period
+   *          - sampling period in nanoseconds
+   * @param zone
+   *          - used to convert and format the time-stamps
+   */
+  public Timestamps(long start, long period, ZoneId zone) {
+    if (period <= 0)
+      throw new IllegalArgumentException("Period must be positive: " + period);
+    this.start = start;
+    this.period = period;
+    this.zone = zone;
+  }
+
+  /**
+   * @param start
+   *          - local date and time of the first time-stamp (index 0)
+   * @param period
+   *          - sampling period
+   * @param zone
+   *          - zone of `start`
+   */
+  public Timestamps(LocalDateTime start, Duration period, ZoneId zone) {
+    this(toEpochNanos(ZonedDateTime.of(start, zone).toInstant()), period
+        .toNanos(), zone);
+  }
+
+  /**
+   * @return nanoseconds since the epoch
+   */
+  public static long toEpochNanos(Instant t) {
+    return Math.addExact(Math.multiplyExact(t.getEpochSecond(),
+        NANOS_PER_SECOND), t.getNano());
+  }
+
+  /**
+   * @return the instant of `nanos` nanoseconds since the epoch
+   */
+  public static Instant toInstant(long nanos) {
+    return Instant.ofEpochSecond(Math.floorDiv(nanos, NANOS_PER_SECOND), Math
+        .floorMod(nanos, NANOS_PER_SECOND));
+  }
+
+  /**
+   * @return epoch nanoseconds of time-stamp `i`
+   * @throws ArithmeticException
+   *           - if the time-stamp does not fit in a `long`
+   */
+  public long at(long i) {
+    return Math.addExact(start, Math.multiplyExact(i, period));
+  }
+
+  /**
+   * @return the number of time-stamps (indices 0 to `size() - 1`) whose epoch
+   *         nanoseconds fit in a `long` (at most `Long.MAX_VALUE`)
+   */
+  public long size() {
+    // Long.MAX_VALUE - start is exact as an unsigned value
+    long last = Long.divideUnsigned(Long.MAX_VALUE - start, period);
+    return last < 0 || last == Long.MAX_VALUE ? Long.MAX_VALUE : last + 1;
+  }
+
+  /**
+   * @return index of the last time-stamp at or before `nanos`
+   */
+  public long indexOf(long nanos) {
+    return Math.floorDiv(nanos - start, period);
+  }
+
+  public long getStart() {
+    return start;
+  }
+
+  public long getPeriod() {
+    return period;
+  }
+
+  public ZoneId getZone() {
+    return zone;
+  }
+
+  /**
+   * @return time-stamps `from` (inclusive) to `to` (exclusive) as a sized,
+   *         splittable stream. `to` is capped at `size()`, so for example
+   *         `range(0, Long.MAX_VALUE)` stops at the last time-stamp.
+   * @throws ArithmeticException
+   *           - if time-stamp `from` does not fit in a `long`
+   */
+  public LongStream range(long from, long to) {
+    to = Math.min(to, size());
+    // The time-stamps increase, so only the first one can be out of range
+    if (from < to)
+      at(from);
+    return LongStream.range(from, to).map(i -> start + i * period);
+  }
+
+  /**
+   * @return the first `size` time-stamps
+   */
+  public LongStream stream(long size) {
+    return range(0, size);
+  }
+
+  /**
+   * @return all (`size()`) time-stamps (use the `limit` method to set the
+   *         length)
+   */
+  public LongStream stream() {
+    return range(0, size());
+  }
+
+  /**
+   * Fills `a[off]` to `a[off + len - 1]` with time-stamps `from` to `from +
+   * len - 1`.
+   *
+   * @throws ArithmeticException
+   *           - if one of the time-stamps does not fit in a `long`
+   */
+  public void fill(long from, long[] a, int off, int len) {
+    if (len > 0) {
+      at(from);
+      at(Math.addExact(from, len - 1));
+    }
+    for (int i = 0; i < len; i++)
+      a[off + i] = start + (from + i) * period;
+  }
+
+  /**
+   * Fills `a` with the first `a.length` time-stamps, in parallel.
+   *
+   * @throws ArithmeticException
+   *           - if the last time-stamp does not fit in a `long`
+   */
+  public void fill(long[] a) {
+    if (a.length > 0)
+      at(a.length - 1);
+    Arrays.parallelSetAll(a, i -> start + i * period);
+  }
+
+  /**
+   * @return the time-stamp in this zone
+   */
+  public ZonedDateTime toZonedDateTime(long nanos) {
+    return ZonedDateTime.ofInstant(toInstant(nanos), zone);
+  }
+
+  /**
+   * @return the time-stamp formatted in this zone
+   */
+  public String format(long nanos, DateTimeFormatter formatter) {
+    return formatter.format(toZonedDateTime(nanos));
+  }
+
+  /**
+   * @return time-stamps `from` (inclusive) to `to` (exclusive) converted
+   *         (when consumed) to this zone
+   */
+  public Stream<ZonedDateTime> zoned(long from, long to) {
+    return range(from, to).mapToObj(this::toZonedDateTime);
+  }
+
+  /**
+   * @return the time-stamps as seconds since the first one (epoch
+   *         nanoseconds do not fit exactly in a double column). Filling
+   *         throws an `ArithmeticException` if the nanoseconds since the
+   *         first time-stamp do not fit in a `long`.
+   */
+  public Columns.Column seconds() {
+    return (from, out, off, len) -> {
+      for (int i = 0; i < len; i++)
+        out[off + i] = Math.multiplyExact(from + i, period) / 1e9;
+    };
+  }
+}
@@ -0,0 +1,472 @@
+package pt.inescn.scratchpad;
+
+import java.util.Arrays;
+
+import no.uib.cipr.matrix.DenseMatrix;
+import no.uib.cipr.matrix.QRP;
+
+/**
+ * A rank revealing QR factorization A P = Q R that can be updated when columns
+ * are deleted from or appended to A. Only the compact form of the
+ * factorization is kept: R has as many rows as the rank of A, so that its
+ * leading `rank x rank` block is upper triangular and non-singular and all
+ * other columns (the dependent ones) are linear combinations of the leading
+ * ones. Each column of R is tagged with the index of the original column of A.
+ *
+ * Deleting a dependent column is only a matter of dropping the column of R.
+ * Deleting an independent column makes R upper Hessenberg; triangular form is
+ * restored with Givens rotations on R alone (O(rank * n)). Appending a column
+ * requires the thin Q factor (see `factorize(DenseMatrix, boolean)`) and is
+ * done by Gram-Schmidt orthogonalization with re-orthogonalization (O(m *
+ * rank)). None of the operations require a new factorization of A.
+ *
+ * The rank is determined in the same way as MTJ's `QRP`: a diagonal element
+ * of R with an absolute value less than `EPS` marks a dependent column. For
+ * badly scaled (or large) matrices the rounding errors may exceed `EPS`, so
+ * the tolerance is never less than max(m,n) × ulp(|R(0,0)|) (see
+ * `getTolerance`). The same tolerance is kept and used when columns are
+ * deleted or appended, so an update does not change the rank differently
+ * from a new factorization.
+ *
+ * @see no.uib.cipr.matrix.QRP
+ * @see https://en.wikipedia.org/wiki/Givens_rotation
+ * @see Golub and Van Loan, Matrix Computations, "Updating matrix
+ *      factorizations"
+ *
+ *      sbt "testOnly pt.inescn.utils.QRMatrixToolkitSpec"
+ */
+public class UpdatableQR {
+
+  /**
+   * Precision used to determine the rank. This is the same value used by
+   * `QRP.factor`.
+   */
+  static final double EPS = 1e-12;
+
+  private final int m; // number of rows of A
+  private int n; // number of active columns
+  private int rank; // number of rows of R
+  private double[] r; // rank x n upper trapezoidal, column major
+  private int[] cols; // cols[j] = original index of column j of R
+  private double[] q; // m x rank, column major (null if not kept)
+  private final double tol; // rank tolerance of the original factorization
+
+  /**
+   * Creates the factorization from its parts. No copies are made.
+   *
+   * @param m
+   *          - number of rows of the factored matrix
+   * @param n
+   *          - number of columns of R
+   * @param rank
+   *          - number of rows of R
+   * @param r
+   *          - upper trapezoidal R (rank x n) in column major order
+   * @param cols
+   *          - original column index of each column of R
+   * @param q
+   *          - thin Q (m x rank) in column major order or null
+   */
+  UpdatableQR(int m, int n, int rank, double[] r, int[] cols, double[] q) {
+    this.m = m;
+    this.n = n;
+    this.rank = rank;
+    this.r = r;
+    this.cols = cols;
+    this.q = q;
+    this.tol = tolerance(m, n, rank > 0 && n > 0 ? r[0] : 0.0);
+  }
+
+  /**
+   * The rank tolerance max(EPS, max(m,n) × ulp(|r00|)) of an `m x n` matrix
+   * whose first diagonal element of R is `r00`.
+   */
+  static double tolerance(int m, int n, double r00) {
+    return Math.max(EPS, Math.max(m, n) * Math.ulp(Math.abs(r00)));
+  }
+
+  /**
+   * Factors the matrix `A` using MTJ's rank revealing (pivoted) QR
+   * decomposition and keeps only the compact form of the results. If
+   * `keepQ` is true the thin Q factor (m x rank) is also kept so that new
+   * columns can be appended later.
+   *
+   * @param A
+   * @param keepQ
+   * @return the updatable factorization of `A`
+   */
+  public static UpdatableQR factorize(DenseMatrix A, boolean keepQ) {
+    int m = A.numRows();
+    int n = A.numColumns();
+    QRP qrp = QRP.factorize(A);
+    int[] pivot = qrp.getPVector();
+    DenseMatrix R = qrp.getR();
+    double[] rd = R.getData();
+    int ldr = R.numRows();
+    // Same as qrp.getRank() unless the rounding errors exceed EPS
+    int rank = pivotedRank(m, rd, 0, ldr, n, ldr);
+    double[] r = new double[rank * n];
+    for (int j = 0; j < n; j++)
+      System.arraycopy(rd, j * ldr, r, j * rank, Math.min(rank, j + 1));
+    double[] q = null;
+    if (keepQ) {
+      q = new double[m * rank];
+      System.arraycopy(qrp.getQ().getData(), 0, q, 0, m * rank);
+    }
+    return new UpdatableQR(m, n, rank, r, Arrays.copyOf(pivot, n), q);
+  }
+
+  /**
+   * Creates the (R only) factorization from the result of a pivoted
+   * Householder factorization. The rank is the number of leading diagonal
+   * elements of R with an absolute value of at least `EPS`. For large
+   * matrices the rounding errors may exceed `EPS`, so the threshold is never
+   * less than max(m,n) × ulp(|R(0,0)|) (for the small matrices the results
+   * are the same as `QRP`).
+   *
+   * @param m
+   *          - number of rows of the original matrix
+   * @param a
+   *          - column major factored matrix (R in the upper triangle)
+   * @param k
+   *          - number of rows of `a`
+   * @param n
+   *          - number of columns of `a`
+   * @param lda
+   *          - leading dimension of `a`
+   * @param pivot
+   *          - 0-based pivot vector of the factorization
+   * @return the updatable factorization (without Q)
+   * @see Householder#factorPivoted
+   */
+  static UpdatableQR fromPivoted(int m, double[] a, int k, int n, int lda,
+      int[] pivot) {
+    int rank = pivotedRank(m, a, 0, k, n, lda);
+    return new UpdatableQR(m, n, rank, Householder.upper(a, rank, n, lda),
+        Arrays.copyOf(pivot, n), null);
+  }
+
+  /**
+   * The rank used by `fromPivoted` of the factored matrix that starts at
+   * `a[off]`.
+   */
+  static int pivotedRank(int m, double[] a, int off, int k, int n, int lda) {
+    int kk = Math.min(k, n);
+    double tol = tolerance(m, n, kk > 0 ? a[off] : 0.0);
+    int rank;
+    for (rank = 0; rank < kk; rank++)
+      if (Math.abs(a[off + rank * lda + rank]) < tol)
+        break;
+    return rank;
+  }
+
+  /**
+   * @return the tolerance used to determine the rank, both when the matrix
+   *         was factored and when columns are deleted or appended
+   */
+  public double getTolerance() {
+    return tol;
+  }
+
+  /**
+   * @return number of rows of the factored matrix
+   */
+  public int numRows() {
+    return m;
+  }
+
+  /**
+   * @return number of (active) columns of the factored matrix
+   */
+  public int numColumns() {
+    return n;
+  }
+
+  /**
+   * @return the number of linearly independent columns
+   */
+  public int getRank() {
+    return rank;
+  }
+
+  /**
+   * @return true if the Q factor is kept and columns can be appended
+   */
+  public boolean hasQ() {
+    return q != null;
+  }
+
+  /**
+   * Returns the original column indexes in the order of the columns of R. The
+   * first `rank` indexes are the independent columns. This is equivalent to
+   * the pivot vector of `QRP`.
+   *
+   * @return a copy of the column indexes
+   */
+  public int[] getColumnIds() {
+    return Arrays.copyOf(cols, n);
+  }
+
+  /**
+   * @return a copy of R (rank x n)
+   */
+  public DenseMatrix getR() {
+    return new DenseMatrix(rank, n, Arrays.copyOf(r, rank * n), false);
+  }
+
+  /**
+   * @return a copy of the thin Q (m x rank) or null if it is not kept
+   */
+  public DenseMatrix getQ() {
+    if (q == null)
+      return null;
+    return new DenseMatrix(m, rank, Arrays.copyOf(q, m * rank), false);
+  }
+
+  /**
+   * Element (i,j) of R.
+   */
+  double getR(int i, int j) {
+    return r[j * rank + i];
+  }
+
+  /**
+   * Returns the position of the original column `colId` in R or -1 if the
+   * column is not (or no longer) in the factorization.
+   *
+   * @param colId
+   * @return position in R or -1
+   */
+  public int position(int colId) {
+    for (int j = 0; j < n; j++)
+      if (cols[j] == colId)
+        return j;
+    return -1;
+  }
+
+  /**
+   * Calculates the regression coefficients of the dependent columns. It
+   * solves R11 * b = R12 by back substitution, where R11 is the leading
+   * upper triangular block and R12 holds the dependent columns.
+   *
+   * @return the coefficients (rank x (n - rank)). Column k holds the
+   *         coefficients of the dependent column at position `rank + k`.
+   */
+  public DenseMatrix dependentCoefficients() {
+    int nd = n - rank;
+    double[] b = new double[rank * nd];
+    System.arraycopy(r, rank * rank, b, 0, rank * nd);
+    for (int k = 0; k < nd; k++) {
+      int off = k * rank;
+      for (int i = rank - 1; i >= 0; i--) {
+        double s = b[off + i] / r[i * rank + i];
+        b[off + i] = s;
+        int ci = i * rank;
+        for (int l = 0; l < i; l++)
+          b[off + l] -= s * r[ci + l];
+      }
+    }
+    return new DenseMatrix(rank, nd, b, false);
+  }
+
+  /**
+   * Removes the original column `colId` from the factorization. If the column
+   * is a dependent column it is simply dropped. If it is an independent
+   * column, R is re-triangularized with Givens rotations. In this case one of
+   * the dependent columns may become independent (the one with the largest
+   * residual is selected) or the rank decreases by one.
+   *
+   * @param colId
+   * @throws IllegalArgumentException
+   *           if the column is not in the factorization
+   */
+  public void deleteColumn(int colId) {
+    int p = position(colId);
+    if (p < 0)
+      throw new IllegalArgumentException("Column " + colId
+          + " is not in the factorization");
+    // Shift the columns to the left
+    System.arraycopy(r, (p + 1) * rank, r, p * rank, (n - p - 1) * rank);
+    System.arraycopy(cols, p + 1, cols, p, n - p - 1);
+    n--;
+    if (p >= rank)
+      return;
+
+    // Columns p..rank-2 now have a sub-diagonal element. Eliminate these.
+    for (int i = p; i < rank - 1; i++) {
+      double a = r[i * rank + i];
+      double b = r[i * rank + i + 1];
+      if (b == 0.0)
+        continue;
+      double h = Math.hypot(a, b);
+      double c = a / h;
+      double s = b / h;
+      for (int j = i; j < n; j++) {
+        int o = j * rank;
+        double x = r[o + i];
+        double y = r[o + i + 1];
+        r[o + i] = c * x + s * y;
+        r[o + i + 1] = -s * x + c * y;
+      }
+      r[i * rank + i + 1] = 0.0;
+      if (q != null)
+        rotateQ(i, c, s);
+    }
+
+    // The last row now only has (possibly) non-zero elements in the
+    // trailing columns. Select the largest one as the new independent column.
+    int last = rank - 1;
+    int best = -1;
+    double max = 0.0;
+    for (int j = last; j < n; j++) {
+      double v = Math.abs(r[j * rank + last]);
+      if (v > max) {
+        max = v;
+        best = j;
+      }
+    }
+    if (best >= 0 && max >= tol) {
+      swapColumns(last, best);
+    } else {
+      dropLastRow();
+    }
+  }
+
+  /**
+   * Removes a set of original columns from the factorization. Dependent
+   * columns are removed first because that does not require any rotations.
+   *
+   * @param colIds
+   * @see deleteColumn
+   */
+  public void deleteColumns(int[] colIds) {
+    boolean[] done = new boolean[colIds.length];
+    for (int i = 0; i < colIds.length; i++) {
+      int p = position(colIds[i]);
+      if (p >= rank) {
+        deleteColumn(colIds[i]);
+        done[i] = true;
+      }
+    }
+    for (int i = 0; i < colIds.length; i++)
+      if (!done[i])
+        deleteColumn(colIds[i]);
+  }
+
+  /**
+   * Appends a new column `a` with the original index `colId` to the
+   * factorization. The column is orthogonalized against Q (twice, which is
+   * enough to keep Q orthogonal to working precision). If the residual norm
+   * is not negligible, the column becomes a new independent column and the
+   * rank increases by one. Otherwise it is added as a dependent column.
+   *
+   * @param a
+   *          - new column (length m)
+   * @param colId
+   *          - index used to identify this column
+   * @return true if the column is linearly independent of the existing ones
+   * @throws IllegalStateException
+   *           if the Q factor was not kept
+   */
+  public boolean appendColumn(double[] a, int colId) {
+    if (q == null)
+      throw new IllegalStateException("Q factor not kept: cannot append columns");
+    if (a.length != m)
+      throw new IllegalArgumentException("Column must have " + m + " rows");
+
+    double[] w = Arrays.copyOf(a, m);
+    double[] rc = new double[rank];
+    for (int pass = 0; pass < 2; pass++) {
+      for (int i = 0; i < rank; i++) {
+        int o = i * m;
+        double s = 0.0;
+        for (int l = 0; l < m; l++)
+          s += q[o + l] * w[l];
+        rc[i] += s;
+        for (int l = 0; l < m; l++)
+          w[l] -= s * q[o + l];
+      }
+    }
+    double rho = 0.0;
+    for (int l = 0; l < m; l++)
+      rho += w[l] * w[l];
+    rho = Math.sqrt(rho);
+
+    boolean independent = (rho >= tol) && (rank < m);
+    if (independent) {
+      // Insert as column `rank` with a new row
+      int nrank = rank + 1;
+      double[] nr = new double[nrank * (n + 1)];
+      int[] ncols = new int[n + 1];
+      for (int j = 0; j < rank; j++)
+        System.arraycopy(r, j * rank, nr, j * nrank, rank);
+      System.arraycopy(rc, 0, nr, rank * nrank, rank);
+      nr[rank * nrank + rank] = rho;
+      for (int j = rank; j < n; j++)
+        System.arraycopy(r, j * rank, nr, (j + 1) * nrank, rank);
+      System.arraycopy(cols, 0, ncols, 0, rank);
+      ncols[rank] = colId;
+      System.arraycopy(cols, rank, ncols, rank + 1, n - rank);
+
+      double[] nq = Arrays.copyOf(q, m * nrank);
+      for (int l = 0; l < m; l++)
+        nq[rank * m + l] = w[l] / rho;
+
+      r = nr;
+      cols = ncols;
+      q = nq;
+      rank = nrank;
+    } else {
+      r = Arrays.copyOf(r, rank * (n + 1));
+      System.arraycopy(rc, 0, r, n * rank, rank);
+      cols = Arrays.copyOf(cols, n + 1);
+      cols[n] = colId;
+    }
+    n++;
+    return independent;
+  }
+
+  /**
+   * Applies the transpose of the Givens rotation (c, s) acting on rows i and
+   * i+1 of R to the columns i and i+1 of Q, so that Q * R remains unchanged.
+   */
+  private void rotateQ(int i, double c, double s) {
+    int o1 = i * m;
+    int o2 = (i + 1) * m;
+    for (int l = 0; l < m; l++) {
+      double x = q[o1 + l];
+      double y = q[o2 + l];
+      q[o1 + l] = c * x + s * y;
+      q[o2 + l] = -s * x + c * y;
+    }
+  }
+
+  private void swapColumns(int j1, int j2) {
+    if (j1 == j2)
+      return;
+    for (int i = 0; i < rank; i++) {
+      double t = r[j1 * rank + i];
+      r[j1 * rank + i] = r[j2 * rank + i];
+      r[j2 * rank + i] = t;
+    }
+    int t = cols[j1];
+    cols[j1] = cols[j2];
+    cols[j2] = t;
+  }
+
+  /**
+   * Removes the last row of R (and the last column of Q). Used when the rank
+   * decreases.
+   */
+  private void dropLastRow() {
+    int nrank = rank - 1;
+    double[] nr = new double[nrank * n];
+    for (int j = 0; j < n; j++)
+      System.arraycopy(r, j * rank, nr, j * nrank, nrank);
+    r = nr;
+    if (q != null)
+      q = Arrays.copyOf(q, m * nrank);
+    rank = nrank;
+  }
+
+}
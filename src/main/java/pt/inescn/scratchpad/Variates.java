@@ -0,0 +1,396 @@
+package pt.inescn.scratchpad;
+
+import java.nio.DoubleBuffer;
+import java.util.SplittableRandom;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.DoubleConsumer;
+import java.util.function.IntConsumer;
+import java.util.stream.DoubleStream;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Primitive (unboxed) streams of random variates that can be generated in
+ * parallel. The samples are split into blocks of `BLOCK` consecutive
+ * samples. Each block has its own `SplittableRandom` whose seed is a hash of
+ * the stream's seed and the block number, so sample i only depends on the
+ * seed and on i. The same seed therefore gives the same samples in the same
+ * order for sequential and parallel streams, and for any number of threads.
+ * The streams only split at block boundaries.
+ *
+ * `fill` writes a range of samples of the stream directly into a `double[]`
+ * or a `DoubleBuffer`, one block per task. A range can therefore be filled
+ * without generating the blocks that precede it (see {@link Columns}).
+ *
+ * The distributions are those of commons-math's `NormalDistribution`,
+ * `WeibullDistribution` and `ParetoDistribution` (with the same parameters),
+ * sampled with `SplittableRandom` instead of a shared `RandomGenerator`.
+ *
+ * @see StreamBuilders#normalDoubles(long, double, double)
+ * @see java.util.SplittableRandom
+ * @see https://doi.org/10.1145/2714064.2660195
+ *
+ *      sbt "run-main pt.inescn.scratchpad.StreamBuilders"
+ */
+public final class Variates {
+
+  /**
+   * Number of consecutive samples generated with the same generator.
+   */
+  public static final int BLOCK = 4096;
+
+  private Variates() {
+  }
+
+  /**
+   * Draws one sample. Implementations must only use `r` (no other state), so
+   * that the samples only depend on the seed.
+   */
+  @FunctionalInterface
+  public interface Sampler {
+    double sample(SplittableRandom r);
+  }
+
+  /**
+   * Discrete version of {@link Sampler}.
+   */
+  @FunctionalInterface
+  public interface IntSampler {
+    int sample(SplittableRandom r);
+  }
+
+  /**
+   * @return uniform samples in [lower, upper)
+   */
+  public static Sampler uniform(double lower, double upper) {
+    return r -> r.nextDouble(lower, upper);
+  }
+
+  /**
+   * Box-Muller transform (one of the two values is used, so no state is
+   * kept between samples).
+   *
+   * @return normal samples
+   */
+  public static Sampler normal(double mean, double sd) {
+    return r -> {
+      double u = 1.0 - r.nextDouble(); // (0, 1]
+      double v = r.nextDouble();
+      return mean + sd * Math.sqrt(-2.0 * Math.log(u))
+          * Math.cos(2.0 * Math.PI * v);
+    };
+  }
+
+  /**
+   * Inverse of the cumulative distribution function.
+   *
+   * @param alpha
+   *          - shape
+   * @param beta
+   *          - scale
+   * @return Weibull samples
+   */
+  public static Sampler weibull(double alpha, double beta) {
+    return r -> beta * Math.pow(-Math.log1p(-r.nextDouble()), 1.0 / alpha);
+  }
+
+  /**
+   * Inverse of the cumulative distribution function.
+   *
+   * @param scale
+   * @param shape
+   * @return Pareto samples
+   */
+  public static Sampler pareto(double scale, double shape) {
+    return r -> scale * Math.pow(1.0 - r.nextDouble(), -1.0 / shape);
+  }
+
+  /**
+   * Each sample is drawn from component i with probability proportional to
+   * `weights[i]`. The component is selected with an {@link AliasSampler}.
+   *
+   * @param weights
+   *          - non-negative weights (need not sum to 1)
+   * @param components
+   *          - one sampler per weight
+   * @return samples of the mixture
+   */
+  public static Sampler mixture(double[] weights, Sampler... components) {
+    if (weights.length != components.length)
+      throw new IllegalArgumentException("Expected one weight per component");
+    AliasSampler select = new AliasSampler(weights);
+    Sampler[] cs = components.clone();
+    return r -> cs[select.sample(r)].sample(r);
+  }
+
+  /**
+   * Generator of block `block` (see MurmurHash3's 64 bit finalizer).
+   */
+  static SplittableRandom generator(long seed, long block) {
+    long h = seed ^ (block * 0x9E3779B97F4A7C15L);
+    h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+    h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+    return new SplittableRandom(h ^ (h >>> 33));
+  }
+
+  /**
+   * @param seed
+   * @param size
+   *          - number of samples (`Long.MAX_VALUE` for an unbounded stream
+   *          that is cut with `limit`)
+   * @param sampler
+   * @return a sized stream of samples that splits at block boundaries
+   */
+  public static DoubleStream stream(long seed, long size, Sampler sampler) {
+    if (size < 0)
+      throw new IllegalArgumentException("Negative size " + size);
+    return StreamSupport.doubleStream(new DoubleBlocks(seed, 0, size,
+        sampler), false);
+  }
+
+  /**
+   * Discrete version of `stream`.
+   *
+   * @see AliasSampler
+   */
+  public static IntStream ints(long seed, long size, IntSampler sampler) {
+    if (size < 0)
+      throw new IllegalArgumentException("Negative size " + size);
+    return StreamSupport.intStream(new IntBlocks(seed, 0, size, sampler),
+        false);
+  }
+
+  /**
+   * Fills `a` with the first `a.length` samples of `stream(seed, ...)`. The
+   * blocks are generated in parallel.
+   */
+  public static void fill(long seed, double[] a, Sampler sampler) {
+    fill(seed, 0, a, 0, a.length, sampler);
+  }
+
+  /**
+   * Fills `a[off]` to `a[off + len - 1]` with samples `from` to `from + len
+   * - 1` of `stream(seed, ...)`. If `from` is not the start of a block the
+   * preceding samples of its block are generated and dropped.
+   */
+  public static void fill(long seed, long from, double[] a, int off, int len,
+      Sampler sampler) {
+    checkRange(from, a.length, off, len);
+    inBlocks(seed, from, len, r -> sampler.sample(r), (r, lo, hi) -> {
+      for (int i = lo; i < hi; i++)
+        a[off + i] = sampler.sample(r);
+    });
+  }
+
+  /**
+   * Fills `a` with the first `a.length` samples of `ints(seed, ...)`.
+   */
+  public static void fill(long seed, int[] a, IntSampler sampler) {
+    fill(seed, 0, a, 0, a.length, sampler);
+  }
+
+  /**
+   * Discrete version of `fill`.
+   */
+  public static void fill(long seed, long from, int[] a, int off, int len,
+      IntSampler sampler) {
+    checkRange(from, a.length, off, len);
+    inBlocks(seed, from, len, r -> sampler.sample(r), (r, lo, hi) -> {
+      for (int i = lo; i < hi; i++)
+        a[off + i] = sampler.sample(r);
+    });
+  }
+
+  /**
+   * Fills the remaining elements of `buffer` (from its position to its
+   * limit) with the first samples of `stream(seed, ...)` and moves its
+   * position to its limit, as a relative bulk `put`. Heap buffers are filled
+   * through their array. Direct (for example memory mapped) buffers are filled
+   * with absolute `put`s.
+   */
+  public static void fill(long seed, DoubleBuffer buffer, Sampler sampler) {
+    int pos = buffer.position();
+    int len = buffer.remaining();
+    if (buffer.hasArray())
+      fill(seed, 0, buffer.array(), buffer.arrayOffset() + pos, len, sampler);
+    else
+      inBlocks(seed, 0, len, r -> sampler.sample(r), (r, lo, hi) -> {
+        for (int i = lo; i < hi; i++)
+          buffer.put(pos + i, sampler.sample(r));
+      });
+    buffer.position(pos + len);
+  }
+
+  private static void checkRange(long from, int length, int off, int len) {
+    if (from < 0 || off < 0 || len < 0 || off + len > length)
+      throw new IndexOutOfBoundsException("Range [" + off + ", " + (off + len)
+          + ") not in [0, " + length + ") or negative start " + from);
+  }
+
+  /**
+   * Fills elements `lo` to `hi - 1` (relative to the first requested sample)
+   * with the generator of their block.
+   */
+  @FunctionalInterface
+  private interface BlockFill {
+    void fill(SplittableRandom r, int lo, int hi);
+  }
+
+  /**
+   * Calls `fill` once per block of samples `from` to `from + len - 1`, in
+   * parallel. `skip` draws (and drops) one sample.
+   */
+  private static void inBlocks(long seed, long from, int len,
+      Consumer<SplittableRandom> skip, BlockFill fill) {
+    if (len == 0)
+      return;
+    long first = from / BLOCK;
+    long last = (from + len - 1) / BLOCK;
+    LongStream.rangeClosed(first, last).parallel().forEach(b -> {
+      SplittableRandom r = generator(seed, b);
+      long start = b * BLOCK;
+      for (long i = start; i < from; i++)
+        skip.accept(r);
+      int lo = (int) (Math.max(from, start) - from);
+      int hi = (int) (Math.min(from + len, start + BLOCK) - from);
+      fill.fill(r, lo, hi);
+    });
+  }
+
+  /**
+   * Samples `index` (inclusive) to `end` (exclusive). A split always starts
+   * at a block boundary.
+   */
+  private abstract static class Blocks {
+
+    final long seed;
+    long index;
+    final long end;
+    SplittableRandom r;
+
+    Blocks(long seed, long from, long to) {
+      this.seed = seed;
+      this.index = from;
+      this.end = to;
+    }
+
+    /**
+     * @return the generator of the block of `index`
+     */
+    SplittableRandom generator() {
+      if (index % BLOCK == 0 || r == null)
+        r = Variates.generator(seed, index / BLOCK);
+      return r;
+    }
+
+    /**
+     * @return the end of the block of `index` (or of the range)
+     */
+    long blockEnd() {
+      return Math.min(end, (index / BLOCK + 1) * BLOCK);
+    }
+
+    /**
+     * @return the start of the second half or -1 if it cannot be split
+     */
+    long splitAt() {
+      if (r != null && index % BLOCK != 0)
+        return -1; // in the middle of a block
+      long blocks = (end - index) / BLOCK;
+      if (blocks < 2)
+        return -1;
+      return index + (blocks / 2) * BLOCK;
+    }
+
+    public long estimateSize() {
+      return end - index;
+    }
+
+    public int characteristics() {
+      return Spliterator.ORDERED | Spliterator.SIZED | Spliterator.SUBSIZED
+          | Spliterator.IMMUTABLE | Spliterator.NONNULL;
+    }
+  }
+
+  private static final class DoubleBlocks extends Blocks implements
+      Spliterator.OfDouble {
+
+    private final Sampler sampler;
+
+    DoubleBlocks(long seed, long from, long to, Sampler sampler) {
+      super(seed, from, to);
+      this.sampler = sampler;
+    }
+
+    @Override
+    public boolean tryAdvance(DoubleConsumer action) {
+      if (index >= end)
+        return false;
+      action.accept(sampler.sample(generator()));
+      index++;
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(DoubleConsumer action) {
+      while (index < end) {
+        SplittableRandom g = generator();
+        for (long to = blockEnd(); index < to; index++)
+          action.accept(sampler.sample(g));
+      }
+    }
+
+    @Override
+    public Spliterator.OfDouble trySplit() {
+      long mid = splitAt();
+      if (mid < 0)
+        return null;
+      DoubleBlocks prefix = new DoubleBlocks(seed, index, mid, sampler);
+      index = mid;
+      r = null;
+      return prefix;
+    }
+  }
+
+  private static final class IntBlocks extends Blocks implements
+      Spliterator.OfInt {
+
+    private final IntSampler sampler;
+
+    IntBlocks(long seed, long from, long to, IntSampler sampler) {
+      super(seed, from, to);
+      this.sampler = sampler;
+    }
+
+    @Override
+    public boolean tryAdvance(IntConsumer action) {
+      if (index >= end)
+        return false;
+      action.accept(sampler.sample(generator()));
+      index++;
+      return true;
+    }
+
+    @Override
+    public void forEachRemaining(IntConsumer action) {
+      while (index < end) {
+        SplittableRandom g = generator();
+        for (long to = blockEnd(); index < to; index++)
+          action.accept(sampler.sample(g));
+      }
+    }
+
+    @Override
+    public Spliterator.OfInt trySplit() {
+      long mid = splitAt();
+      if (mid < 0)
+        return null;
+      IntBlocks prefix = new IntBlocks(seed, index, mid, sampler);
+      index = mid;
+      r = null;
+      return prefix;
+    }
+  }
+}
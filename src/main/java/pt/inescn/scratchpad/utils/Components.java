@@ -0,0 +1,162 @@
+package pt.inescn.scratchpad.utils;
+
+import java.util.Arrays;
+
+/**
+ *  The {@code Components} class lists all the components of a union–find
+ *  data type ({@link UF}, {@link ConcurrentUF} or {@link KeyedUF}) in a
+ *  compressed (CSR like) layout. The members of component <em>k</em> are
+ *  {@code members[offsets[k]]} to {@code members[offsets[k+1] - 1]}, in
+ *  increasing order of the sites. The components are ordered by their
+ *  smallest site. For {@link KeyedUF} the sites are reported with their ids
+ *  and "order" refers to the order in which the ids were first added.
+ *  <p>
+ *  It is built in a single linear pass over the sites (one <em>find</em>
+ *  per site followed by a counting sort), and only uses primitive arrays,
+ *  so no map or set is created per component or per connection.
+ *
+ *  @see UF#components()
+ *  @see <a href="https://en.wikipedia.org/wiki/Sparse_matrix">Sparse matrix</a>
+ */
+public class Components {
+
+    private final int[] roots;    // roots[k] = component identifier of component k
+    private final int[] offsets;  // start of each component in members (count + 1)
+    private final int[] members;  // all sites grouped by component
+
+    private Components(int[] roots, int[] offsets, int[] members) {
+        this.roots = roots;
+        this.offsets = offsets;
+        this.members = members;
+    }
+
+    /**
+     * Groups the sites by root.
+     *
+     * @param  root root[i] = component identifier of site i (between 0 and n-1)
+     * @param  keys if not {@code null} keys[i] is the site id that is
+     *         reported for site i (members and roots)
+     * @return the components
+     */
+    static Components group(int[] root, int[] keys) {
+        int n = root.length;
+        int[] index = new int[n];   // index[r] = component of root r (+1)
+        int[] comp = new int[n];    // comp[i] = component of site i
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int r = root[i];
+            if (index[r] == 0) index[r] = ++count;
+            comp[i] = index[r] - 1;
+        }
+        int[] roots = new int[count];
+        int[] offsets = new int[count + 1];
+        for (int i = 0; i < n; i++) offsets[comp[i] + 1]++;
+        for (int k = 0; k < count; k++) offsets[k + 1] += offsets[k];
+        int[] next = Arrays.copyOf(offsets, count);
+        int[] members = new int[n];
+        for (int i = 0; i < n; i++) {
+            int id = keys == null ? i : keys[i];
+            members[next[comp[i]]++] = id;
+            if (root[i] == i) roots[comp[i]] = id;
+        }
+        return new Components(roots, offsets, members);
+    }
+
+    /**
+     * Returns the number of components.
+     *
+     * @return the number of components
+     */
+    public int count() {
+        return roots.length;
+    }
+
+    /**
+     * Returns the component identifier (root) of component {@code k}.
+     *
+     * @param  k the component (between 0 and count-1)
+     * @return the site that is the root of the component
+     */
+    public int root(int k) {
+        return roots[k];
+    }
+
+    /**
+     * Returns the number of sites of component {@code k}.
+     *
+     * @param  k the component (between 0 and count-1)
+     * @return the size of the component
+     */
+    public int size(int k) {
+        return offsets[k + 1] - offsets[k];
+    }
+
+    /**
+     * Returns the number of sites of all components.
+     *
+     * @return sizes[k] = size of component k
+     */
+    public int[] sizes() {
+        int[] s = new int[roots.length];
+        for (int k = 0; k < s.length; k++) s[k] = size(k);
+        return s;
+    }
+
+    /**
+     * Returns the index of the first member of component {@code k}.
+     *
+     * @param  k the component (between 0 and count-1)
+     * @return the index of the first member in {@link #getMembers()}
+     */
+    public int start(int k) {
+        return offsets[k];
+    }
+
+    /**
+     * Returns the index after the last member of component {@code k}.
+     *
+     * @param  k the component (between 0 and count-1)
+     * @return the index after the last member in {@link #getMembers()}
+     */
+    public int end(int k) {
+        return offsets[k + 1];
+    }
+
+    /**
+     * Returns a copy of the members of component {@code k}.
+     *
+     * @param  k the component (between 0 and count-1)
+     * @return the sites of the component in increasing order
+     */
+    public int[] members(int k) {
+        return Arrays.copyOfRange(members, offsets[k], offsets[k + 1]);
+    }
+
+    /**
+     * Returns the offsets of the components (not copied).
+     *
+     * @return the start of each component in the members (count + 1 elements)
+     */
+    public int[] getOffsets() {
+        return offsets;
+    }
+
+    /**
+     * Returns the members of all the components (not copied).
+     *
+     * @return the sites grouped by component
+     */
+    public int[] getMembers() {
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int k = 0; k < count(); k++) {
+            if (k > 0) sb.append(',');
+            sb.append(root(k)).append("->").append(Arrays.toString(members(k)));
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,207 @@
+package pt.inescn.scratchpad.utils;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.IntStream;
+
+/******************************************************************************
+ *  Lock-free (wait-free find) union–find that can be used by several threads
+ *  at the same time.
+ *
+ *  sbt "run-main pt.inescn.scratchpad.utils.ConcurrentUF"
+ *
+ ******************************************************************************/
+
+/**
+ *  The {@code ConcurrentUF} class is a thread safe version of {@link UF}.
+ *  <em>find</em>, <em>connected</em>, <em>count</em> and
+ *  <em>components</em> are the same as those of {@link UF}, but
+ *  <em>union</em> returns {@code true} if the call merged two components
+ *  (exactly one of several racing calls on the same pair of components
+ *  does), whereas {@link UF#union} returns nothing. Summing these results
+ *  gives the number of merges without reading the <em>count</em>.
+ *  <p>
+ *  All threads may call <em>union</em>, <em>find</em>,
+ *  <em>connected</em> and <em>count</em> concurrently without locks, so
+ *  parallel workers can merge components as soon as they find a connection
+ *  (for example a pair of correlated columns) instead of collecting all the
+ *  connections for a single threaded pass.
+ *  <p>
+ *  The parents are kept in an {@link AtomicIntegerArray}. A root is only
+ *  linked with a compare-and-set that expects it to still be a root, so a
+ *  union that races with another union of the same root is retried with the
+ *  new roots. Ranks cannot be updated atomically with the link, so the root
+ *  with the smaller index is always linked to the root with the larger one.
+ *  This total order prevents cycles. Path compression is done by halving:
+ *  each visited site is swung to its grandparent with a compare-and-set, which
+ *  may fail harmlessly if another thread changed the parent first.
+ *  <p>
+ *  The <em>count</em> is exact once all the unions have finished. While
+ *  unions are running it is the count at some moment in between.
+ *
+ *  @see UF
+ *  @see <a href="https://doi.org/10.1145/103418.103458">Anderson and Woll,
+ *       Wait-free parallel algorithms for the union-find problem</a>
+ *  @see <a href="https://arxiv.org/abs/1911.06347">Jayanti and Tarjan,
+ *       Concurrent Disjoint Set Union</a>
+ */
+public class ConcurrentUF {
+
+    private final AtomicIntegerArray parent;  // parent[i] = parent of i
+    private final AtomicInteger count;        // number of components
+
+    /**
+     * Initializes an empty union–find data structure with {@code n} sites
+     * {@code 0} through {@code n-1}. Each site is initially in its own
+     * component.
+     *
+     * @param  n the number of sites
+     * @throws IllegalArgumentException if {@code n < 0}
+     */
+    public ConcurrentUF(int n) {
+        if (n < 0) throw new IllegalArgumentException();
+        count = new AtomicInteger(n);
+        parent = new AtomicIntegerArray(n);
+        for (int i = 0; i < n; i++) {
+            parent.set(i, i);
+        }
+    }
+
+    /**
+     * Returns the component identifier for the component containing site {@code p}.
+     * If unions are running concurrently the identifier may be outdated as
+     * soon as it is returned.
+     *
+     * @param  p the integer representing one site
+     * @return the component identifier for the component containing site {@code p}
+     * @throws IndexOutOfBoundsException unless {@code 0 <= p < n}
+     */
+    public int find(int p) {
+        validate(p);
+        while (true) {
+            int q = parent.get(p);
+            if (q == p) return p;
+            int r = parent.get(q);
+            if (q != r) parent.compareAndSet(p, q, r);  // path compression by halving
+            p = r;
+        }
+    }
+
+    /**
+     * Returns the number of components.
+     *
+     * @return the number of components (between {@code 1} and {@code n})
+     */
+    public int count() {
+        return count.get();
+    }
+
+    /**
+     * Returns true if the the two sites are in the same component. If the
+     * roots differ the result is only returned if the first root has not been
+     * linked in the meantime.
+     *
+     * @param  p the integer representing one site
+     * @param  q the integer representing the other site
+     * @return {@code true} if the two sites {@code p} and {@code q} are in the same component;
+     *         {@code false} otherwise
+     * @throws IndexOutOfBoundsException unless
+     *         both {@code 0 <= p < n} and {@code 0 <= q < n}
+     */
+    public boolean connected(int p, int q) {
+        while (true) {
+            int rootP = find(p);
+            int rootQ = find(q);
+            if (rootP == rootQ) return true;
+            if (parent.get(rootP) == rootP) return false;
+        }
+    }
+
+    /**
+     * Merges the component containing site {@code p} with the
+     * the component containing site {@code q}.
+     *
+     * @param  p the integer representing one site
+     * @param  q the integer representing the other site
+     * @return {@code true} if this call merged two components, {@code false}
+     *         if they were already the same
+     * @throws IndexOutOfBoundsException unless
+     *         both {@code 0 <= p < n} and {@code 0 <= q < n}
+     */
+    public boolean union(int p, int q) {
+        while (true) {
+            int rootP = find(p);
+            int rootQ = find(q);
+            if (rootP == rootQ) return false;
+
+            // link the smaller root to the larger one, if it is still a root
+            int lo = Math.min(rootP, rootQ);
+            int hi = Math.max(rootP, rootQ);
+            if (parent.compareAndSet(lo, lo, hi)) {
+                count.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of sites.
+     *
+     * @return the number of sites {@code n}
+     */
+    public int size() {
+        return parent.length();
+    }
+
+    /**
+     * Lists all the components in a compressed layout (see {@link Components})
+     * with a single pass over the sites. Only call this once all unions have
+     * finished.
+     *
+     * @return the components, including the ones with a single site
+     */
+    public Components components() {
+        int n = parent.length();
+        int[] root = new int[n];
+        for (int i = 0; i < n; i++) {
+            root[i] = find(i);
+        }
+        return Components.group(root, null);
+    }
+
+    // validate that p is a valid index
+    private void validate(int p) {
+        int n = parent.length();
+        if (p < 0 || p >= n) {
+            throw new IndexOutOfBoundsException("index " + p + " is not between 0 and " + (n-1));
+        }
+    }
+
+    /**
+     * Unions random pairs of sites in parallel and checks that the number of
+     * components is the same as the one of the sequential {@link UF}.
+     *
+     * @param args the command-line arguments
+     */
+    public static void main(String[] args) {
+        int n = 1000000;
+        int m = n / 2;
+        Random r = new Random(1234);
+        int[] p = new int[m];
+        int[] q = new int[m];
+        for (int i = 0; i < m; i++) {
+            p[i] = r.nextInt(n);
+            q[i] = r.nextInt(n);
+        }
+        long t0 = System.nanoTime();
+        UF uf = new UF(n);
+        for (int i = 0; i < m; i++) uf.union(p[i], q[i]);
+        long t1 = System.nanoTime();
+        ConcurrentUF cuf = new ConcurrentUF(n);
+        IntStream.range(0, m).parallel().forEach(i -> cuf.union(p[i], q[i]));
+        long t2 = System.nanoTime();
+        System.out.println(uf.count() + " components (" + (t1 - t0) / 1000000 + " ms)");
+        System.out.println(cuf.count() + " components in parallel (" + (t2 - t1) / 1000000 + " ms)");
+    }
+}
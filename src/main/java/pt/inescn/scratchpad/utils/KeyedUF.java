@@ -0,0 +1,212 @@
+package pt.inescn.scratchpad.utils;
+
+import java.util.Arrays;
+
+/**
+ *  The {@code KeyedUF} class is a {@link UF} whose sites are identified by
+ *  arbitrary {@code int} ids (for example column indices of a very wide
+ *  table of which only a few are connected) instead of 0 to <em>n</em>–1.
+ *  A site is added the first time its id is used, so the memory is
+ *  proportional to the number of ids that were seen and not to the largest
+ *  id.
+ *  <p>
+ *  The ids are mapped to dense indices with an open addressing (linear
+ *  probing) hash table of primitive {@code int}s, so no boxed integers are
+ *  created. The dense sites use weighted quick union by rank with path
+ *  compression by halving, as {@link UF}. All arrays grow by doubling.
+ *
+ *  @see UF
+ *  @see Components
+ */
+public class KeyedUF {
+
+    private static final int FREE = -1;
+
+    private int[] parent;  // parent[i] = parent of dense site i
+    private byte[] rank;   // rank[i] = rank of subtree rooted at i
+    private int[] keys;    // keys[i] = id of dense site i
+    private int[] table;   // hash table of dense sites (FREE if empty)
+    private int n;         // number of sites
+    private int count;     // number of components
+
+    /**
+     * Initializes an empty union–find data structure.
+     */
+    public KeyedUF() {
+        this(16);
+    }
+
+    /**
+     * Initializes an empty union–find data structure.
+     *
+     * @param  expected the expected number of sites (the arrays grow if there
+     *         are more)
+     * @throws IllegalArgumentException if {@code expected < 0}
+     */
+    public KeyedUF(int expected) {
+        if (expected < 0) throw new IllegalArgumentException();
+        int capacity = Math.max(expected, 4);
+        parent = new int[capacity];
+        rank = new byte[capacity];
+        keys = new int[capacity];
+        table = new int[tableSize(capacity)];
+        Arrays.fill(table, FREE);
+    }
+
+    // power of 2 at least twice the capacity (load factor at most 0.5)
+    private static int tableSize(int capacity) {
+        return Integer.highestOneBit(Math.max(capacity, 2) * 4 - 1);
+    }
+
+    // Murmur3 finalizer, spreads sequential ids over the table
+    private static int hash(int id) {
+        int h = id;
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    // slot of id in the table: either holds the id or is free
+    private int slot(int id) {
+        int mask = table.length - 1;
+        int s = hash(id) & mask;
+        while (table[s] != FREE && keys[table[s]] != id) {
+            s = (s + 1) & mask;
+        }
+        return s;
+    }
+
+    // dense index of id or -1 if it was never added
+    private int indexOf(int id) {
+        return table[slot(id)];
+    }
+
+    // dense index of id, adding a new site if needed
+    private int indexOrAdd(int id) {
+        int s = slot(id);
+        if (table[s] != FREE) return table[s];
+        if (n == parent.length) {
+            grow();
+            s = slot(id);
+        }
+        parent[n] = n;
+        rank[n] = 0;
+        keys[n] = id;
+        table[s] = n;
+        count++;
+        return n++;
+    }
+
+    private void grow() {
+        int capacity = parent.length * 2;
+        parent = Arrays.copyOf(parent, capacity);
+        rank = Arrays.copyOf(rank, capacity);
+        keys = Arrays.copyOf(keys, capacity);
+        table = new int[tableSize(capacity)];
+        Arrays.fill(table, FREE);
+        for (int i = 0; i < n; i++) {
+            table[slot(keys[i])] = i;
+        }
+    }
+
+    private int root(int i) {
+        while (i != parent[i]) {
+            parent[i] = parent[parent[i]];    // path compression by halving
+            i = parent[i];
+        }
+        return i;
+    }
+
+    /**
+     * Returns the component identifier for the component containing site
+     * {@code p}.
+     *
+     * @param  p the id of a site
+     * @return the id of the root of the component containing site {@code p}
+     *         ({@code p} itself if it was never added)
+     */
+    public int find(int p) {
+        int i = indexOf(p);
+        return i == FREE ? p : keys[root(i)];
+    }
+
+    /**
+     * Returns the number of sites (ids that were used).
+     *
+     * @return the number of sites
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Returns the number of components (of the sites that were added).
+     *
+     * @return the number of components
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Returns true if the the two sites are in the same component.
+     *
+     * @param  p the id of one site
+     * @param  q the id of the other site
+     * @return {@code true} if the two sites {@code p} and {@code q} are in the same component;
+     *         {@code false} otherwise
+     */
+    public boolean connected(int p, int q) {
+        return find(p) == find(q);
+    }
+
+    /**
+     * Adds a site (if it is new) in its own component.
+     *
+     * @param  p the id of the site
+     */
+    public void add(int p) {
+        indexOrAdd(p);
+    }
+
+    /**
+     * Merges the component containing site {@code p} with the
+     * the component containing site {@code q}. The sites are added if they
+     * are new.
+     *
+     * @param  p the id of one site
+     * @param  q the id of the other site
+     */
+    public void union(int p, int q) {
+        int rootP = root(indexOrAdd(p));
+        int rootQ = root(indexOrAdd(q));
+        if (rootP == rootQ) return;
+
+        // make root of smaller rank point to root of larger rank
+        if      (rank[rootP] < rank[rootQ]) parent[rootP] = rootQ;
+        else if (rank[rootP] > rank[rootQ]) parent[rootQ] = rootP;
+        else {
+            parent[rootQ] = rootP;
+            rank[rootP]++;
+        }
+        count--;
+    }
+
+    /**
+     * Lists all the components in a compressed layout (see {@link Components})
+     * with a single pass over the sites. The members and roots are the ids
+     * of the sites.
+     *
+     * @return the components, including the ones with a single site
+     */
+    public Components components() {
+        int[] root = new int[n];
+        for (int i = 0; i < n; i++) {
+            root[i] = root(i);
+        }
+        return Components.group(root, Arrays.copyOf(keys, n));
+    }
+}
@@ -85,7 +85,8 @@ import java.util.Random;
  *  Initializing a data structure with <em>n</em> sites takes linear time.
  *  Afterwards, the <em>union</em>, <em>find</em>, and <em>connected</em> 
  *  operations take logarithmic time (in the worst case) and the
- *  <em>count</em> operation takes constant time.
+ *  <em>count</em> operation takes constant time. All the components can be
+ *  listed in linear time (see {@link #components()}).
  *  Moreover, the amortized time per <em>union</em>, <em>find</em>,
  *  and <em>connected</em> operation has inverse Ackermann complexity.
  *  For alternate implementations of the same API, see
@@ -187,6 +188,21 @@ public class UF {
         count--;
     }
 
+    /**
+     * Lists all the components in a compressed layout (see {@link Components})
+     * with a single pass over the sites.
+     *
+     * @return the components, including the ones with a single site
+     */
+    public Components components() {
+        int n = parent.length;
+        int[] root = new int[n];
+        for (int i = 0; i < n; i++) {
+            root[i] = find(i);
+        }
+        return Components.group(root, null);
+    }
+
     // validate that p is a valid index
     private void validate(int p) {
         int n = parent.length;
@@ -507,7 +507,6 @@ ltfrDesign[,6] <- c(0, 0, 1, 0, 0, 1)
 
     addColumns( dt, c1, c2, c3 )
 
-    import smile.math.matrix.QRDecomposition
     /*
 ## $linearCombos
 ## $linearCombos[[1]]
@@ -523,18 +522,19 @@ ltfrDesign[,6] <- c(0, 0, 1, 0, 0, 1)
 
     import com.github.lwhite1.tablesaw.util.DoubleArrays;
 
+    import pt.inescn.scratchpad.QRMatrixToolkit
+    import pt.inescn.scratchpad.QREngine
+    import no.uib.cipr.matrix.DenseVector
+
     def findLinearCombo( cols: List[ FloatColumn ], c: FloatColumn ) = {
-      // Create a matrix
-      val am = DoubleArrays.to2dArray( cols: _* )
-      // Prepare QR decomposition
-      val qr = new QRDecomposition( am )
+      // Create a matrix: the columns are written directly in column major order
+      val am = toDenseMatrix( cols )
       // Create result vector
-      //val r = Array.emptyFloatArray(cols.size-1)
-      val rx = new Array[ Double ]( cols.size )
-      // See if c is a linear combination of cols
-      qr.solve( c.toDoubleArray(), rx )
-      println( s"is singular : ${qr.isSingular}" )
-      rx
+      val rx = new DenseVector( cols.size )
+      // See if c is a linear combination of cols (least squares with a QR decomposition)
+      am.solve( new DenseVector( c.toDoubleArray(), false ), rx )
+      println( s"is singular : ${QRMatrixToolkit.getRankN( am, QREngine.QRP ) < cols.size}" )
+      rx.getData
     }
 
     import org.apache.commons.math3.linear.RRQRDecomposition
@@ -557,103 +557,25 @@ ltfrDesign[,6] <- c(0, 0, 1, 0, 0, 1)
       
     }
 
+    // Same as caret's findLinearCombos (see QRMatrixToolkit.collinear): the
+    // columns are copied once, directly in column major order, and the QR
+    // decomposition works on that buffer
     def exp1( cols: List[ FloatColumn ], dropThreshold: Double = 1e-6 ) = {
-      import scala.language.postfixOps
-      import org.apache.commons.math3.linear.Array2DRowRealMatrix
-      import org.apache.commons.math3.linear.DefaultRealMatrixChangingVisitor
-
-      // Create a matrix
-      val am = DoubleArrays.to2dArray( cols: _* )
-      println( am.map( _.mkString( "|", ",", "|" ) ).mkString( "\n" ) )
-      // Prepare QR decomposition
-      val m = new Array2DRowRealMatrix( am, false ) // use array, don't copy 
-      val qr = new RRQRDecomposition( m )
-
-      // R <- qr.R(qrObj)                     # extract R matrix
-      val r = qr.getR
-      // numColumns <- dim(R)[2]              # number of columns in R
-      val numColumns = r.getColumnDimension
-      // rank <- qrObj$rank                   # number of independent columns
-      val rank = qr.getRank( dropThreshold / 1000 )
-      println( s"Rank = $rank" )
-      // pivot <- qrObj$pivot                 # get the pivot vector
-      val pivotm = qr.getP
-
-      // if (is.null(numColumns) || rank == numColumns)
-      if ( ( numColumns == 0 ) || ( rank == numColumns ) ) {
-        //list()                            # there are no linear combinations
-        // there are no linear combinations
-        println( s"Empty: rank = $rank" )
-        List()
-      } else {
-        // p1 <- 1:rank
-        val p1 = 0 to ( rank - 1 ) toArray
-        // X <- R[p1, p1]                    # extract the independent columns
-        // extract the independent columns
-        val x = r.getSubMatrix( p1, p1 )
-        println( s"x : ${( x.getRowDimension, x.getColumnDimension )}" )
-        println("R:\n" + r.toString())
-        println("X:\n" + x.toString())
-        // Y <- R[p1, -p1, drop = FALSE]     # extract the dependent columns
-        val p2 = rank to ( numColumns - 1 ) toArray
-        val s1 = p1.mkString( "," )
-        val s2 = p2.mkString( "," )
-        println( s1 )
-        println( s2 )
-        val y = r.getSubMatrix( p1, p2 )
-        println( s"y : ${( y.getRowDimension, y.getColumnDimension )}" )
-        println( s"y : ${y.toString()}" )
-        // b <- qr(X)                        # factor the independent columns
-        val b = new RRQRDecomposition( x )
-        // b <- qr.coef(b, Y)                # get regression coefficients of the dependent columns
-        val s = b.getSolver
-        val bc = s.solve( y )
-        // b[abs(b) < 1e-6] <- 0             # zap small values
-        println( s"coef' = ${bc.toString()}" )
-        bc.walkInColumnOrder( new DefaultRealMatrixChangingVisitor {
-          //override def visit(row : Int, column : Int, value: Double) = { if (Math.abs(value) < dropThreshold) 0.0 else value } 
-          override def visit( row: Int, column: Int, value: Double ) = { if ( Math.abs( value ) < dropThreshold ) 0.0 else value }
-        } )
-
-        println( s"pivotM = ${pivotm.toString()}" )
-        println( s"coef = ${bc.toString()}" )
-        println( s"coef(row, col) = (${bc.getRowDimension},${bc.getColumnDimension})")
-        println(bc.getRow(0).mkString(","))
-        println(bc.getRow(1).mkString(","))
-        println(bc.getColumn(0).mkString(",")) // ????
-        // println(bc.getColumn(1).mkString(","))
-
-        // Get the pivoted column inedexes
-        val pivot = ( 0 to pivotm.getColumnDimension - 1 ) map { x => pivotm.getColumn( x ).indexWhere { x => x == 1.0 } }
-        println( s"pivot = ${pivot.mkString( "," )}" )
-
-        // # generate a list with one element for each dependent column
-        //lapply(1:dim(Y)[2], function(i) c(pivot[rank + i], pivot[which(b[,i] != 0)]))
-        val nColsy = y.getColumnDimension
-        val depCols = 0 to nColsy - 1
-
-        val l = depCols.map { x =>
-          val v1 = bc.getColumn( x )
-          println(s"b[,$x] = " + v1.mkString(","));
-          val v2 = which( v1, { x => x != 0.0 } )
-          val v3 = v2.map { x => pivot( x ) }
-          println(s"rank + x = ${rank + x}")
-          val dep = pivot( rank + x )
-          println( s"dependent col = ${dep}" )
-          println( s"dependent cols = ${v3.mkString( "," )}" )
-          
-          // Checking
-          val ny = m.getColumnMatrix( dep )
-          val rs = 0 to (m.getRowDimension -1 ) toArray
-          val nm = m.getSubMatrix(rs, v3.toArray)
-          val rslt = nm.multiply(bc)
-          println(s"Check: ${rslt.toString()}")
-          
-          ( dep, v2 )
-        }
-        l
+      import scala.collection.JavaConverters._
+
+      val numRows = if ( cols.isEmpty ) 0 else cols.head.size
+      val data = toColumnMajor( cols )
+      // Each list holds the dependent column followed by the independent ones
+      val l = QRMatrixToolkit.collinear( data, numRows, cols.size, dropThreshold, true, QREngine.QRP )
+      val combos = l.asScala.map { c =>
+        val dep = c.get( 0 ).intValue
+        val indep = c.asScala.tail.map( _.intValue )
+        println( s"dependent col = ${dep}" )
+        println( s"dependent cols = ${indep.mkString( "," )}" )
+        ( dep, indep )
       }
-
+      if ( combos.isEmpty ) println( "Empty: no linear combinations" )
+      combos.toList
     }
 
     // Ok 2 = c3 - 0, 1
@@ -665,6 +587,10 @@ ltfrDesign[,6] <- c(0, 0, 1, 0, 0, 1)
     // Empty ?
     //exp1( List(c1, c2, c3, c4, c6) )
 
+    // Ok - selects 4 = c5 - 0,1,2,3,5 (the same as caret)
+    val lcs = exp1( List( c1, c2, c3, c4, c5, c6 ) )
+    println( s"MTJ linear combinations = $lcs" )
+
     /*
     // http://finmath.net/
     // https://issues.apache.org/jira/browse/MATH-1101
@@ -1,7 +1,6 @@
 package pt.inescn.scratchpad
 
 import scala.util.Random
-import org.apache.commons.math3.distribution.UniformRealDistribution
 import org.apache.commons.math3.distribution.NormalDistribution 
 import org.apache.commons.math3.distribution.ParetoDistribution 
 import org.apache.commons.math3.distribution.UniformIntegerDistribution 
@@ -85,55 +84,39 @@ object StreamBuilder {
   def zonedDateTime( start: LocalDateTime, samplingRate: Duration, zone: ZoneId = ZoneId.systemDefault() ): Stream[ ZonedDateTime ] = {
     // ZoneId lisbon = ZoneId.of("Europe/Lisbon");
 
-    //now = LocalDateTime.now();
-    val startTime = ZonedDateTime.of( start, zone )
-    // sampling rate converted to delta durations
-    val sampling = Stream.iterate( samplingRate ) { s => s.plus( samplingRate ) }
-    // Add delta to start the to get final sampled date time-stamp
-    return sampling.map( s => startTime.plus( s ) )
-
+    // time-stamps computed as epoch nanoseconds, converted to the zone when used
+    val t = new Timestamps( start, samplingRate, zone )
+    return Stream.iterate( 1L ) { _ + 1 }.map( i => t.toZonedDateTime( t.at( i ) ) )
   }
 
-  import java.util.NavigableMap;
-  import java.util.Random;
-  import java.util.TreeMap;
-
   /**
-   * Rejection Sampling 
-   * http://stackoverflow.com/questions/30203362/how-to-generate-a-random-weighted-distribution-of-elements
-   * http://en.wikipedia.org/wiki/Rejection_sampling
+   * Primitive version of `zonedDateTime`: nanoseconds since the epoch
+   * (starting at `start + samplingRate`) that can be split and used in parallel.
+   * The stream ends at the last time-stamp that fits in a `Long` (see `Timestamps.size`).
+   *
+   * @see Timestamps
    */
-  class RandomCollection[ E ](random: Random = new Random(), classes : Map[Double, E]) {
-    
-    val tmap = scala.collection.immutable.TreeMap[ Double, E ]()
-    // calculate cumulative proportions
-    val (total, nmap) = classes.foldLeft((0.0, tmap)) {
-      case ( (acc, m), (k,v)) =>  
-       val nacc = acc + k
-       (nacc, m + (nacc -> v))
-    }
-    val map = if (total != 1.0) tmap else nmap
+  def epochNanos( start: LocalDateTime, samplingRate: Duration, zone: ZoneId = ZoneId.systemDefault() ): java.util.stream.LongStream =
+    new Timestamps( start, samplingRate, zone ).range( 1, Long.MaxValue )
 
-    def ceiling( weight: Double): Option[E] = {
-      val from = map.from( weight )
-      if ( from.isEmpty ) None
-      else Some( map( from.firstKey ) )
-    }
+  /**
+   * Samples the classes with probabilities proportional to their (real)
+   * weights in O(1) per sample with an alias table.
+   * 
+   * @see AliasSampler
+   * http://en.wikipedia.org/wiki/Alias_method
+   */
+  class RandomCollection[ E ]( classes: Seq[ ( Double, E ) ] ) {
+    val ( weights, values ) = classes.unzip
+    val alias = new AliasSampler( weights.toArray )
 
-    def floor(weight: Double): Option[E] = {
-      val to = map.to(weight)
-      if (to.isEmpty) None
-      else Some(map(to.lastKey))
-    }
+    def apply( u: Double ): E = values( alias.sample( u ) )
+    def sample( r: RandomGenerator ): E = apply( r.nextDouble )
   }
   
   def discreteMultiModal[E]( r: RandomGenerator = defr, classes : Map[Double, E]): Stream[ E ] = {
-    val d = new UniformRealDistribution( r, 0.0, 1.0 )
-    val w = new RandomCollection[E](defr, classes)
-    return Stream.continually{ 
-      val value = d.sample * w.total 
-      w.ceiling(value).get
-     }
+    val w = new RandomCollection[E]( classes.toSeq )
+    return Stream.continually( w.sample( r ) )
   }
 
   // TODO: need standard Double output bimodal - must be based on basic multi-model continuous
@@ -216,6 +199,16 @@ object StreamBuilder {
     tmp
   }
   
+  /**
+   * Splittable version of `combine`: the columns are generated in chunks of
+   * rows (one `Array[Double]` per column) that can be consumed in parallel
+   * and that are not memoized, so no history is kept.
+   * 
+   * @see Columns
+   */
+  def combineColumns( size: Long, chunkSize: Int )( columns: Columns.Column* ): java.util.stream.Stream[ Columns.Chunk ] =
+    new Columns( columns: _* ).chunks( size, chunkSize )
+
   // TODO: 
   def separate[T](s: Stream[ Seq[T] ], select: Seq[Int]) : Tuple2[ Option[Stream[Seq[T]]], Option[Stream[Seq[T]]] ] = ???
   
@@ -258,6 +251,9 @@ object StreamBuilder {
     val s10 = zonedDateTime( LocalDateTime.now(), sampling2, ZoneId.of( "Europe/Berlin" ) )
     println( s10.take( 10 ).toList.mkString( "{", ",", "}" ) )
 
+    val s10b = epochNanos( LocalDateTime.now(), sampling2, ZoneId.of( "Europe/Berlin" ) )
+    println( s10b.limit( 10 ).toArray.mkString( "{", ",", "}" ) )
+
     val s11 = combine( s1, s3 )
     println( s11.take( 10 ).toList.map( a => a.mkString( "<", ",", ">" ) ).mkString( "{", ",", "}" ) )
 
@@ -295,20 +291,12 @@ object StreamBuilder {
     println( s19.take( 12 ).toList.mkString( "{", ",", "}" ) )
 
     val w0 =  Map(0.1 -> "A", (0.3 ->  "B"), (0.6 ->  "C"))
-    val w1 = new RandomCollection[String]( r, w0 )
+    val w1 = new RandomCollection[String]( w0.toSeq )
     println("----------------------")
-    println(w1.ceiling(0.0))
-    println(w1.ceiling(0.01))
-    println(w1.ceiling(0.09999999))
-    println(w1.ceiling(0.1))
-    
-    println(w1.ceiling(0.1000001))
-    println(w1.ceiling(0.2))
-    println(w1.ceiling(0.4))
-    
-    println(w1.ceiling(0.400000001))
-    println(w1.ceiling(0.5))
-    println(w1.ceiling(1.0))
+    println(w1(0.0))
+    println(w1(0.2))
+    println(w1(0.5))
+    println(w1(0.9999999))
 
     val s200 = discreteMultiModal(r, w0)
     val as = s200.take(100).count { x => x == "A" }
@@ -330,6 +318,11 @@ object StreamBuilder {
     val s22 = combine( List( s4, s5 ) ).take( 5 ) #::: combine( List( s5, s6 ) )
     println( s22.take( 10 ).toList.map( a => a.mkString( "<", ",", ">" ) ).mkString( "{", ",", "}" ) )
 
+    // parallel chunks of columns
+    val s23 = combineColumns( 1000000, 4 * Variates.BLOCK )( Columns.linspace( 0.0, 1.0 ),
+      Columns.sampled( 1234, Variates.normal( 10, 2 ) ), Columns.sampled( 1235, Variates.weibull( 10, 2 ) ) )
+    println( s23.parallel.mapToDouble( c => c.column( 1 ).sum ).sum / 1000000 )
+
     // Issues with invariance
     /*
     val t = Set[Double](1,2, 3.0, "Hello")
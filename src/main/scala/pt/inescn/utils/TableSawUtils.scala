@@ -109,6 +109,89 @@ object TableSawUtils {
   }
   
 
+  /**
+   * Copies the columns `cols` into a single column major array, which is
+   * the layout of MTJ's `DenseMatrix` (column `j` starts at `j * nRows`).
+   * Each value is written directly to its final position so no intermediate
+   * `double[][]` (see `DoubleArrays.to2dArray`) or per column array (see
+   * `toDoubleArray`) is created. The columns are filled in parallel. Missing
+   * values are kept as `NaN`.
+   *
+   * @see [[toDenseMatrix]]
+   * @see [[pt.inescn.scratchpad.QRMatrixToolkit.collinear]]
+   */
+  def toColumnMajor( cols: Seq[ FloatColumn ] ): Array[ Double ] = {
+    val nRows = if ( cols.isEmpty ) 0 else cols.head.size
+    require( cols.forall( _.size == nRows ), "All columns must have the same number of rows" )
+    require( nRows.toLong * cols.size <= Int.MaxValue, s"Too many elements: $nRows x ${cols.size}" )
+    val data = new Array[ Double ]( nRows * cols.size )
+    cols.toIndexedSeq.zipWithIndex.par.foreach {
+      case ( c, j ) =>
+        val o = j * nRows
+        var i = 0
+        while ( i < nRows ) {
+          data( o + i ) = c.get( i )
+          i += 1
+        }
+    }
+    data
+  }
+
+  import no.uib.cipr.matrix.DenseMatrix
+
+  /**
+   * Wraps the column major data of the columns `cols` (see `toColumnMajor`)
+   * in an MTJ matrix without copying it.
+   */
+  def toDenseMatrix( cols: Seq[ FloatColumn ] ): DenseMatrix = {
+    val nRows = if ( cols.isEmpty ) 0 else cols.head.size
+    new DenseMatrix( nRows, cols.size, toColumnMajor( cols ), false )
+  }
+
+  import pt.inescn.scratchpad.Multicollinearity
+
+  /**
+   * Variance inflation factors of the columns `cols` and the condition
+   * number of their correlation matrix, from a single factorization (see
+   * `Multicollinearity`). Use this to screen all features before the slower
+   * `collinear` / `findLinearCombos` loop.
+   *
+   * @see [[pt.inescn.scratchpad.Multicollinearity]]
+   */
+  def multicollinearity( cols: Seq[ FloatColumn ] ): Multicollinearity = {
+    val nRows = if ( cols.isEmpty ) 0 else cols.head.size
+    new Multicollinearity( toColumnMajor( cols ), nRows, cols.size )
+  }
+
+  import pt.inescn.scratchpad.MappedMatrix
+
+  /**
+   * Writes the columns `cols` to the off-heap (memory mapped) matrix file
+   * `file`. The columns are written in parallel, each one directly to its
+   * position in the file, so only one column per thread is on the heap.
+   * The column names are kept in the file. Later experiments can use
+   * `MappedMatrix.open` instead of reading and parsing the table again.
+   *
+   * @see [[pt.inescn.scratchpad.MappedMatrix]]
+   */
+  def toMappedMatrix( cols: Seq[ FloatColumn ], file: java.nio.file.Path ): MappedMatrix = {
+    val nRows = if ( cols.isEmpty ) 0 else cols.head.size
+    require( cols.forall( _.size == nRows ), "All columns must have the same number of rows" )
+    val m = MappedMatrix.create( file, nRows, cols.size, cols.map( _.name ).asJava )
+    cols.toIndexedSeq.zipWithIndex.par.foreach {
+      case ( c, j ) =>
+        val col = new Array[ Double ]( nRows )
+        var i = 0
+        while ( i < nRows ) {
+          col( i ) = c.get( i )
+          i += 1
+        }
+        m.setColumn( j, 0, nRows, col, 0 )
+    }
+    m.flush()
+    m
+  }
+
   /**
    * Applies a function to two numeric columns of a table.
    * If the columns are not numerical, an `NaN`is returned.
@@ -187,33 +270,83 @@ object TableSawUtils {
   }
 
   import pt.inescn.scratchpad.utils.UF
+  import pt.inescn.scratchpad.utils.Components
 
+  /**
+   * Groups the columns of the correlated `pairs` into components (sets of
+   * columns that are correlated directly or through other columns). The
+   * union-find structure has one site per column (up to the largest column
+   * index in `pairs`). The components are then listed in a single linear
+   * pass (see `UF.components`).
+   *
+   * @return the union-find structure, the map from each component's root to
+   * its columns and the total number of correlated columns
+   */
   def findCorrelationComponents( chk_dep: ( ( Int, Int, Double ) ) => Unit )( pairs: Seq[ ( Int, Int, Double ) ] ) = {
     // Determine what sets of correlated variables exist
-    val uf = new UF( pairs.size )
+    val nCols = if ( pairs.isEmpty ) 0 else pairs.iterator.map( v => v._1 max v._2 ).max + 1
+    val uf = new UF( nCols )
     pairs.foreach( f => uf.union( f._1, f._2 ) )
-    // Create a map from the set's root to its elements
-    // Record all roots and theire members
-    val components = pairs.foldLeft( Map[ Int, Set[ Int ] ]() ){
-      case ( acc, v ) =>
-        val cp1 = uf.find( v._1 )
-        val cp2 = uf.find( v._2 )
-        chk_dep( v )
-        assert( cp1 == cp2 )
-        // get root's set
-        val s = acc.getOrElse( cp1, Set[ Int ]() )
-        // add elements to root's set
-        val ns = s + ( v._1, v._2 )
-        // update root's set
-        acc + ( cp1 -> ns )
+    pairs.foreach { v =>
+      chk_dep( v )
+      assert( uf.connected( v._1, v._2 ) )
     }
+    // Record all roots and their members
+    val components = correlatedComponents( uf.components )
     // Calculate the total number of correlated variables (irrespective of the set/root)
-    val totlComponents = components.foldLeft( 0 ){
-      case ( acc, v ) => acc + v._2.size
-    }
+    val totlComponents = components.values.map( _.size ).sum
     ( uf, components, totlComponents )
   }
 
+  /**
+   * Map from the root of each component with more than one column to its
+   * columns. Single columns are not correlated with any other column.
+   */
+  private def correlatedComponents( c: Components ): Map[ Int, Set[ Int ] ] = {
+    ( 0 until c.count ).iterator.filter( c.size( _ ) > 1 ).map( k => c.root( k ) -> c.members( k ).toSet ).toMap
+  }
+
+  import pt.inescn.scratchpad.utils.ConcurrentUF
+
+  /**
+   * The same as `findCorrelation` followed by `findCorrelationComponents`, but
+   * the pairs are not collected. Each worker merges the components of a pair
+   * of columns (see `ConcurrentUF`) as soon as their correlation passes the
+   * `cutoff`. `chk_dep` is called once for each of these pairs by the workers,
+   * never concurrently (the calls are serialized) but in no particular order.
+   * The components are then read from the union-find structure: a component
+   * is kept if it has more than one column.
+   *
+   * Unlike `findCorrelationComponents` the union-find structure has a site
+   * for every column of `t`, so its `count` includes all the columns that are
+   * not correlated with any other column.
+   *
+   * @return the union-find structure, the map from each component's root to
+   * its columns, the total number of correlated columns and the number of
+   * correlated pairs
+   * @see [[findCorrelationComponents]]
+   */
+  def findCorrelationComponentsPar( cor: ( Array[ Double ], Array[ Double ] ) => Double, cutoff: ( Double ) => Boolean )( chk_dep: ( ( Int, Int, Double ) ) => Unit )( t: Table ) = {
+    val ctypes = t.columnTypes()
+    val n = ctypes.length
+    val uf = new ConcurrentUF( n )
+    val found = new java.util.concurrent.atomic.LongAdder
+    val lock = new Object
+    ( 0 until n ).par.foreach { i =>
+      ( i + 1 until n ).par.foreach { j =>
+        val c = applyColumns( cor )( t, i, ctypes( i ), j, ctypes( j ) )
+        if ( cutoff( c ) ) {
+          lock.synchronized { chk_dep( ( i, j, c ) ) }
+          found.increment()
+          uf.union( i, j )
+        }
+      }
+    }
+    val components = correlatedComponents( uf.components )
+    val totlComponents = components.values.map( _.size ).sum
+    ( uf, components, totlComponents, found.sum )
+  }
+
   /*
    * Statistical and other ML related calculations
    */
@@ -225,15 +358,11 @@ object TableSawUtils {
    * those columns according to a given cutoff. 
    */
   def report_correlation( cor: ( Array[ Double ], Array[ Double ] ) => Double, cutoff: ( Double ) => Boolean )( chk_dep: ( ( Int, Int, Double ) ) => Unit )( dts: Table ) = {
-    val t = time { findCorrelation( cor, cutoff )( dts ) }
+    val ( uf, compont, totlCompont, found ) = time { findCorrelationComponentsPar( cor, cutoff )( chk_dep )( dts ) }
     val dtscc = dts.columnCount()
     val dts_pairs = dtscc * ( dtscc - 1 ) / 2
-    println( s"Found ${t.size} pairs o significant correlations from a total of $dts_pairs" )
-
-    import pt.inescn.scratchpad.utils.UF
-
-    val ( uf, compont, totlCompont ) = time{ findCorrelationComponents( chk_dep )( t.toList ) }
-    println( s"Found ${uf.count} components of significantly correlated features from a total of ${t.size} pairs of correlated features" )
+    println( s"Found ${found} pairs o significant correlations from a total of $dts_pairs" )
+    println( s"Found ${uf.count} components (including the ${uf.count - compont.size} single features) from a total of ${found} pairs of correlated features" )
     println( s"Found the following ${compont.size} components of significantly correlated features" )
     println( compont.mkString( "{", ",", "}" ) )
     println( s"Found a total of ${totlCompont} correlated features" )
@@ -870,4 +870,37 @@ class NABUtilsSpec extends FlatSpec with Matchers {
 
   it should "should add the detection correctly" in {
   }
-}
\ No newline at end of file
+
+  "The synthetic NAB corpus" should "be readable by loadData and loadJSONLabels" in {
+    import better.files._
+    import kantan.csv._
+    import kantan.csv.ops._
+    import kantan.csv.generic._
+    import pt.inescn.scratchpad.NABCorpusWriter
+    import collection.JavaConverters._
+
+    val dir = File.newTemporaryDirectory()
+    val written = new NABCorpusWriter(dir.path, 1234L).files(3).rows(5000).anomalies(2).write()
+
+    val wins = loadJSONLabels(dir / "labels" / combined_windows)
+    wins.size should be(3)
+
+    val name = "syntheticWithAnomaly/synthetic_0001.csv"
+    val data = loadData(dir / "data" / name)
+    data.isRight should be(true)
+    val frame = data.right.get
+    frame.dt should have size 5000
+    frame.dt should be(sorted)
+    frame.dt(0) should be(parseInstantUTC("2014-04-01 00:00:00"))
+    frame.dt(1) should be(parseInstantUTC("2014-04-01 00:05:00"))
+
+    // The injected anomalies are within the label windows
+    wins(name) should have size 2
+    val labelled = addLabels(labelInstanceInclusive)(frame, wins(name))
+    val anomalies = written.get(name).asScala
+    anomalies.foreach { a => labelled.label(a.getRow.toInt) should be(1) }
+    labelled.label.sum should be(anomalies.map { a => a.getWindowEnd - a.getWindowStart + 1 }.sum)
+
+    dir.delete()
+  }
+}
@@ -585,4 +585,814 @@ class QRMatrixToolkitSpec extends WordSpec with Matchers {
      }
     }
   }
-}
\ No newline at end of file
+
+  "The updatable QR factorization" when {
+
+    val c1 = Array( 1.0, 1.0, 1.0, 1.0, 1.0, 1.0 )
+    val c2 = Array( 1.0, 1.0, 1.0, 0.0, 0.0, 0.0 )
+    val c3 = Array( 0.0, 0.0, 0.0, 1.0, 1.0, 1.0 )
+    val c4 = Array( 1.0, 0.0, 0.0, 1.0, 0.0, 0.0 )
+    val c5 = Array( 0.0, 1.0, 0.0, 0.0, 1.0, 0.0 )
+    val c6 = Array( 0.0, 0.0, 1.0, 0.0, 0.0, 1.0 )
+
+    val threshold = 1e-7
+
+    import pt.inescn.scratchpad.UpdatableQR
+    import pt.inescn.scratchpad.QRMatrixToolkit.{ collinear => collinearQR }
+
+    def columns( cs: Array[ Double ]* ) = new DenseMatrix( cs.map { c => new DenseVector( c ): Vector }.toArray )
+    def matrix = columns( c1, c2, c3, c4, c5, c6 )
+
+    "the matrix is badly scaled" should {
+      /* 3 independent columns of size 1e8 and col 3 = col 0 + col 1 */
+      def scaled = {
+        val rnd = new java.util.Random( 77L )
+        val A = new DenseMatrix( 50, 4 )
+        for ( i <- 0 until 50 ) {
+          for ( j <- 0 until 3 ) A.set( i, j, 1e8 * rnd.nextGaussian )
+          A.set( i, 3, A.get( i, 0 ) + A.get( i, 1 ) )
+        }
+        A
+      }
+      "keep the rank tolerance of the factorization when columns are deleted" in {
+        val A = scaled
+        val qr = UpdatableQR.factorize( A, false )
+        qr.getRank shouldBe 3
+        qr.getTolerance should be > 1e-12
+        // col 2 is not part of the combination, so the rank must drop
+        qr.deleteColumn( 2 )
+        qr.getRank shouldBe 2
+        // the same as a new factorization
+        val sub = columns( ( 0 until 50 ).map( A.get( _, 0 ) ).toArray, ( 0 until 50 ).map( A.get( _, 1 ) ).toArray, ( 0 until 50 ).map( A.get( _, 3 ) ).toArray )
+        UpdatableQR.factorize( sub, false ).getRank shouldBe 2
+      }
+      "keep the rank tolerance of the factorization when columns are appended" in {
+        val A = scaled
+        val three = columns( ( 0 until 3 ).map( j => ( 0 until 50 ).map( A.get( _, j ) ).toArray ): _* )
+        val qr = UpdatableQR.factorize( three, true )
+        qr.getRank shouldBe 3
+        qr.appendColumn( ( 0 until 50 ).map( A.get( _, 3 ) ).toArray, 3 ) shouldBe false
+        qr.getRank shouldBe 3
+        qr.getRank shouldBe UpdatableQR.factorize( A, false ).getRank
+        val rnd = new java.util.Random( 5L )
+        qr.appendColumn( Array.fill( 50 )( 1e8 * rnd.nextGaussian ), 4 ) shouldBe true
+        qr.getRank shouldBe 4
+      }
+    }
+
+    "columns are deleted" should {
+      "give the same rank as a new factorization" in {
+        val M = matrix
+        val qr = UpdatableQR.factorize( M, false )
+        qr.getRank shouldBe 4
+        // remove an independent column
+        val indep = qr.getColumnIds()( 0 )
+        qr.deleteColumn( indep )
+        val cols = ( 0 until 6 ).filter( _ != indep ).map( Integer.valueOf ).toList
+        import scala.collection.JavaConverters._
+        val sub = pt.inescn.scratchpad.QRMatrixToolkit.getSubMarix( M, cols.asJava, 0, M.numRows - 1 )
+        qr.getRank shouldBe QRP.factorize( sub ).getRank
+        qr.numColumns shouldBe 5
+      }
+      "have no collinear columns after removing the dependent ones" in {
+        val M = matrix
+        val qr = UpdatableQR.factorize( M, false )
+        val l = collinearQR( qr, M, threshold, true )
+        l.size shouldBe 2
+        import scala.collection.JavaConverters._
+        qr.deleteColumns( l.asScala.map( _.get( 0 ).intValue ).toArray )
+        collinearQR( qr, M, threshold, true ).size shouldBe 0
+        qr.getRank shouldBe 4
+      }
+    }
+    "the combinations are returned in compact form" should {
+      "have the same columns and correct coefficients" in {
+        val M = matrix
+        val qr = UpdatableQR.factorize( M, false )
+        val lc = pt.inescn.scratchpad.QRMatrixToolkit.linearCombos( qr, M, threshold, true )
+        lc.toList shouldBe collinearQR( qr, M, threshold, true )
+        for ( k <- 0 until lc.size ) {
+          for ( i <- 0 until M.numRows ) {
+            val v = ( lc.start( k ) until lc.end( k ) ).map { t => lc.coefficient( t ) * M.get( i, lc.index( t ) ) }.sum
+            v shouldBe M.get( i, lc.dependent( k ) ) +- 1e-12
+          }
+        }
+      }
+      "give the same removed columns as the list version" in {
+        import pt.inescn.scratchpad.QREngine
+        import pt.inescn.scratchpad.QRMatrixToolkit.{ findLinearCombos, findLinearCombinations }
+        import scala.collection.JavaConverters._
+        val M = matrix
+        val p1 = findLinearCombos( M, threshold, true )
+        val p2 = findLinearCombinations( M, threshold, true, QREngine.QRP )
+        p2.getFirst.toList shouldBe p1.getFirst
+        p2.getSecond.toList shouldBe p1.getSecond.asScala.map( _.intValue ).toList
+        p2.getSecond.length shouldBe 2
+      }
+    }
+    "columns are appended" should {
+      "detect a dependent column" in {
+        val M = columns( c1, c2, c4, c5 )
+        val qr = UpdatableQR.factorize( M, true )
+        qr.getRank shouldBe 4
+        qr.appendColumn( c3, 4 ) shouldBe false
+        qr.appendColumn( c6, 5 ) shouldBe false
+        qr.getRank shouldBe 4
+        import scala.collection.JavaConverters._
+        val l = collinearQR( qr, null, threshold, false ).asScala.map { x => ( x.get( 0 ), x.asScala.tail.toSet ) }
+        l should contain theSameElementsInOrderAs List( ( 4, Set( 0, 1 ) ), ( 5, Set( 0, 2, 3 ) ) )
+      }
+      "detect an independent column" in {
+        val M = columns( c1, c2 )
+        val qr = UpdatableQR.factorize( M, true )
+        qr.appendColumn( c4, 2 ) shouldBe true
+        qr.getRank shouldBe 3
+        val Q = qr.getQ
+        val I = new DenseMatrix( 3, 3 )
+        Q.transAmult( Q, I )
+        ( 0 until 3 ).foreach { i => ( 0 until 3 ).foreach { j => I.get( i, j ) shouldBe ( if ( i == j ) 1.0 else 0.0 ) +- 1e-12 } }
+      }
+    }
+  }
+
+  "A matrix view" when {
+    import pt.inescn.scratchpad.MatrixView
+    import pt.inescn.scratchpad.QRMatrixToolkit.getSubMarix
+    import scala.collection.JavaConverters._
+
+    val M = new DenseMatrix( Array(
+      Array( 1.0, 2.0, 3.0, 4.0 ),
+      Array( 5.0, 6.0, 7.0, 8.0 ),
+      Array( 9.0, 10.0, 11.0, 12.0 ) ) )
+
+    def same( a: Matrix, b: Matrix ) = pt.inescn.scratchpad.QRMatrixToolkit.isEqual( a, b, 1e-15 )
+
+    "created from a list of columns" should {
+      "have the same elements as the copy" in {
+        val cols = List( 3, 0 ).map( Integer.valueOf ).asJava
+        val v = MatrixView.of( M, cols, 1, 2 )
+        v.numRows shouldBe 2
+        v.numColumns shouldBe 2
+        same( v, getSubMarix( M, cols, 1, 2 ) ) shouldBe true
+        v.get( 0, 0 ) shouldBe 8.0
+      }
+      "multiply without copying" in {
+        val cols = List( 1, 2 ).map( Integer.valueOf ).asJava
+        val v = MatrixView.of( M, cols, 0, 2 )
+        val x = new DenseMatrix( Array( Array( 1.0 ), Array( -1.0 ) ) )
+        val c = new DenseMatrix( 3, 1 )
+        v.mult( x, c )
+        ( 0 until 3 ).foreach { i => c.get( i, 0 ) shouldBe -1.0 }
+      }
+    }
+    "created from a list of rows" should {
+      "have the same elements as the copy" in {
+        val rows = List( 2, 0 ).map( Integer.valueOf ).asJava
+        val v = MatrixView.of( M, 1, 3, rows )
+        same( v, getSubMarix( M, 1, 3, rows ) ) shouldBe true
+        v.get( 1, 2 ) shouldBe 4.0
+      }
+    }
+    "changed" should {
+      "change the original matrix" in {
+        val N = M.copy
+        MatrixView.column( N, 2, 0, 2 ).set( 1, 0, 0.0 )
+        N.get( 1, 2 ) shouldBe 0.0
+      }
+    }
+  }
+
+  "The TSQR engine" when {
+    import pt.inescn.scratchpad.QREngine
+    import pt.inescn.scratchpad.QRMatrixToolkit.{ collinear => collinearQR }
+    import pt.inescn.scratchpad.TSQR
+    import scala.collection.JavaConverters._
+
+    /* Tall matrix with columns 10 = 0.1 * (c0 - c3) and 11 = 0.05 * (c5 + c7).
+     * These have the smallest norms so that they are the ones selected as dependent. */
+    def tall( rows: Int ) = {
+      val rnd = new java.util.Random( 1234 )
+      val A = new DenseMatrix( rows, 12 )
+      for ( i <- 0 until rows ) {
+        for ( j <- 0 until 10 ) A.set( i, j, rnd.nextGaussian * ( j + 1 ) )
+        A.set( i, 10, 0.1 * ( A.get( i, 0 ) - A.get( i, 3 ) ) )
+        A.set( i, 11, 0.05 * ( A.get( i, 5 ) + A.get( i, 7 ) ) )
+      }
+      A
+    }
+    def sets( l: java.util.List[ java.util.List[ Integer ] ] ) = l.asScala.map { x => ( x.get( 0 ), x.asScala.tail.toSet ) }.toSet
+
+    "used on a tall matrix" should {
+      "give the same R diagonal as QRP" in {
+        val A = tall( 3000 )
+        val pool = new java.util.concurrent.ForkJoinPool( 4 )
+        val t = TSQR.factorize( A, 100, pool )
+        val q = QREngine.QRP.factorize( A )
+        pool.shutdown()
+        t.getRank shouldBe 10
+        t.getRank shouldBe q.getRank
+        val rt = t.getR
+        val rq = q.getR
+        ( 0 until 10 ).foreach { i => Math.abs( rt.get( i, i ) ) shouldBe Math.abs( rq.get( i, i ) ) +- 1e-8 * Math.abs( rq.get( i, i ) ) }
+      }
+      "rebuild the dependent columns" in {
+        val A = tall( 1000 )
+        val qr = QREngine.TSQR.factorize( A )
+        val res = pt.inescn.scratchpad.QRMatrixToolkit.maxResiduals( qr, A )
+        res.length shouldBe 2
+        res.foreach { _ should be < 1e-12 }
+        // Break the linear combination of the last column
+        A.add( 0, 11, 1e-3 )
+        pt.inescn.scratchpad.QRMatrixToolkit.maxResiduals( qr, A ).max shouldBe 1e-3 +- 1e-12
+        // the check does not depend on assertions
+        an[ IllegalStateException ] should be thrownBy pt.inescn.scratchpad.QRMatrixToolkit.linearCombos( qr, A, 1e-7, true )
+      }
+      "check the residuals relative to the size of the columns" in {
+        import pt.inescn.scratchpad.QRMatrixToolkit.linearCombos
+        val A = tall( 1000 )
+        A.scale( 1e6 )
+        val qr = QREngine.TSQR.factorize( A )
+        val lc = linearCombos( qr, A, 1e-7, true )
+        lc.size shouldBe 2
+        lc.isChecked shouldBe true
+        ( 0 until lc.size ).foreach { k => lc.residual( k ) should be < 1e-12 }
+        linearCombos( qr, A, 1e-7, false ).isChecked shouldBe false
+        linearCombos( qr, A, 1e-7, false ).residual( 0 ).isNaN shouldBe true
+        A.add( 0, 11, 1e3 )
+        an[ IllegalStateException ] should be thrownBy linearCombos( qr, A, 1e-7, true )
+      }
+      "find the same collinear columns as QRP" in {
+        // QRP also forms the full m x m Q, so keep this small
+        val A = tall( 3000 )
+        val l1 = collinearQR( A, 1e-7, true, QREngine.TSQR )
+        val l2 = collinearQR( A, 1e-7, true, QREngine.QRP )
+        sets( l1 ) shouldBe sets( l2 )
+        sets( l1 ) shouldBe Set( ( 10, Set( 0, 3 ) ), ( 11, Set( 5, 7 ) ) )
+      }
+    }
+  }
+
+  "The randomized engine" when {
+    import pt.inescn.scratchpad.QREngine
+    import pt.inescn.scratchpad.QRMatrixToolkit
+    import pt.inescn.scratchpad.QRMatrixToolkit.{ collinear => collinearQR, getRankN }
+    import pt.inescn.scratchpad.RandomizedQR
+    import scala.collection.JavaConverters._
+
+    /* Wide matrix (m x n) with rank r */
+    def lowRank( m: Int, n: Int, r: Int ) = {
+      val rnd = new java.util.Random( 4321 )
+      val L = new DenseMatrix( m, r )
+      val R = new DenseMatrix( r, n )
+      for ( i <- 0 until m; j <- 0 until r ) L.set( i, j, rnd.nextGaussian )
+      for ( i <- 0 until r; j <- 0 until n ) R.set( i, j, rnd.nextGaussian )
+      val A = new DenseMatrix( m, n )
+      L.mult( R, A )
+      A
+    }
+
+    "used on a low rank matrix" should {
+      "give the correct rank" in {
+        getRankN( lowRank( 200, 300, 17 ), QREngine.RANDOMIZED ) shouldBe 17
+        val rqr = new RandomizedQR( 4, 2, 0, 99L )
+        rqr.factorize( lowRank( 200, 300, 17 ) ).getRank shouldBe 17
+      }
+      "give the correct rank with full rank" in {
+        getRankN( lowRank( 40, 30, 30 ), QREngine.RANDOMIZED ) shouldBe 30
+      }
+      "find correct linear combinations" in {
+        val A = lowRank( 100, 60, 12 )
+        // checkResults asserts that the combinations are correct
+        val l = collinearQR( A, 1e-7, true, QREngine.RANDOMIZED )
+        l.size shouldBe 48
+        l.asScala.map( _.get( 0 ).intValue ).toSet.size shouldBe 48
+      }
+      "accept its own parameters instead of the engine's" in {
+        val A = lowRank( 100, 60, 12 )
+        for ( rqr <- List( new RandomizedQR( 4, 2, 0, 99L ), new RandomizedQR( 8, 10, 2, 7L ) ) ) {
+          getRankN( A, rqr ) shouldBe 12
+          collinearQR( A, 1e-7, true, rqr ).size shouldBe 48
+          QRMatrixToolkit.findLinearCombos( A, 1e-7, true, rqr ).getSecond.size shouldBe 48
+        }
+      }
+    }
+    "used on the simple 1/0 matrix" should {
+      "find the same collinear columns as QRP" in {
+        val c1 = Array( 1.0, 1.0, 1.0, 1.0, 1.0, 1.0 )
+        val c2 = Array( 1.0, 1.0, 1.0, 0.0, 0.0, 0.0 )
+        val c3 = Array( 0.0, 0.0, 0.0, 1.0, 1.0, 1.0 )
+        val c4 = Array( 1.0, 0.0, 0.0, 1.0, 0.0, 0.0 )
+        val A = new DenseMatrix( Array( c1, c2, c3, c4 ).map { c => new DenseVector( c ): Vector } )
+        val l1 = collinearQR( A, 1e-7, true, QREngine.RANDOMIZED )
+        val l2 = collinearQR( A, 1e-7, true, QREngine.QRP )
+        l1.size shouldBe 1
+        l1.size shouldBe l2.size
+      }
+    }
+  }
+
+  "The streaming factorization" when {
+    import pt.inescn.scratchpad.QREngine
+    import pt.inescn.scratchpad.QRMatrixToolkit.{ collinear => collinearQR }
+    import pt.inescn.scratchpad.StreamingQR
+    import scala.collection.JavaConverters._
+
+    /* Columns 6 = 0.3 * (c0 + c1) and 7 = 0.5 * c2 (smaller norms so that they are the dependent ones) */
+    def rows( n: Int, seed: Long ) = {
+      val rnd = new java.util.Random( seed )
+      ( 0 until n ).map { _ =>
+        val r = Array.fill( 8 )( rnd.nextGaussian )
+        r( 6 ) = 0.3 * ( r( 0 ) + r( 1 ) )
+        r( 7 ) = 0.5 * r( 2 )
+        r
+      }
+    }
+    def sets( l: java.util.List[ java.util.List[ Integer ] ] ) = l.asScala.map { x => ( x.get( 0 ), x.asScala.tail.toSet ) }.toSet
+
+    "rows are added in chunks" should {
+      "give the same results as the full matrix" in {
+        val rs = rows( 1000, 1L )
+        val sqr = new StreamingQR( 8, 64 )
+        rs.foreach { sqr.addRow( _ ) }
+        sqr.numRows shouldBe 1000
+        val A = new DenseMatrix( rs.toArray )
+        val l1 = collinearQR( sqr.factorize, null, 1e-7, false )
+        val l2 = collinearQR( A, 1e-7, true, QREngine.TSQR )
+        sets( l1 ) shouldBe sets( l2 )
+        sqr.factorize.getRank shouldBe 6
+      }
+      "give the same R when merged" in {
+        val rs = rows( 500, 2L )
+        val all = new StreamingQR( 8, 50 )
+        val s1 = new StreamingQR( 8, 30 )
+        val s2 = new StreamingQR( 8, 70 )
+        rs.foreach { all.addRow( _ ) }
+        rs.take( 200 ).foreach { s1.addRow( _ ) }
+        rs.drop( 200 ).foreach { s2.addRow( _ ) }
+        s1.merge( s2 )
+        s1.numRows shouldBe 500
+        val r1 = all.getR
+        val r2 = s1.getR
+        // R is unique up to the signs of its rows
+        for ( i <- 0 until 8 ) {
+          val sign = Math.signum( r1( i * 8 + i ) ) * Math.signum( r2( i * 8 + i ) )
+          for ( j <- i until 8 ) r1( j * 8 + i ) shouldBe sign * r2( j * 8 + i ) +- 1e-9
+        }
+      }
+    }
+    "a CSV file is read" should {
+      "skip the rows with missing values" in {
+        val f = java.io.File.createTempFile( "streaming", ".csv" )
+        f.deleteOnExit()
+        val w = new java.io.PrintWriter( f )
+        w.println( ( 0 until 8 ).map( "\"c" + _ + "\"" ).mkString( "," ) )
+        rows( 100, 3L ).foreach { r => w.println( r.mkString( "," ) ) }
+        w.println( "1,2,,4,5,6,7,8" )
+        w.println( "1,2,NA,4,5,6,7,8" )
+        w.close()
+        val p = StreamingQR.fromCSV( f.getPath, true, ',' )
+        p.getFirst.asScala.head shouldBe "c0"
+        p.getSecond.numRows shouldBe 100
+        p.getSecond.numSkipped shouldBe 2
+        sets( collinearQR( p.getSecond.factorize, null, 1e-7, false ) ) shouldBe Set( ( 6, Set( 0, 1 ) ), ( 7, Set( 2 ) ) )
+      }
+      "replace the missing values or fail if requested" in {
+        import pt.inescn.scratchpad.NAPolicy
+        val f = java.io.File.createTempFile( "streaming", ".csv" )
+        f.deleteOnExit()
+        val w = new java.io.PrintWriter( f )
+        w.println( "1,2,3" )
+        w.println( "4,,6" )
+        w.println( "NA,8,9" )
+        w.println( "1,x,3" )
+        w.close()
+        val z = StreamingQR.fromCSV( f.getPath, false, ',', NAPolicy.ZERO ).getSecond
+        z.numRows shouldBe 3
+        z.numSkipped shouldBe 1
+        val s = StreamingQR.fromCSV( f.getPath, false, ',', NAPolicy.SKIP ).getSecond
+        s.numRows shouldBe 1
+        s.numSkipped shouldBe 3
+        val e = the[ java.io.IOException ] thrownBy StreamingQR.fromCSV( f.getPath, false, ',', NAPolicy.FAIL )
+        e.getMessage should include( "line 2" )
+      }
+    }
+  }
+  "The memory mapped matrix" when {
+    import pt.inescn.scratchpad.QREngine
+    import pt.inescn.scratchpad.QRMatrixToolkit.{ collinear => collinearQR, getRankN, isEqual }
+    import pt.inescn.scratchpad.MappedMatrix
+    import scala.collection.JavaConverters._
+
+    /* Columns 4 = 2 * c0 - c1 and 5 = 0.5 * c3 (smaller norms so that they are the dependent ones) */
+    def matrix( m: Int, seed: Long ) = {
+      val rnd = new java.util.Random( seed )
+      val A = new DenseMatrix( m, 6 )
+      for ( i <- 0 until m ) {
+        for ( j <- 0 until 4 ) A.set( i, j, rnd.nextGaussian )
+        A.set( i, 4, 0.2 * ( 2 * A.get( i, 0 ) - A.get( i, 1 ) ) )
+        A.set( i, 5, 0.5 * A.get( i, 3 ) )
+      }
+      A
+    }
+    def sets( l: java.util.List[ java.util.List[ Integer ] ] ) = l.asScala.map { x => ( x.get( 0 ), x.asScala.tail.toSet ) }.toSet
+    def tmp() = {
+      val f = java.io.File.createTempFile( "mapped", ".mtjm" )
+      f.deleteOnExit()
+      f.toPath
+    }
+
+    "it is written and opened again" should {
+      "have the same elements and column names" in {
+        val A = matrix( 300, 1L )
+        val f = tmp()
+        val names = ( 0 until 6 ).map( "c" + _ )
+        val w = MappedMatrix.create( f, 300, 6, names.asJava )
+        for ( j <- 0 until 6; i <- 0 until 300 ) w.set( i, j, A.get( i, j ) )
+        w.flush()
+        val m = MappedMatrix.open( f )
+        m.numRows shouldBe 300
+        m.numColumns shouldBe 6
+        m.getColumnNames.asScala shouldBe names
+        isEqual( m.copy, A, 1e-15 ) shouldBe true
+        m.rows( 100, 200 ).get( 0, 3 ) shouldBe A.get( 100, 3 )
+        an[ java.nio.ReadOnlyBufferException ] should be thrownBy m.set( 0, 0, 1.0 )
+      }
+      "reject other files" in {
+        val f = tmp()
+        java.nio.file.Files.write( f, "a,b\n1,2\n".getBytes )
+        an[ java.io.IOException ] should be thrownBy MappedMatrix.open( f )
+      }
+    }
+    "it is factored in blocks" should {
+      "give the same results as the full matrix" in {
+        val A = matrix( 1000, 2L )
+        val f = tmp()
+        val w = MappedMatrix.create( f, 1000, 6, null )
+        for ( j <- 0 until 6 ) w.setColumn( j, 0, 1000, A.getData, j * 1000 )
+        val m = MappedMatrix.open( f )
+        m.getColumnNames.isEmpty shouldBe true
+        getRankN( m ) shouldBe 4
+        m.factorize( 64 ).getRank shouldBe 4
+        sets( collinearQR( m, 1e-7 ) ) shouldBe sets( collinearQR( A, 1e-7, true, QREngine.TSQR ) )
+        sets( collinearQR( m, 1e-7 ) ) shouldBe Set( ( 4, Set( 0, 1 ) ), ( 5, Set( 3 ) ) )
+      }
+    }
+    "a CSV file is converted" should {
+      "skip the rows with missing values" in {
+        val A = matrix( 200, 3L )
+        val csv = java.io.File.createTempFile( "mapped", ".csv" )
+        csv.deleteOnExit()
+        val w = new java.io.PrintWriter( csv )
+        w.println( ( 0 until 6 ).map( "\"c" + _ + "\"" ).mkString( "," ) )
+        for ( i <- 0 until 200 ) {
+          w.println( ( 0 until 6 ).map( A.get( i, _ ) ).mkString( "," ) )
+          if ( i == 10 ) w.println( "1,2,NA,4,5,6" )
+        }
+        w.close()
+        val f = tmp()
+        MappedMatrix.fromCSV( csv.getPath, true, ',', f ).numSkipped shouldBe 1
+        val m = MappedMatrix.open( f )
+        m.numRows shouldBe 200
+        m.numSkipped shouldBe 0
+        m.getColumnNames.asScala.head shouldBe "c0"
+        isEqual( m.copy, A, 1e-15 ) shouldBe true
+      }
+      "replace the missing values if requested" in {
+        import pt.inescn.scratchpad.NAPolicy
+        val csv = java.io.File.createTempFile( "mapped", ".csv" )
+        csv.deleteOnExit()
+        val w = new java.io.PrintWriter( csv )
+        w.println( "1,2,3" )
+        w.println( "4,,6" )
+        w.println( "NA,8,x" )
+        w.println( "7,NA,9" )
+        w.close()
+        val m = MappedMatrix.fromCSV( csv.getPath, false, ',', tmp(), NAPolicy.ZERO )
+        m.numRows shouldBe 3
+        m.numSkipped shouldBe 1
+        m.get( 1, 1 ) shouldBe 0.0
+        m.get( 2, 0 ) shouldBe 7.0
+        m.get( 2, 1 ) shouldBe 0.0
+        an[ java.io.IOException ] should be thrownBy MappedMatrix.fromCSV( csv.getPath, false, ',', tmp(), NAPolicy.FAIL )
+      }
+    }
+  }
+  "The rank estimator" when {
+    import pt.inescn.scratchpad.RankEstimator
+    import org.apache.commons.math3.linear.QRDecomposition
+
+    /* m x n matrix of rank k */
+    def lowRank( m: Int, n: Int, k: Int, seed: Long ) = {
+      val rnd = new java.util.Random( seed )
+      val L = new Array2DRowRealMatrix( Array.fill( m, k )( rnd.nextGaussian ) )
+      val U = new Array2DRowRealMatrix( Array.fill( k, n )( rnd.nextGaussian ) )
+      L.multiply( U )
+    }
+    /* The original implementation (one sub-matrix copy per candidate rank) */
+    def naiveRank( r: RealMatrix, dropThreshold: Double ) = {
+      val rows = r.getRowDimension
+      val columns = r.getColumnDimension
+      var rank = 1
+      var lastNorm = r.getFrobeniusNorm
+      val rNorm = lastNorm
+      var stop = false
+      while ( !stop && rank < Math.min( rows, columns ) ) {
+        val thisNorm = r.getSubMatrix( rank, rows - 1, rank, columns - 1 ).getFrobeniusNorm
+        if ( thisNorm == 0 || ( thisNorm / lastNorm ) * rNorm < dropThreshold ) stop = true
+        else {
+          lastNorm = thisNorm
+          rank += 1
+        }
+      }
+      rank
+    }
+
+    "the trailing norms are calculated in one pass" should {
+      "give the norms of the trailing sub-matrices" in {
+        val r = new QRDecomposition( lowRank( 30, 20, 20, 1L ) ).getR
+        val e = new RankEstimator( r )
+        for ( k <- 0 until 20 )
+          e.getTrailingNorm( k ) shouldBe r.getSubMatrix( k, 29, k, 19 ).getFrobeniusNorm +- 1e-10
+        e.getTrailingNorm( 20 ) shouldBe 0.0
+      }
+      "give the same rank as the norm drop" in {
+        for ( ( m, n, k ) <- List( ( 30, 20, 12 ), ( 20, 30, 12 ), ( 40, 40, 40 ), ( 25, 25, 3 ) ) ) {
+          val r = new QRDecomposition( lowRank( m, n, k, m + n ) ).getR
+          val e = new RankEstimator( r )
+          for ( t <- List( 1e-6, 1e-3, 0.1 ) ) e.normDropRank( t ) shouldBe naiveRank( r, t )
+        }
+      }
+    }
+    "the diagonal is used" should {
+      "give the rank of the pivoted factorization" in {
+        val A = lowRank( 50, 30, 11, 7L )
+        val qrp = new RRQRDecomposition( A )
+        val e = new RankEstimator( qrp.getR )
+        e.diagonalRank( 1e-12 ) shouldBe pt.inescn.scratchpad.QRMatrixToolkit.getRankN( qrp )
+        e.ulpRank shouldBe 11
+        e.ulpTolerance should be > 0.0
+        val d = new DenseMatrix( A.getData )
+        new RankEstimator( QRP.factorize( d ).getR ).ulpRank shouldBe 11
+      }
+    }
+  }
+  "The kernel basis" when {
+    import pt.inescn.scratchpad.KernelBasis
+    import org.apache.commons.math3.linear.OpenMapRealMatrix
+
+    /* Sparse m x n matrix whose last row is the sum of the first two */
+    def sparse( m: Int, n: Int, density: Double, seed: Long ) = {
+      val rnd = new java.util.Random( seed )
+      val A = new OpenMapRealMatrix( m, n )
+      for ( i <- 0 until m - 1; j <- 0 until n )
+        if ( rnd.nextDouble < density ) A.setEntry( i, j, rnd.nextDouble * 6 - 3 )
+      for ( j <- 0 until n ) A.setEntry( m - 1, j, A.getEntry( 0, j ) + A.getEntry( 1, j ) )
+      A
+    }
+
+    "Q is kept in compact form" should {
+      "give an orthonormal basis of the kernel" in {
+        val A = sparse( 12, 20, 0.3, 981L )
+        val kb = new KernelBasis( A, 1e-7 )
+        kb.getRank shouldBe 11
+        new KernelBasis( A ).getRank shouldBe 11
+        kb.getNullity shouldBe 9
+        kb.maxResidual should be < 1e-12
+        val Z = kb.getKernel
+        val I = new DenseMatrix( 9, 9 )
+        Z.transAmult( Z, I )
+        for ( i <- 0 until 9; j <- 0 until 9 ) I.get( i, j ) shouldBe ( if ( i == j ) 1.0 else 0.0 ) +- 1e-12
+      }
+      "apply Q and its transpose" in {
+        val kb = new KernelBasis( sparse( 10, 15, 0.5, 5L ) )
+        val rnd = new java.util.Random( 3L )
+        val x = Array.fill( 15 )( rnd.nextGaussian )
+        val y = x.clone
+        kb.applyQt( y )
+        Math.sqrt( y.map( v => v * v ).sum ) shouldBe Math.sqrt( x.map( v => v * v ).sum ) +- 1e-12
+        kb.applyQ( y )
+        for ( i <- 0 until 15 ) y( i ) shouldBe x( i ) +- 1e-12
+        // Qᵀ maps a kernel vector to a unit vector
+        val z = kb.kernelVector( 2 )
+        kb.applyQt( z )
+        for ( i <- 0 until 15 ) z( i ) shouldBe ( if ( i == kb.getRank + 2 ) 1.0 else 0.0 ) +- 1e-12
+      }
+    }
+
+    "Q is kept as sparse reflectors" should {
+      import pt.inescn.scratchpad.NullSpace
+      import pt.inescn.scratchpad.SparseQR
+      import pt.inescn.scratchpad.QRMatrixToolkit
+
+      "give the same rank and kernel as the dense factorization" in {
+        val A = sparse( 12, 20, 0.3, 981L )
+        val ns = NullSpace.of( A, 1e-7 )
+        ns shouldNot be( a[KernelBasis] )
+        ns.getRank shouldBe 11
+        SparseQR.kernel( A, Double.NaN ).getRank shouldBe 11
+        ns.getNullity shouldBe 9
+        ns.maxResidual should be < 1e-12
+        val Z = ns.getKernel
+        val I = new DenseMatrix( 9, 9 )
+        Z.transAmult( Z, I )
+        for ( i <- 0 until 9; j <- 0 until 9 ) I.get( i, j ) shouldBe ( if ( i == j ) 1.0 else 0.0 ) +- 1e-12
+      }
+      "apply Q and its transpose" in {
+        val qr = SparseQR.factorize( sparse( 15, 10, 0.3, 5L ), Double.NaN )
+        val rnd = new java.util.Random( 3L )
+        val x = Array.fill( 15 )( rnd.nextGaussian )
+        val y = x.clone
+        qr.applyQt( y )
+        Math.sqrt( y.map( v => v * v ).sum ) shouldBe Math.sqrt( x.map( v => v * v ).sum ) +- 1e-12
+        qr.applyQ( y )
+        for ( i <- 0 until 15 ) y( i ) shouldBe x( i ) +- 1e-12
+      }
+      "find the same number of collinear columns" in {
+        // the columns are the rows of the transposed sparse matrix
+        val A = sparse( 12, 30, 0.3, 17L ).transpose.asInstanceOf[OpenMapRealMatrix]
+        QRMatrixToolkit.getRankN( A ) shouldBe 11
+        val D = new DenseMatrix( 30, 12 )
+        for ( i <- 0 until 30; j <- 0 until 12 ) D.set( i, j, A.getEntry( i, j ) )
+        val dense = QRMatrixToolkit.collinear( D, 1e-7, false )
+        val sets = QRMatrixToolkit.collinear( A, 1e-7 )
+        sets.size shouldBe dense.size
+        sets.size shouldBe 1
+        sets.get( 0 ).size shouldBe 3
+      }
+    }
+  }
+
+  "The matrix generator" when {
+    import pt.inescn.scratchpad.MatrixGenerator
+    import pt.inescn.scratchpad.SparseQR
+
+    "columns are sampled without replacement" should {
+      "give the same matrix for the same seed" in {
+        val g = new MatrixGenerator( 300, 80, 42L ).density( 0.05 ).dependent( 8, 3 )
+        val a = g.generate
+        val b = g.parallel( false ).generate
+        a.getPointers shouldBe b.getPointers
+        a.getIndices shouldBe b.getIndices
+        a.getValues shouldBe b.getValues
+        a.getCombinations.toString shouldBe b.getCombinations.toString
+        // on average density x rows x cols non-zeros in the independent columns
+        val nnz = ( 0 until 80 ).filterNot( a.getCombinations.getDependents.contains ).map( j => a.getPointers()( j + 1 ) - a.getPointers()( j ) ).sum
+        nnz shouldBe ( 0.05 * 300 * 72 ).toInt +- 36
+      }
+      "inject the dependent columns" in {
+        val A = new MatrixGenerator( 200, 40, 7L ).density( 0.1 ).dependent( 5, 3 ).condition( 1e3 ).generate
+        val c = A.getCombinations
+        c.size shouldBe 5
+        val D = A.toDenseMatrix
+        for ( k <- 0 until c.size; i <- 0 until 200 ) {
+          val sum = ( c.start( k ) until c.end( k ) ).map( p => c.coefficient( p ) * D.get( i, c.index( p ) ) ).sum
+          D.get( i, c.dependent( k ) ) shouldBe sum +- 1e-12
+        }
+        SparseQR.factorize( A.toOpenMapRealMatrix, Double.NaN ).getRank shouldBe 35
+      }
+      "check the combinations found by every engine" in {
+        // the wide matrix of the collinearity benchmark
+        import pt.inescn.scratchpad.QREngine
+        import pt.inescn.scratchpad.QRMatrixToolkit
+        val A = new MatrixGenerator( 200, 400, 1234L ).density( 0.1 ).dependent( 200, 3 ).generate.toDenseMatrix
+        for ( e <- QREngine.values ) {
+          val lc = QRMatrixToolkit.linearCombos( e.factorize( A ), A, 1e-6, true )
+          lc.size shouldBe 200
+          ( 0 until lc.size ).foreach { k => lc.residual( k ) should be < 1e-5 }
+          QRMatrixToolkit.collinear( A, 1e-6, true, e ).size shouldBe 200
+          QRMatrixToolkit.findLinearCombos( A, 1e-6, true, e ).getSecond.size shouldBe 200
+        }
+      }
+      "convert between column and row compression" in {
+        val A = new MatrixGenerator( 30, 20, 3L ).density( 0.2 ).generate
+        val T = A.transpose
+        T.isByColumns shouldBe false
+        T.nonZeros shouldBe A.nonZeros
+        T.toColumnMajor shouldBe A.toColumnMajor
+        T.transpose.getIndices shouldBe A.getIndices
+      }
+      "be factored from the compressed arrays" in {
+        import pt.inescn.scratchpad.QRMatrixToolkit
+        val A = new MatrixGenerator( 60, 40, 11L ).density( 0.1 ).dependent( 4, 3 ).generate
+        val O = A.toOpenMapRealMatrix
+        val T = A.transpose
+        SparseQR.factorize( A, Double.NaN ).getRank shouldBe 36
+        SparseQR.factorize( T, Double.NaN ).getRank shouldBe 36
+        SparseQR.factorize( A, Double.NaN ).getPivot shouldBe SparseQR.factorize( O, Double.NaN ).getPivot
+        QRMatrixToolkit.getRankN( A ) shouldBe QRMatrixToolkit.getRankN( O )
+        QRMatrixToolkit.collinear( A, 1e-7 ).toString shouldBe QRMatrixToolkit.collinear( O, 1e-7 ).toString
+        QRMatrixToolkit.collinear( T, 1e-7 ).size shouldBe 4
+        // the kernel of A (40 - 36) from the factorization of its transpose
+        for ( ns <- List( SparseQR.kernel( A, Double.NaN ), SparseQR.kernel( T, Double.NaN ) ) ) {
+          ns.getRank shouldBe 36
+          ns.getNullity shouldBe 4
+          ns.maxResidual should be < 1e-10
+        }
+      }
+    }
+  }
+
+  "The batched factorization" when {
+    import scala.collection.JavaConverters._
+    import pt.inescn.scratchpad.BatchQR
+    import pt.inescn.scratchpad.MatrixGenerator
+    import pt.inescn.scratchpad.QREngine
+    import pt.inescn.scratchpad.QRMatrixToolkit
+
+    val count = 40
+    val ( m, n ) = ( 25, 8 )
+    val matrices = ( 0 until count ).map { i =>
+      new MatrixGenerator( m, n, 100L + i ).density( 0.8 ).dependent( i % 3, 2 ).generate.toDenseMatrix
+    }
+    val data = matrices.flatMap( _.getData ).toArray
+
+    "many small matrices are factored" should {
+      "give the same ranks as one factorization at a time" in {
+        val batch = new BatchQR( m, n )
+        val ranks = batch.ranks( data, count )
+        ranks shouldBe batch.ranks( matrices.asJava ).toArray
+        for ( i <- 0 until count ) {
+          ranks( i ) shouldBe n - i % 3
+          ranks( i ) shouldBe QRMatrixToolkit.getRankN( matrices( i ), QREngine.QRP )
+          batch.rankAt( data, i * m * n ) shouldBe ranks( i )
+        }
+      }
+      "give the same linear combinations as collinear" in {
+        val batch = new BatchQR( m, n )
+        val combos = batch.linearCombos( data, count )
+        for ( i <- 0 until count ) {
+          // the same combinations (the dependent columns may be in another order)
+          val expected = QRMatrixToolkit.collinear( matrices( i ), 1e-7, true, QREngine.QRP )
+          combos( i ).toList.asScala.toSet shouldBe expected.asScala.toSet
+          combos( i ).size shouldBe i % 3
+          batch.linearCombosAt( data, i * m * n ).toList shouldBe combos( i ).toList
+        }
+        batch.linearCombos( matrices.asJava ).map( _.toList ) shouldBe combos.map( _.toList )
+        an[IllegalArgumentException] should be thrownBy batch.ranks( List( new DenseMatrix( n, m ) ).asJava )
+        an[IndexOutOfBoundsException] should be thrownBy batch.ranks( data, count + 1 )
+      }
+    }
+  }
+
+  "The multicollinearity diagnostics" when {
+    import pt.inescn.scratchpad.MatrixGenerator
+    import pt.inescn.scratchpad.Multicollinearity
+    import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression
+    import org.apache.commons.math3.linear.LUDecomposition
+
+    "the correlation matrix is factored once" should {
+      "give the VIFs of separate regressions" in {
+        val ( m, p ) = ( 200, 6 )
+        val D = new MatrixGenerator( m, p, 11L ).generate.toDenseMatrix
+        // add some collinearity without making it exact
+        for ( i <- 0 until m ) D.add( i, 5, 2 * D.get( i, 0 ) - D.get( i, 1 ) )
+        val mc = new Multicollinearity( D )
+        mc.getDependent shouldBe empty
+        for ( j <- 0 until p ) {
+          val others = ( 0 until p ).filter( _ != j )
+          val x = Array.tabulate( m, p - 1 )( ( i, k ) => D.get( i, others( k ) ) )
+          val y = Array.tabulate( m )( i => D.get( i, j ) )
+          val ols = new OLSMultipleLinearRegression
+          ols.newSampleData( y, x )
+          mc.getVIF( j ) shouldBe ( 1.0 / ( 1.0 - ols.calculateRSquared ) ) +- 1e-8 * mc.getVIF( j )
+        }
+        mc.getVIFs.foreach( _ should be >= 1.0 )
+        mc.above( 5.0 ) should contain allOf ( 0, 5 )
+        // 1-norm condition number
+        val C = new Array2DRowRealMatrix( Array.tabulate( p, p )( ( i, j ) => mc.getCorrelation.get( i, j ) ) )
+        val Ci = new LUDecomposition( C ).getSolver.getInverse
+        mc.getConditionNumber shouldBe ( C.getNorm * Ci.getNorm ) +- 1e-8 * mc.getConditionNumber
+      }
+      "flag the dependent and constant columns" in {
+        val g = new MatrixGenerator( 100, 10, 5L ).dependent( 2, 3 ).generate
+        val D = g.toDenseMatrix
+        for ( i <- 0 until 100 ) D.set( i, 9, 4.0 )
+        val mc = new Multicollinearity( D.getData, 100, 10 )
+        mc.getDependent should contain( 9 )
+        mc.getConditionNumber shouldBe Double.PositiveInfinity
+        mc.getVIF( 9 ) shouldBe Double.PositiveInfinity
+        // the last column of each combination is flagged
+        for ( k <- 0 until g.getCombinations.size if g.getCombinations.dependent( k ) != 9 ) {
+          val c = g.getCombinations
+          val cols = ( c.start( k ) until c.end( k ) ).map( c.index ) :+ c.dependent( k )
+          mc.getDependent should contain( cols.max )
+        }
+        mc.getVIFs.count( _.isInfinite ) shouldBe mc.getDependent.length
+      }
+      "not depend on the location and scale of the columns" in {
+        val ( m, p ) = ( 300, 5 )
+        val D = new MatrixGenerator( m, p, 23L ).generate.toDenseMatrix
+        for ( i <- 0 until m ) D.add( i, 4, D.get( i, 0 ) + D.get( i, 2 ) )
+        val mc = new Multicollinearity( D )
+        val S = D.copy
+        for ( i <- 0 until m; j <- 0 until p ) S.set( i, j, 1e4 * ( j + 1 ) + S.get( i, j ) * Math.pow( 10, j - 2 ) )
+        val data = S.getData.clone
+        val ms = new Multicollinearity( S )
+        S.getData shouldBe data
+        for ( j <- 0 until p ) ms.getVIF( j ) shouldBe mc.getVIF( j ) +- 1e-6 * mc.getVIF( j )
+        ms.getConditionNumber shouldBe mc.getConditionNumber +- 1e-6 * mc.getConditionNumber
+        for ( j <- 0 until p ) ms.getCorrelation.get( j, j ) shouldBe 1.0 +- 1e-12
+      }
+    }
+  }
+}
@@ -0,0 +1,371 @@
+package pt.inescn.utils
+
+import org.scalatest._
+
+import pt.inescn.scratchpad.Variates
+import pt.inescn.scratchpad.AliasSampler
+import pt.inescn.scratchpad.Columns
+import pt.inescn.scratchpad.Moments
+import pt.inescn.scratchpad.FixedHistogram
+import pt.inescn.scratchpad.TDigest
+import pt.inescn.scratchpad.Timestamps
+import pt.inescn.scratchpad.StreamBuilders
+
+/**
+ * Checks the primitive generators and collectors used by `StreamBuilders`
+ * against direct (two pass or sorted) computations.
+ *
+ * sbt test
+ * sbt "testOnly pt.inescn.utils.StreamBuildersSpec"
+ *
+ */
+class StreamBuildersSpec extends WordSpec with Matchers {
+
+  "The variate streams" when {
+    val seed = 1234L
+    // not a multiple of the block size
+    val n = 3 * Variates.BLOCK + 123
+    val samplers = List(
+      ( "uniform", Variates.uniform( -1, 2 ) ),
+      ( "normal", Variates.normal( 5, 2 ) ),
+      ( "weibull", Variates.weibull( 1.5, 2 ) ),
+      ( "pareto", Variates.pareto( 1, 1.5 ) ),
+      ( "mixture", Variates.mixture( Array( 0.2, 0.8 ), Variates.normal( 0, 1 ), Variates.normal( 10, 1 ) ) ) )
+
+    "generated with the same seed" should {
+      "give the same samples sequentially and in parallel" in {
+        for ( ( name, s ) <- samplers ) {
+          withClue( name + ": " ) {
+            val seq = Variates.stream( seed, n, s ).toArray
+            seq.length shouldBe n
+            Variates.stream( seed, n, s ).parallel.toArray shouldBe seq
+            // unbounded stream cut with limit
+            Variates.stream( seed, Long.MaxValue, s ).parallel.limit( n ).toArray shouldBe seq
+            Variates.stream( seed, Long.MaxValue, s ).limit( n ).toArray shouldBe seq
+            // a different seed gives different samples
+            Variates.stream( seed + 1, n, s ).toArray should not be seq
+          }
+        }
+      }
+      "give the same samples when filled" in {
+        for ( ( name, s ) <- samplers ) {
+          withClue( name + ": " ) {
+            val seq = Variates.stream( seed, n, s ).toArray
+            val a = new Array[ Double ]( n )
+            Variates.fill( seed, a, s )
+            a shouldBe seq
+            // a range that does not start at a block boundary
+            val from = Variates.BLOCK + 77
+            val len = 2 * Variates.BLOCK + 5
+            val b = new Array[ Double ]( len + 3 )
+            Variates.fill( seed, from, b, 3, len, s )
+            b.drop( 3 ) shouldBe seq.slice( from, from + len )
+            b.take( 3 ) shouldBe Array( 0.0, 0.0, 0.0 )
+            // direct buffer
+            val direct = java.nio.ByteBuffer.allocateDirect( 8 * n ).asDoubleBuffer
+            Variates.fill( seed, direct, s )
+            direct.position() shouldBe n
+            val d = new Array[ Double ]( n )
+            direct.flip()
+            direct.get( d )
+            d shouldBe seq
+            // heap buffer from its position
+            val heap = java.nio.DoubleBuffer.wrap( new Array[ Double ]( n + 10 ) )
+            heap.position( 10 )
+            Variates.fill( seed, heap, s )
+            heap.array.drop( 10 ) shouldBe seq
+          }
+        }
+      }
+    }
+  }
+
+  "The alias sampler" when {
+    // zero and tiny weights, not normalized
+    val weights = Array( 0.0, 0.005, 1.0, 2.5, 0.0, 0.3 )
+    val total = weights.sum
+    val alias = new AliasSampler( weights )
+
+    "the labels are sampled" should {
+      "have the probabilities of the weights" in {
+        alias.size shouldBe weights.length
+        for ( i <- weights.indices ) alias.probability( i ) shouldBe weights( i ) / total +- 1e-15
+        // exact: each uniform value in [0, 1) maps to a single label
+        val m = 1000000
+        val exact = new Array[ Int ]( weights.length )
+        for ( i <- 0 until m ) exact( alias.sample( ( i + 0.5 ) / m ) ) += 1
+        for ( i <- weights.indices ) exact( i ).toDouble / m shouldBe weights( i ) / total +- 2.0 * weights.length / m
+        // random: within 5 standard deviations
+        val n = 1000000
+        val labels = new Array[ Int ]( n )
+        alias.fill( 42L, labels )
+        val counts = labels.groupBy( identity ).mapValues( _.length )
+        for ( i <- weights.indices ) {
+          val p = weights( i ) / total
+          withClue( s"label $i: " ) {
+            counts.getOrElse( i, 0 ).toDouble / n shouldBe p +- ( 5 * Math.sqrt( p * ( 1 - p ) / n ) + 1e-12 )
+          }
+        }
+        counts.contains( 0 ) shouldBe false
+        counts.contains( 4 ) shouldBe false
+        alias.ints( 42L ).parallel.limit( n ).toArray shouldBe labels
+      }
+      "reject invalid weights" in {
+        an[ IllegalArgumentException ] should be thrownBy new AliasSampler( Array[ Double ]() )
+        an[ IllegalArgumentException ] should be thrownBy new AliasSampler( Array( 0.0, 0.0 ) )
+        an[ IllegalArgumentException ] should be thrownBy new AliasSampler( Array( 1.0, -0.1 ) )
+        an[ IllegalArgumentException ] should be thrownBy new AliasSampler( Array( 1.0, Double.NaN ) )
+      }
+      "select the classes of a random collection" in {
+        import pt.inescn.scratchpad.StreamBuilder.RandomCollection
+        val w = new RandomCollection( Seq( ( 0.1, "A" ), ( 0.0, "Z" ), ( 0.3, "B" ), ( 0.6, "C" ) ) )
+        val m = 100000
+        val c = ( 0 until m ).map { i => w( ( i + 0.5 ) / m ) }.groupBy( identity ).mapValues( _.size.toDouble / m )
+        c.contains( "Z" ) shouldBe false
+        c( "A" ) shouldBe 0.1 +- 1e-4
+        c( "B" ) shouldBe 0.3 +- 1e-4
+        c( "C" ) shouldBe 0.6 +- 1e-4
+      }
+    }
+  }
+
+  "The columns" when {
+    val seed = 7L
+    val labels = new AliasSampler( Array( 0.2, 0.005, 0.795 ) )
+    val columns = new Columns(
+      Columns.sampled( seed, Variates.normal( 0, 1 ) ),
+      Columns.discrete( seed + 1, labels ),
+      Columns.linspace( 1.0, 0.5 ) )
+    val size = 3L * Variates.BLOCK + 17
+    // column j of the chunks one after the other
+    def concat( chunks: java.util.stream.Stream[ Columns.Chunk ], j: Int ) = {
+      import scala.collection.JavaConverters._
+      chunks.collect( java.util.stream.Collectors.toList[ Columns.Chunk ]() ).asScala.flatMap( _.column( j ) ).toArray
+    }
+
+    "generated in chunks" should {
+      "give the same rows sequentially and in parallel for any chunk size" in {
+        val expected = Array(
+          Variates.stream( seed, size, Variates.normal( 0, 1 ) ).toArray,
+          Variates.stream( seed + 1, size, new Variates.Sampler { def sample( r: java.util.SplittableRandom ) = labels.sample( r ) } ).toArray,
+          Array.tabulate( size.toInt ) { i => 1.0 + i * 0.5 } )
+        // multiples of the block and not
+        for ( chunkSize <- List( Variates.BLOCK, 2 * Variates.BLOCK, 7, 1000, Variates.BLOCK + 1, 5000 ) ) {
+          withClue( s"chunk size $chunkSize: " ) {
+            for ( j <- 0 until columns.numColumns ) {
+              concat( columns.chunks( size, chunkSize ), j ) shouldBe expected( j )
+              concat( columns.chunks( size, chunkSize ).parallel, j ) shouldBe expected( j )
+            }
+          }
+        }
+        val c = columns.chunk( Variates.BLOCK - 3, 10 )
+        c.start shouldBe Variates.BLOCK - 3
+        c.length shouldBe 10
+        c.row( 4 ) shouldBe Array( expected( 0 )( Variates.BLOCK + 1 ), expected( 1 )( Variates.BLOCK + 1 ), expected( 2 )( Variates.BLOCK + 1 ) )
+      }
+    }
+  }
+
+  "The streaming summaries" when {
+    val n = 200000
+    val normal = Variates.stream( 11L, n, Variates.normal( 5, 2 ) ).toArray
+    val pareto = Variates.stream( 12L, n, Variates.pareto( 1, 1.5 ) ).toArray
+    val biModal = Variates.stream( 13L, n, Variates.mixture( Array( 0.3, 0.7 ), Variates.normal( 0, 1 ), Variates.normal( 10, 1 ) ) ).toArray
+    val samples = List( ( "normal", normal ), ( "pareto", pareto ), ( "bimodal", biModal ) )
+
+    // Fraction of the sorted values that are less than or equal to x
+    def rank( sorted: Array[ Double ], x: Double ) = {
+      var lo = 0
+      var hi = sorted.length
+      while ( lo < hi ) {
+        val mid = ( lo + hi ) >>> 1
+        if ( sorted( mid ) <= x ) lo = mid + 1 else hi = mid
+      }
+      lo.toDouble / sorted.length
+    }
+    val quantiles = List( 1e-4, 1e-3, 0.01, 0.1, 0.25, 0.5, 0.75, 0.9, 0.99, 0.999, 1 - 1e-4 )
+    // Rank error of the t-digest: at most 1% in the middle (k1) and relative
+    // to the distance to the end in the tails (k2)
+    def bound( q: Double ) = Math.min( 0.01, 0.2 * Math.min( q, 1 - q ) ) + 2.0 / n
+
+    "the moments are combined" should {
+      "be the same as a two pass computation" in {
+        val mean = normal.sum / n
+        val variance = normal.map { x => ( x - mean ) * ( x - mean ) }.sum / ( n - 1 )
+        // unequal parts merged in order and the parallel collector
+        val cuts = List( 0, 1, 17, 4096, 50001, 120000, n )
+        val parts = cuts.sliding( 2 ).map { case List( a, b ) => Moments.of( java.util.Arrays.stream( normal, a, b ) ) }
+        val merged = parts.reduce { ( a, b ) => a.combine( b ); a }
+        val par = Moments.of( java.util.Arrays.stream( normal ).parallel )
+        for ( m <- List( merged, par ) ) {
+          m.getCount shouldBe n
+          m.getMin shouldBe normal.min
+          m.getMax shouldBe normal.max
+          m.getMean shouldBe mean +- 1e-12 * Math.abs( mean )
+          m.getVariance shouldBe variance +- 1e-10 * variance
+        }
+      }
+      "ignore NaN and be empty without values" in {
+        val m = Moments.of( java.util.stream.DoubleStream.of( 1, Double.NaN, 3 ) )
+        m.getCount shouldBe 2
+        m.getMean shouldBe 2.0
+        m.getVariance shouldBe 2.0
+        val e = new Moments
+        e.combine( m )
+        e.getMean shouldBe 2.0
+        new Moments().getMean.isNaN shouldBe true
+      }
+    }
+    "the values are counted in fixed bins" should {
+      // quarter integers are exactly on the bin edges
+      val values = Variates.stream( 14L, 100000, Variates.normal( 0, 4 ) ).map { x => Math.rint( x * 4 ) / 4 }.toArray
+      "count the values in range, under and over it exactly" in {
+        val h = FixedHistogram.of( java.util.Arrays.stream( values ).parallel, -5, 5, 10 )
+        h.getUnderflow shouldBe values.count( _ < -5 )
+        h.getOverflow shouldBe values.count( _ > 5 )
+        for ( i <- 0 until 9 ) h.getCount( i ) shouldBe values.count { x => x >= i - 5 && x < i - 4 }
+        // the upper limit is in the last bin
+        h.getCount( 9 ) shouldBe values.count { x => x >= 4 && x <= 5 }
+        h.getCount() shouldBe values.length
+        h.counts.sum + h.getUnderflow + h.getOverflow shouldBe values.length
+        h.centers.toList shouldBe ( -4.5 to 4.5 by 1.0 ).toList
+        val s = FixedHistogram.of( java.util.Arrays.stream( values ), -5, 5, 10 )
+        s.counts shouldBe h.counts
+      }
+      "only be combined with the same bins" in {
+        val h1 = new FixedHistogram( -5, 5, 10 )
+        val m: Moments = new FixedHistogram( -5, 5, 10 )
+        values.take( 100 ).foreach( m.accept )
+        h1.combine( m )
+        h1.counts.sum + h1.getUnderflow + h1.getOverflow shouldBe 100
+        an[ IllegalArgumentException ] should be thrownBy h1.combine( new FixedHistogram( -5, 5, 20 ) )
+        an[ IllegalArgumentException ] should be thrownBy h1.combine( new Moments )
+        an[ IllegalArgumentException ] should be thrownBy h1.combine( new TDigest( 100 ) )
+      }
+    }
+    "the values are summarized by a t-digest" should {
+      "estimate the quantiles and the cdf of a sorted sample" in {
+        for ( ( name, s ) <- samples ) {
+          val sorted = s.sorted
+          val d = TDigest.of( java.util.Arrays.stream( s ), 100 )
+          d.getCount shouldBe n
+          d.quantile( 0 ) shouldBe sorted.head
+          d.quantile( 1 ) shouldBe sorted.last
+          for ( q <- quantiles ) {
+            withClue( s"$name q = $q: " ) {
+              rank( sorted, d.quantile( q ) ) shouldBe q +- bound( q )
+              d.cdf( sorted( ( q * n ).toInt ) ) shouldBe q +- bound( q )
+            }
+          }
+        }
+      }
+      "give the same estimates when merged in parallel" in {
+        for ( ( name, s ) <- samples ) {
+          val sorted = s.sorted
+          val seq = TDigest.of( java.util.Arrays.stream( s ), 100 )
+          val par = TDigest.of( java.util.Arrays.stream( s ).parallel, 100 )
+          // many small digests combined through the base type
+          val parts: Seq[ Moments ] = ( 0 until 100 ).map { k => TDigest.of( java.util.Arrays.stream( s, k * n / 100, ( k + 1 ) * n / 100 ), 100 ) }
+          val many = new TDigest( 100 )
+          parts.foreach( many.combine )
+          many.getCount shouldBe n
+          for ( q <- quantiles ) {
+            withClue( s"$name q = $q: " ) {
+              rank( sorted, many.quantile( q ) ) shouldBe q +- bound( q )
+              rank( sorted, par.quantile( q ) ) shouldBe rank( sorted, seq.quantile( q ) ) +- 2 * bound( q )
+              rank( sorted, many.quantile( q ) ) shouldBe rank( sorted, seq.quantile( q ) ) +- 2 * bound( q )
+            }
+          }
+          // the bin counts add up to the number of values
+          par.counts( par.getMin, par.getMax, 20 ).sum shouldBe n.toDouble +- 1.0
+        }
+      }
+      "only be combined with another t-digest" in {
+        val d = new TDigest( 100 )
+        an[ IllegalArgumentException ] should be thrownBy d.combine( new Moments )
+        an[ IllegalArgumentException ] should be thrownBy d.combine( new FixedHistogram( 0, 1, 2 ) )
+        an[ IllegalArgumentException ] should be thrownBy new TDigest( 5 )
+        d.quantile( 0.5 ).isNaN shouldBe true
+      }
+    }
+  }
+
+  "The time-stamps" when {
+    import java.time.{ Duration, LocalDateTime, ZoneId, ZonedDateTime, ZoneOffset }
+
+    val lisbon = ZoneId.of( "Europe/Lisbon" )
+    def toArray( s: java.util.stream.Stream[ ZonedDateTime ] ) = s.toArray( new Array[ ZonedDateTime ]( _ ) )
+    /* The previous implementation: one Duration and one ZonedDateTime per sample */
+    def iterated( start: LocalDateTime, rate: Duration, zone: ZoneId, n: Int ) = {
+      val startTime = ZonedDateTime.of( start, zone )
+      toArray( java.util.stream.Stream.iterate( rate, ( s: Duration ) => s.plus( rate ) ).map[ ZonedDateTime ]( s => startTime.plus( s ) ).limit( n ) )
+    }
+
+    "a day-light saving change is crossed" should {
+      // 01:00 -> 02:00 on 2017-03-26 and 02:00 -> 01:00 on 2017-10-29 in Lisbon
+      val cases = List(
+        ( LocalDateTime.of( 2017, 3, 26, 0, 30 ), Duration.ofMinutes( 7 ) ),
+        ( LocalDateTime.of( 2017, 10, 29, 0, 45 ), Duration.ofSeconds( 61, 5000 ) ),
+        // starts in the hour that is repeated
+        ( LocalDateTime.of( 2017, 10, 29, 1, 30 ), Duration.ofMillis( 90001 ) ) )
+      val n = 200
+
+      "give the same time-stamps as the iterated durations" in {
+        for ( ( start, rate ) <- cases ) {
+          val expected = iterated( start, rate, lisbon, n )
+          val seq = toArray( StreamBuilders.samplingZonedDateTime( start, rate, lisbon ).limit( n ) )
+          val par = toArray( StreamBuilders.samplingZonedDateTime( start, rate, lisbon ).parallel.limit( n ) )
+          seq shouldBe expected
+          par shouldBe expected
+          val t = new Timestamps( start, rate, lisbon )
+          val nanos = expected.map( z => Timestamps.toEpochNanos( z.toInstant ) )
+          StreamBuilders.samplingEpochNanos( start, rate, lisbon ).limit( n ).toArray shouldBe nanos
+          StreamBuilders.samplingEpochNanos( start, rate, lisbon ).parallel.limit( n ).toArray shouldBe nanos
+          t.range( 1, n + 1 ).parallel.toArray shouldBe nanos
+          toArray( t.zoned( 1, n + 1 ).parallel ) shouldBe expected
+          val filled = new Array[ Long ]( n + 1 )
+          t.fill( filled )
+          filled.tail shouldBe nanos
+        }
+      }
+    }
+
+    "the last representable time-stamp is reached" should {
+      "end the streams there" in {
+        val t = new Timestamps( Long.MaxValue - 10, 3, ZoneOffset.UTC )
+        t.size shouldBe 4
+        t.stream.toArray shouldBe Array( Long.MaxValue - 10, Long.MaxValue - 7, Long.MaxValue - 4, Long.MaxValue - 1 )
+        t.stream.parallel.toArray shouldBe t.stream.toArray
+        t.range( 2, Long.MaxValue ).count shouldBe 2
+        t.range( 4, Long.MaxValue ).count shouldBe 0
+        t.at( 3 ) shouldBe Long.MaxValue - 1
+        // close to 2262-04-11T23:47:16.854775807Z
+        val last = LocalDateTime.of( 2262, 4, 11, 23, 47, 10 )
+        val s = StreamBuilders.samplingEpochNanos( last, Duration.ofSeconds( 1 ), ZoneOffset.UTC )
+        val a = s.toArray
+        a.length shouldBe 6
+        a.forall( _ > 0 ) shouldBe true
+        a.last shouldBe Timestamps.toEpochNanos( last.plusSeconds( 6 ).toInstant( ZoneOffset.UTC ) )
+        StreamBuilders.samplingZonedDateTime( last, Duration.ofSeconds( 1 ), ZoneOffset.UTC ).parallel.count shouldBe 6
+        // from before the epoch all indices fit
+        new Timestamps( -5, 1, ZoneOffset.UTC ).size shouldBe Long.MaxValue
+        new Timestamps( 0, 1, ZoneOffset.UTC ).size shouldBe Long.MaxValue
+      }
+      "not wrap around" in {
+        val t = new Timestamps( Long.MaxValue - 10, 3, ZoneOffset.UTC )
+        an[ ArithmeticException ] should be thrownBy t.at( 4 )
+        an[ ArithmeticException ] should be thrownBy t.fill( 3, new Array[ Long ]( 2 ), 0, 2 )
+        an[ ArithmeticException ] should be thrownBy t.fill( new Array[ Long ]( 5 ) )
+        an[ ArithmeticException ] should be thrownBy t.seconds.fill( Long.MaxValue / 2, new Array[ Double ]( 1 ), 0, 1 )
+        an[ ArithmeticException ] should be thrownBy new Timestamps( Long.MinValue + 10, 3, ZoneOffset.UTC ).at( -4 )
+        val a = new Array[ Long ]( 2 )
+        t.fill( 2, a, 0, 2 )
+        a shouldBe Array( Long.MaxValue - 4, Long.MaxValue - 1 )
+        val d = new Array[ Double ]( 2 )
+        t.seconds.fill( 1, d, 0, 2 )
+        d shouldBe Array( 3e-9, 6e-9 )
+      }
+    }
+  }
+
+}
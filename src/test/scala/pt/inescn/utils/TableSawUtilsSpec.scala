@@ -237,7 +237,76 @@ class TableSawUtilsSpec extends FlatSpec with Matchers {
     // Read and infer types
      val ntps = CsvReader.detectColumnTypes(file, header, delimiter, skipSampling)
      //println(ntps.mkString("{", ",", "}"))
-     ntps.mkString("{", ",", "}") shouldBe   tpsString 
+     ntps.mkString("{", ",", "}") shouldBe   tpsString
+  }
+
+  "Float columns" should "be copied to a column major array" in {
+    import pt.inescn.utils.TableSawUtils._
+    import pt.inescn.scratchpad.QRMatrixToolkit
+    import pt.inescn.scratchpad.QREngine
+
+    val c1 = createFloatColumn( "col1", List( 1, 1, 1, 1, 1, 1 ) )
+    val c2 = createFloatColumn( "col2", List( 1, 1, 1, 0, 0, 0 ) )
+    val c3 = createFloatColumn( "col3", List( 0, 0, 0, 1, 1, 1 ) )
+    val data = toColumnMajor( List( c1, c2, c3 ) )
+    data should contain theSameElementsInOrderAs List( 1.0, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 1, 1, 1 )
+
+    val m = toDenseMatrix( List( c1, c2, c3 ) )
+    m.numRows shouldBe 6
+    m.numColumns shouldBe 3
+    m.get( 3, 2 ) shouldBe 1.0
+
+    // col1 = col2 + col3
+    val l = QRMatrixToolkit.collinear( data, 6, 3, 1e-6, true, QREngine.QRP )
+    l.size shouldBe 1
+    l.get( 0 ).size shouldBe 3
+  }
+
+  "Correlated columns" should "be merged into components" in {
+    import pt.inescn.utils.TableSawUtils.findCorrelationComponents
+
+    val ( _, comps, total ) = findCorrelationComponents( _ => () )( List( ( 2, 9, 0.9 ), ( 9, 4, 0.8 ), ( 0, 1, 0.95 ) ) )
+    comps.values.toSet shouldBe Set( Set( 2, 4, 9 ), Set( 0, 1 ) )
+    total shouldBe 5
+  }
+
+  they should "be merged into the same components concurrently" in {
+    import pt.inescn.utils.TableSawUtils._
+    import com.github.lwhite1.tablesaw.api.Table
+
+    def pearson( x: Array[ Double ], y: Array[ Double ] ) = {
+      val mx = x.sum / x.length
+      val my = y.sum / y.length
+      val sxy = x.zip( y ).map { case ( a, b ) => ( a - mx ) * ( b - my ) }.sum
+      val sxx = x.map( a => ( a - mx ) * ( a - mx ) ).sum
+      val syy = y.map( b => ( b - my ) * ( b - my ) ).sum
+      sxy / Math.sqrt( sxx * syy )
+    }
+
+    val t = Table.create( "correlated" )
+    addColumns( t,
+      createFloatColumn( "c0", List( 1, 2, 3, 4, 5, 6, 7, 8 ) ),
+      createFloatColumn( "c1", List( 3, 5, 7, 9, 11, 13, 15, 17 ) ),
+      createFloatColumn( "c2", List( 5, 1, 4, 1, 5, 9, 2, 6 ) ),
+      createFloatColumn( "c3", List( -5, -1, -4, -1, -5, -9, -2, -6 ) ),
+      createFloatColumn( "c4", List( 8, 7, 6, 5, 4, 3, 2, 1 ) ),
+      createFloatColumn( "c5", List( 2, 7, 1, 8, 2, 8, 1, 8 ) ) )
+    val cutoff = ( c: Double ) => Math.abs( c ) >= 0.9
+
+    val pairs = findCorrelation( pearson, cutoff )( t ).toList
+    val ( uf, comps, total ) = findCorrelationComponents( _ => () )( pairs )
+
+    val checked = collection.mutable.ListBuffer[ ( Int, Int, Double ) ]()
+    val ( puf, pcomps, ptotal, found ) = findCorrelationComponentsPar( pearson, cutoff )( checked += _ )( t )
+
+    pcomps.values.toSet shouldBe comps.values.toSet
+    pcomps.values.toSet shouldBe Set( Set( 0, 1, 4 ), Set( 2, 3 ) )
+    ptotal shouldBe total
+    found shouldBe pairs.size
+    checked.toSet shouldBe pairs.toSet
+    // the sequential version only knows the columns up to c4, c5 is a single column
+    uf.count shouldBe 2
+    puf.count shouldBe 3
   }
 
   "A Stack" should "pop values in last-in-first-out order" in {
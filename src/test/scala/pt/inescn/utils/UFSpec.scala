@@ -0,0 +1,61 @@
+package pt.inescn.utils
+
+import org.scalatest._
+
+import pt.inescn.scratchpad.utils.UF
+import pt.inescn.scratchpad.utils.ConcurrentUF
+import pt.inescn.scratchpad.utils.KeyedUF
+
+/**
+ * Checks the union-find structures used to find the components of
+ * correlated features.
+ *
+ * sbt test
+ * sbt "testOnly pt.inescn.utils.UFSpec"
+ *
+ */
+class UFSpec extends FlatSpec with Matchers {
+
+  "Union-find" should "merge the same components concurrently" in {
+    val n = 10000
+    val rnd = new java.util.Random( 1234 )
+    val pairs = Array.fill( n / 2 )( ( rnd.nextInt( n ), rnd.nextInt( n ) ) )
+    val uf = new UF( n )
+    pairs.foreach { case ( p, q ) => uf.union( p, q ) }
+    val cuf = new ConcurrentUF( n )
+    val merged = pairs.par.count { case ( p, q ) => cuf.union( p, q ) }
+    cuf.count shouldBe uf.count
+    merged shouldBe n - uf.count
+    for ( p <- 0 until n by 7; q <- 0 until n by 1013 )
+      cuf.connected( p, q ) shouldBe uf.connected( p, q )
+  }
+
+  it should "list the components in a compressed layout" in {
+    val uf = new UF( 8 )
+    List( ( 0, 3 ), ( 3, 5 ), ( 6, 1 ) ).foreach { case ( p, q ) => uf.union( p, q ) }
+    val c = uf.components
+    c.count shouldBe uf.count
+    c.sizes shouldBe Array( 3, 2, 1, 1, 1 )
+    c.getOffsets shouldBe Array( 0, 3, 5, 6, 7, 8 )
+    c.getMembers shouldBe Array( 0, 3, 5, 1, 6, 2, 4, 7 )
+    c.members( 1 ) shouldBe Array( 1, 6 )
+    for ( k <- 0 until c.count; i <- c.start( k ) until c.end( k ) ) uf.find( c.getMembers()( i ) ) shouldBe c.root( k )
+  }
+
+  it should "accept sparse site ids" in {
+    val kuf = new KeyedUF( 2 )
+    List( ( 1000000, 7 ), ( -5, 42 ), ( 7, 123456789 ) ).foreach { case ( p, q ) => kuf.union( p, q ) }
+    kuf.add( 99 )
+    kuf.size shouldBe 6
+    kuf.count shouldBe 3
+    kuf.connected( 1000000, 123456789 ) shouldBe true
+    kuf.connected( 42, 7 ) shouldBe false
+    kuf.find( 31 ) shouldBe 31
+    val kc = kuf.components
+    kc.members( 0 ) shouldBe Array( 1000000, 7, 123456789 )
+    kc.members( 1 ) shouldBe Array( -5, 42 )
+    kc.members( 2 ) shouldBe Array( 99 )
+    kc.root( 0 ) shouldBe kuf.find( 7 )
+  }
+
+}